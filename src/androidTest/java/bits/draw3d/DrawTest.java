@@ -71,6 +71,7 @@ public class DrawTest {
 
         @Override
         public void onSurfaceCreated( GL10 ignore, EGLConfig config ) {
+            d.onContextCreated();
             d.init( mSurface, null );
 
             mProg = new AutoloadProgram();
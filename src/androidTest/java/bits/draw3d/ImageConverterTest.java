@@ -0,0 +1,77 @@
+package bits.draw3d;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks 16-bit packing and that dithering preserves average intensity.
+ *
+ * @author Philip DeCamp
+ */
+@RunWith( AndroidJUnit4.class )
+public class ImageConverterTest {
+
+    private static final int SIZE = 64;
+
+
+    @Test
+    public void testPackExtremes() {
+        int[] px = { 0xFF000000, 0xFFFFFFFF, 0x00FF0000, 0x80008000 };
+        short[] out = new short[px.length];
+
+        ImageConverter.pack( px, px.length, 1, 0, ImageConverter.RGB565, ImageConverter.Dither.NONE, null, out );
+        assertEquals( 0x0000, out[0] & 0xFFFF );
+        assertEquals( 0xFFFF, out[1] & 0xFFFF );
+        assertEquals( 0xF800, out[2] & 0xFFFF );
+
+        ImageConverter.pack( px, px.length, 1, 0, ImageConverter.RGBA4444, ImageConverter.Dither.NONE, null, out );
+        assertEquals( 0x000F, out[0] & 0xFFFF );
+        assertEquals( 0xFFFF, out[1] & 0xFFFF );
+        assertEquals( 0xF000, out[2] & 0xFFFF );
+
+        ImageConverter.pack( px, px.length, 1, 0, ImageConverter.RGBA5551, ImageConverter.Dither.NONE, null, out );
+        assertEquals( 0x0001, out[0] & 0xFFFF );
+        assertEquals( 0xFFFF, out[1] & 0xFFFF );
+        assertEquals( 0x0001, out[3] & 0x0001 );
+    }
+
+
+    @Test
+    public void testDitherPreservesMean() {
+        final int gray = 100;
+        int[] px = new int[SIZE * SIZE];
+        Arrays.fill( px, 0xFF000000 | gray << 16 | gray << 8 | gray );
+        short[] out = new short[px.length];
+
+        ImageConverter.pack( px, SIZE, SIZE, 0, ImageConverter.RGB565, ImageConverter.Dither.NONE, null, out );
+        double plain = meanRed565( out );
+
+        ImageConverter.pack( px, SIZE, SIZE, 0, ImageConverter.RGB565, ImageConverter.Dither.ORDERED, null, out );
+        double ordered = meanRed565( out );
+
+        int[] err = new int[2 * ( SIZE + 2 ) * 4];
+        ImageConverter.pack( px, SIZE, SIZE, 0, ImageConverter.RGB565, ImageConverter.Dither.DIFFUSION, err, out );
+        double diffused = meanRed565( out );
+
+        System.out.format( "Mean of %d -> none: %.3f  ordered: %.3f  diffusion: %.3f\n", gray, plain, ordered, diffused );
+        assertTrue( Math.abs( plain - gray ) > 1.0 );
+        assertEquals( gray, ordered, 0.5 );
+        assertEquals( gray, diffused, 0.5 );
+    }
+
+
+    private static double meanRed565( short[] px ) {
+        double sum = 0;
+        for( short p: px ) {
+            sum += ( ( p & 0xFFFF ) >>> 11 ) * 255.0 / 31.0;
+        }
+        return sum / px.length;
+    }
+
+}
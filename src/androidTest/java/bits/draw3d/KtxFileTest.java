@@ -0,0 +1,190 @@
+package bits.draw3d;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static android.opengl.GLES30.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * Parses synthetic KTX 1.1 and 2.0 files and checks level slicing.
+ *
+ * @author Philip DeCamp
+ */
+@RunWith( AndroidJUnit4.class )
+public class KtxFileTest {
+
+    private static final byte[] ID_KTX1 = { (byte)0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte)0xBB, '\r', '\n', 0x1A, '\n' };
+    private static final byte[] ID_KTX2 = { (byte)0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte)0xBB, '\r', '\n', 0x1A, '\n' };
+
+
+    @Test
+    public void testKtx1Etc2() throws IOException {
+        // 8x8 ETC2 RGB: 4 blocks of 8 bytes at level 0, 1 block at levels 1-3.
+        int[] sizes = { 32, 8, 8, 8 };
+        ByteBuffer buf = ktx1( GL_COMPRESSED_RGB8_ETC2, 8, 8, 0, 1, sizes, 1, 8 );
+        KtxFile ktx = KtxFile.parse( buf );
+
+        assertEquals( 1, ktx.version() );
+        assertTrue( ktx.isCompressed() );
+        assertEquals( GL_COMPRESSED_RGB8_ETC2, ktx.internalFormat() );
+        assertEquals( GL_TEXTURE_2D, ktx.target() );
+        assertEquals( 4, ktx.levelNum() );
+        assertEquals( 2, ktx.width( 2 ) );
+
+        for( int level = 0; level < sizes.length; level++ ) {
+            ByteBuffer data = ktx.data( level, 0, 0 );
+            assertEquals( sizes[level], data.remaining() );
+            assertEquals( level + 1, data.get( 0 ) );
+            assertEquals( level + 1, data.get( data.remaining() - 1 ) );
+        }
+    }
+
+
+    @Test
+    public void testKtx1CubePadding() throws IOException {
+        // Uncompressed 1x1 RGB cube map. Each 3-byte face is padded to 4 bytes.
+        ByteBuffer buf = ktx1( GL_RGB8, 1, 1, 0, 6, new int[]{ 3 }, 1, 0 );
+        KtxFile ktx = KtxFile.parse( buf );
+        assertFalse( ktx.isCompressed() );
+        assertEquals( GL_TEXTURE_CUBE_MAP, ktx.target() );
+        for( int face = 0; face < 6; face++ ) {
+            ByteBuffer data = ktx.data( 0, 0, face );
+            assertEquals( 3, data.remaining() );
+            assertEquals( 1, data.get( 0 ) );
+        }
+    }
+
+
+    @Test
+    public void testKtx2Astc() throws IOException {
+        // 16x16 ASTC 8x8 SRGB: 4 blocks of 16 bytes at level 0, 1 block at levels 1-4.
+        int[] sizes = { 64, 16, 16, 16, 16 };
+        ByteBuffer buf = ktx2( 172, 16, 16, sizes );
+        KtxFile ktx = KtxFile.parse( buf );
+
+        assertEquals( 2, ktx.version() );
+        assertEquals( Fake.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 + 7, ktx.internalFormat() );
+        assertEquals( 5, ktx.levelNum() );
+        for( int level = 0; level < sizes.length; level++ ) {
+            ByteBuffer data = ktx.data( level, 0, 0 );
+            assertEquals( sizes[level], data.remaining() );
+            assertEquals( level + 1, data.get( 0 ) );
+        }
+    }
+
+
+    @Test
+    public void testFormatMapping() {
+        assertEquals( GL_COMPRESSED_RGBA8_ETC2_EAC, KtxFile.glFormatForVk( 151 ) );
+        assertEquals( GL_COMPRESSED_SIGNED_RG11_EAC, KtxFile.glFormatForVk( 156 ) );
+        assertEquals( Fake.GL_COMPRESSED_RGBA_ASTC_4x4, KtxFile.glFormatForVk( 157 ) );
+        assertEquals( Fake.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 + 13, KtxFile.glFormatForVk( 184 ) );
+        assertEquals( 0, KtxFile.glFormatForVk( 37 ) );
+    }
+
+
+    @Test
+    public void testRejectsTruncated() {
+        ByteBuffer buf = ktx1( GL_COMPRESSED_RGB8_ETC2, 8, 8, 0, 1, new int[]{ 32 }, 1, 0 );
+        buf.limit( buf.capacity() - 4 );
+        ByteBuffer cut = ByteBuffer.allocate( buf.limit() );
+        cut.put( buf ).flip();
+        try {
+            KtxFile.parse( cut );
+            fail();
+        } catch( IOException expected ) {}
+
+        try {
+            KtxFile.parse( ByteBuffer.wrap( new byte[100] ) );
+            fail();
+        } catch( IOException expected ) {}
+    }
+
+    /**
+     * Builds a KTX 1.1 file. Each image is filled with its level number plus one.
+     */
+    private static ByteBuffer ktx1( int intFormat, int w, int h, int layers, int faces, int[] sizes, int fill, int kvBytes ) {
+        boolean compressed = intFormat != GL_RGB8;
+        int total = 64 + kvBytes;
+        for( int s: sizes ) {
+            total += 4 + faces * ( ( s + 3 ) & ~3 );
+        }
+        ByteBuffer b = ByteBuffer.allocate( total ).order( ByteOrder.LITTLE_ENDIAN );
+        b.put( ID_KTX1 );
+        b.putInt( 0x04030201 );
+        b.putInt( compressed ? 0 : GL_UNSIGNED_BYTE );
+        b.putInt( 1 );
+        b.putInt( compressed ? 0 : GL_RGB );
+        b.putInt( intFormat );
+        b.putInt( GL_RGB );
+        b.putInt( w );
+        b.putInt( h );
+        b.putInt( 0 );
+        b.putInt( layers );
+        b.putInt( faces );
+        b.putInt( sizes.length );
+        b.putInt( kvBytes );
+        b.position( b.position() + kvBytes );
+        for( int level = 0; level < sizes.length; level++ ) {
+            b.putInt( sizes[level] );
+            for( int face = 0; face < faces; face++ ) {
+                for( int i = 0; i < sizes[level]; i++ ) {
+                    b.put( (byte)( level + fill ) );
+                }
+                b.position( ( b.position() + 3 ) & ~3 );
+            }
+        }
+        b.clear();
+        return b;
+    }
+
+    /**
+     * Builds a KTX 2.0 file with levels stored smallest first, as the spec recommends.
+     */
+    private static ByteBuffer ktx2( int vkFormat, int w, int h, int[] sizes ) {
+        int total = 80 + sizes.length * 24;
+        for( int s: sizes ) {
+            total += s;
+        }
+        ByteBuffer b = ByteBuffer.allocate( total ).order( ByteOrder.LITTLE_ENDIAN );
+        b.put( ID_KTX2 );
+        b.putInt( vkFormat );
+        b.putInt( 1 );
+        b.putInt( w );
+        b.putInt( h );
+        b.putInt( 0 );
+        b.putInt( 0 );
+        b.putInt( 1 );
+        b.putInt( sizes.length );
+        b.putInt( 0 );
+        // DFD, KVD and SGD index entries are left empty.
+        b.position( 80 );
+
+        long off = 80 + sizes.length * 24;
+        long[] offsets = new long[sizes.length];
+        for( int level = sizes.length - 1; level >= 0; level-- ) {
+            offsets[level] = off;
+            off += sizes[level];
+        }
+        for( int level = 0; level < sizes.length; level++ ) {
+            b.putLong( offsets[level] );
+            b.putLong( sizes[level] );
+            b.putLong( sizes[level] );
+        }
+        for( int level = sizes.length - 1; level >= 0; level-- ) {
+            for( int i = 0; i < sizes[level]; i++ ) {
+                b.put( (byte)( level + 1 ) );
+            }
+        }
+        b.clear();
+        return b;
+    }
+
+}
@@ -0,0 +1,175 @@
+package bits.draw3d;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import static android.opengl.GLES30.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * Exercises ProgramBinaryCache against a stand-in GL.
+ *
+ * @author Philip DeCamp
+ */
+@RunWith( AndroidJUnit4.class )
+public class ProgramBinaryCacheTest {
+
+    private File mDir;
+    private FakeGl mGl;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile( "pbc", "" );
+        mDir.delete();
+        mDir.mkdirs();
+        mGl = new FakeGl();
+    }
+
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if( files != null ) {
+            for( File f: files ) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+
+    @Test
+    public void testRoundTrip() {
+        ProgramBinaryCache cache = new ProgramBinaryCache( mDir, 1 << 20, mGl );
+        String key = cache.key( "300 es", shaders( "a", "b" ) );
+
+        assertFalse( cache.restore( 1, key ) );
+        assertEquals( 1, cache.missCount() );
+
+        mGl.mLinked.put( 1, new byte[]{ 1, 2, 3, 4, 5 } );
+        assertTrue( cache.store( 1, key ) );
+        assertTrue( mGl.mPrepared.isEmpty() );
+
+        assertTrue( cache.restore( 2, key ) );
+        assertArrayEquals( new byte[]{ 1, 2, 3, 4, 5 }, mGl.mLinked.get( 2 ) );
+        assertEquals( 1, cache.hitCount() );
+    }
+
+
+    @Test
+    public void testKeyInputs() {
+        ProgramBinaryCache cache = new ProgramBinaryCache( mDir, 1 << 20, mGl );
+        String key = cache.key( "300 es", shaders( "a", "b" ) );
+        assertEquals( key, cache.key( "300 es", shaders( "a", "b" ) ) );
+        assertNotEquals( key, cache.key( "310 es", shaders( "a", "b" ) ) );
+        assertNotEquals( key, cache.key( "300 es", shaders( "a", "c" ) ) );
+        assertNotEquals( key, cache.key( "300 es", shaders( "ab", "" ) ) );
+
+        FakeGl other = new FakeGl();
+        other.mDriver = "other driver";
+        ProgramBinaryCache cache2 = new ProgramBinaryCache( mDir, 1 << 20, other );
+        assertNotEquals( key, cache2.key( "300 es", shaders( "a", "b" ) ) );
+    }
+
+
+    @Test
+    public void testRejectedBinary() {
+        ProgramBinaryCache cache = new ProgramBinaryCache( mDir, 1 << 20, mGl );
+        String key = cache.key( null, shaders( "a", "b" ) );
+        mGl.mLinked.put( 1, new byte[]{ 9, 9, 9 } );
+        cache.store( 1, key );
+
+        mGl.mAccept = false;
+        assertFalse( cache.restore( 2, key ) );
+        assertEquals( 1, cache.rejectCount() );
+        assertEquals( 0, cache.sizeBytes() );
+    }
+
+
+    @Test
+    public void testCorruptEntry() throws IOException {
+        ProgramBinaryCache cache = new ProgramBinaryCache( mDir, 1 << 20, mGl );
+        String key = cache.key( null, shaders( "a", "b" ) );
+        mGl.mLinked.put( 1, new byte[]{ 1, 2, 3, 4, 5, 6, 7, 8 } );
+        cache.store( 1, key );
+
+        File[] files = mDir.listFiles();
+        assertEquals( 1, files.length );
+        try( RandomAccessFile raf = new RandomAccessFile( files[0], "rw" ) ) {
+            raf.seek( raf.length() - 1 );
+            raf.write( 0x7F );
+        }
+
+        assertFalse( cache.restore( 2, key ) );
+        assertEquals( 1, cache.rejectCount() );
+        assertFalse( mGl.mLinked.containsKey( 2 ) );
+    }
+
+
+    @Test
+    public void testSizeCap() {
+        ProgramBinaryCache cache = new ProgramBinaryCache( mDir, 3 * ( 16 + 100 ), mGl );
+        List<String> keys = new ArrayList<>();
+        for( int i = 0; i < 5; i++ ) {
+            String key = cache.key( null, shaders( "v" + i, "f" ) );
+            keys.add( key );
+            mGl.mLinked.put( i + 1, new byte[100] );
+            assertTrue( cache.store( i + 1, key ) );
+            // Make modification order unambiguous.
+            new File( mDir, key + ".bin" ).setLastModified( 1000000L * ( i + 1 ) );
+        }
+
+        assertTrue( cache.sizeBytes() <= 3 * ( 16 + 100 ) );
+        assertTrue( cache.restore( 100, keys.get( 4 ) ) );
+        assertFalse( cache.restore( 101, keys.get( 0 ) ) );
+    }
+
+
+    private static List<Shader> shaders( String vert, String frag ) {
+        return Arrays.asList( new Shader( GL_VERTEX_SHADER, vert ), new Shader( GL_FRAGMENT_SHADER, frag ) );
+    }
+
+
+    private static class FakeGl implements ProgramBinaryCache.Gl {
+        String  mDriver   = "fake driver";
+        boolean mAccept   = true;
+        final Map<Integer, byte[]> mLinked   = new HashMap<>();
+        final Set<Integer>         mPrepared = new HashSet<>();
+
+        @Override
+        public String driverString() {
+            return mDriver;
+        }
+
+        @Override
+        public void prepareLink( int program ) {
+            mPrepared.add( program );
+        }
+
+        @Override
+        public byte[] getProgramBinary( int program, int[] outFormat ) {
+            outFormat[0] = 0x1234;
+            return mLinked.get( program );
+        }
+
+        @Override
+        public boolean programBinary( int program, int format, byte[] data, int len ) {
+            if( !mAccept || format != 0x1234 ) {
+                return false;
+            }
+            mLinked.put( program, Arrays.copyOf( data, len ) );
+            return true;
+        }
+    }
+
+}
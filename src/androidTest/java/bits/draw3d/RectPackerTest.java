@@ -0,0 +1,105 @@
+package bits.draw3d;
+
+import android.support.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks RectPacker placements and measures packing efficiency and insertion throughput.
+ *
+ * @author Philip DeCamp
+ */
+@RunWith( AndroidJUnit4.class )
+public class RectPackerTest {
+
+    private static final int PAGE = 1024;
+
+
+    @Test
+    public void testNoOverlap() {
+        RectPacker packer = new RectPacker( PAGE, PAGE );
+        List<Rect> placed = fill( packer, new Random( 0 ), 8, 96 );
+        Rect bounds = new Rect( 0, 0, PAGE, PAGE );
+
+        for( int i = 0; i < placed.size(); i++ ) {
+            Rect a = placed.get( i );
+            assertTrue( a.x0 >= bounds.x0 && a.y0 >= bounds.y0 && a.x1 <= bounds.x1 && a.y1 <= bounds.y1 );
+            for( int j = i + 1; j < placed.size(); j++ ) {
+                assertFalse( a.intersects( placed.get( j ) ) );
+            }
+        }
+    }
+
+
+    @Test
+    public void testExactFit() {
+        RectPacker packer = new RectPacker( 64, 64 );
+        Rect r = new Rect();
+        for( int i = 0; i < 16; i++ ) {
+            assertTrue( packer.insert( 16, 16, r ) );
+        }
+        assertFalse( packer.insert( 1, 1, r ) );
+        assertEquals( 1.0, packer.occupancy(), 0.0 );
+
+        packer.clear();
+        assertTrue( packer.insert( 64, 64, r ) );
+        assertFalse( packer.insert( 65, 1, r ) );
+    }
+
+
+    @Test
+    public void testEfficiencyAndThroughput() {
+        final int iters = 20;
+        double occupancy = 0;
+        int inserted = 0;
+
+        // Warm up.
+        fill( new RectPacker( PAGE, PAGE ), new Random( 1 ), 8, 64 );
+
+        long t0 = System.nanoTime();
+        for( int i = 0; i < iters; i++ ) {
+            RectPacker packer = new RectPacker( PAGE, PAGE );
+            inserted += fill( packer, new Random( i ), 8, 64 ).size();
+            occupancy += packer.occupancy();
+        }
+        long t1 = System.nanoTime();
+
+        occupancy /= iters;
+        System.out.format( "RectPacker %dx%d: occupancy %.1f%%   %.2f us/insert%n",
+                           PAGE,
+                           PAGE,
+                           occupancy * 100.0,
+                           ( t1 - t0 ) / 1000.0 / inserted );
+        assertTrue( occupancy > 0.8 );
+    }
+
+    /**
+     * Inserts random rectangles until several consecutive insertions fail.
+     */
+    private static List<Rect> fill( RectPacker packer, Random rand, int minSize, int maxSize ) {
+        List<Rect> ret = new ArrayList<>();
+        int fails = 0;
+        while( fails < 50 ) {
+            int w = minSize + rand.nextInt( maxSize - minSize + 1 );
+            int h = minSize + rand.nextInt( maxSize - minSize + 1 );
+            Rect r = new Rect();
+            if( packer.insert( w, h, r ) ) {
+                assertEquals( w, r.width() );
+                assertEquals( h, r.height() );
+                ret.add( r );
+                fails = 0;
+            } else {
+                fails++;
+            }
+        }
+        return ret;
+    }
+
+}
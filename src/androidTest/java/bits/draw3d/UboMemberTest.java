@@ -0,0 +1,163 @@
+package bits.draw3d;
+
+import android.support.test.runner.AndroidJUnit4;
+import bits.vec.Mat4;
+import bits.vec.Vec3;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static android.opengl.GLES30.*;
+import static org.junit.Assert.*;
+
+
+/**
+ * Checks bulk UboMember setters against per-element writes and compares their speed.
+ *
+ * @author Philip DeCamp
+ */
+@RunWith( AndroidJUnit4.class )
+public class UboMemberTest {
+
+    private static final int MAT_NUM = 64;
+
+
+    @Test
+    public void testMat4ArrayLayout() {
+        Ubo ubo = new Ubo();
+        UboMember mats = ubo.addUniform( MAT_NUM, GL_FLOAT_MAT4, "BONES" );
+        ubo.allocMembersBuffer();
+        assertEquals( 64 * MAT_NUM, ubo.dataSize() );
+
+        Mat4[] vals = randMats( new Random( 0 ), MAT_NUM );
+        mats.set( 0, vals, 0, MAT_NUM );
+
+        ByteBuffer expect = DrawUtil.alloc( ubo.dataSize() );
+        writePerElement( vals, 0, 64, 16, expect );
+        assertEquals( expect, ubo.mBuf.duplicate() );
+
+        Mat4[] out = new Mat4[MAT_NUM];
+        for( int i = 0; i < MAT_NUM; i++ ) {
+            out[i] = new Mat4();
+        }
+        mats.get( 0, out, 0, MAT_NUM );
+        for( int i = 0; i < MAT_NUM; i++ ) {
+            assertEquals( vals[i].m12, out[i].m12, 0f );
+            assertEquals( vals[i].m33, out[i].m33, 0f );
+        }
+    }
+
+
+    @Test
+    public void testDuplicateNameResolvesFirst() {
+        Ubo ubo = new Ubo();
+        ubo.addUniform( 1, GL_FLOAT_VEC4, "A" );
+        ubo.addUniform( 1, GL_FLOAT_VEC4, null );
+        ubo.addUniform( 1, GL_FLOAT_VEC4, "A" );
+        ubo.addUniform( 1, GL_FLOAT_VEC4, null );
+        assertEquals( 0, ubo.memberIndex( "A" ) );
+        assertEquals( 1, ubo.memberIndex( "" ) );
+    }
+
+
+    @Test
+    public void testVec3ArrayPadding() {
+        Ubo ubo = new Ubo();
+        ubo.addUniform( 1, GL_FLOAT_VEC4, "AMBIENT" );
+        UboMember pos = ubo.addUniform( 4, GL_FLOAT_VEC3, "POS" );
+        ubo.allocMembersBuffer();
+
+        float[] packed = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12 };
+        pos.setData( 0, packed, 0, 4 );
+
+        Vec3[] out = { new Vec3(), new Vec3(), new Vec3(), new Vec3() };
+        pos.get( 0, out, 0, 4 );
+        assertEquals( 4f, out[1].x, 0f );
+        assertEquals( 12f, out[3].z, 0f );
+
+        float[] back = new float[12];
+        pos.getData( 0, back, 0, 4 );
+        assertArrayEquals( packed, back, 0f );
+    }
+
+
+    @Test
+    public void benchMat4Array() {
+        Ubo ubo = new Ubo();
+        UboMember mats = ubo.addUniform( MAT_NUM, GL_FLOAT_MAT4, "BONES" );
+        ubo.allocMembersBuffer();
+
+        Mat4[] vals = randMats( new Random( 1 ), MAT_NUM );
+        ByteBuffer legacy = DrawUtil.alloc( ubo.dataSize() );
+        final int iters = 2000;
+
+        // Warm up both paths.
+        for( int i = 0; i < iters; i++ ) {
+            writePerElement( vals, 0, 64, 16, legacy );
+            mats.set( 0, vals, 0, MAT_NUM );
+        }
+
+        long t0 = System.nanoTime();
+        for( int i = 0; i < iters; i++ ) {
+            writePerElement( vals, 0, 64, 16, legacy );
+        }
+        long t1 = System.nanoTime();
+        for( int i = 0; i < iters; i++ ) {
+            mats.set( 0, vals, 0, MAT_NUM );
+        }
+        long t2 = System.nanoTime();
+
+        System.out.format( "mat4[%d] per-element: %.2f us   bulk: %.2f us%n",
+                           MAT_NUM,
+                           ( t1 - t0 ) / 1000.0 / iters,
+                           ( t2 - t1 ) / 1000.0 / iters );
+        assertEquals( legacy, ubo.mBuf.duplicate() );
+    }
+
+
+    private static Mat4[] randMats( Random rand, int num ) {
+        Mat4[] ret = new Mat4[num];
+        for( int i = 0; i < num; i++ ) {
+            Mat4 m = new Mat4();
+            m.m00 = rand.nextFloat(); m.m01 = rand.nextFloat(); m.m02 = rand.nextFloat(); m.m03 = rand.nextFloat();
+            m.m10 = rand.nextFloat(); m.m11 = rand.nextFloat(); m.m12 = rand.nextFloat(); m.m13 = rand.nextFloat();
+            m.m20 = rand.nextFloat(); m.m21 = rand.nextFloat(); m.m22 = rand.nextFloat(); m.m23 = rand.nextFloat();
+            m.m30 = rand.nextFloat(); m.m31 = rand.nextFloat(); m.m32 = rand.nextFloat(); m.m33 = rand.nextFloat();
+            ret[i] = m;
+        }
+        return ret;
+    }
+
+    /**
+     * Absolute putFloat per component, as UboMember did before bulk copies.
+     */
+    private static void writePerElement( Mat4[] vals, int off, int arrStride, int matStride, ByteBuffer buf ) {
+        int pos = off;
+        for( Mat4 mat: vals ) {
+            int p = pos;
+            buf.putFloat( p +  0, mat.m00 );
+            buf.putFloat( p +  4, mat.m10 );
+            buf.putFloat( p +  8, mat.m20 );
+            buf.putFloat( p + 12, mat.m30 );
+            p += matStride;
+            buf.putFloat( p +  0, mat.m01 );
+            buf.putFloat( p +  4, mat.m11 );
+            buf.putFloat( p +  8, mat.m21 );
+            buf.putFloat( p + 12, mat.m31 );
+            p += matStride;
+            buf.putFloat( p +  0, mat.m02 );
+            buf.putFloat( p +  4, mat.m12 );
+            buf.putFloat( p +  8, mat.m22 );
+            buf.putFloat( p + 12, mat.m32 );
+            p += matStride;
+            buf.putFloat( p +  0, mat.m03 );
+            buf.putFloat( p +  4, mat.m13 );
+            buf.putFloat( p +  8, mat.m23 );
+            buf.putFloat( p + 12, mat.m33 );
+            pos += arrStride;
+        }
+    }
+
+}
@@ -0,0 +1,11 @@
+// Shared camera block. Layout must match bits.draw3d.DrawSetting.Camera.
+layout( std140 ) uniform CAMERA {
+	mat4 PROJ_MAT;
+	mat4 VIEW_MAT;
+	mat4 PROJ_VIEW_MAT;
+	mat4 INV_PROJ_MAT;
+	mat4 INV_VIEW_MAT;
+	mat4 INV_PROJ_VIEW_MAT;
+	mat3 NORM_MAT;
+	vec4 VIEWPORT;
+} cam;
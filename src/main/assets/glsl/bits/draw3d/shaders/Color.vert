@@ -1,6 +1,9 @@
 #version 330
 
-uniform mat4 PROJ_VIEW_MAT;
+#include "Camera.glsl"
+#ifdef FOG
+#include "Fog.glsl"
+#endif
 
 layout( location = 0 ) in vec4 inVert;
 layout( location = 1 ) in vec4 inColor;
@@ -9,7 +12,11 @@ smooth out vec4 color;
 
 
 void main() {
+	gl_Position = cam.PROJ_VIEW_MAT * inVert;
+#ifdef FOG
+	color = applyFog( cam.VIEW_MAT * inVert, inColor );
+#else
 	color = inColor;
-	gl_Position = PROJ_VIEW_MAT * inVert;
+#endif
 }
 
@@ -1,6 +1,6 @@
 #version 330
 
-uniform mat4 PROJ_VIEW_MAT;
+#include "Camera.glsl"
 
 layout( location = 0 ) in vec4 inVert;
 layout( location = 1 ) in vec4 inColor;
@@ -11,6 +11,6 @@ out VertData {
 
 void main() {
 	data.color = inColor;
-	gl_Position = PROJ_VIEW_MAT * inVert;
+	gl_Position = cam.PROJ_VIEW_MAT * inVert;
 }
 
@@ -0,0 +1,12 @@
+// Shared fog block. Layout must match bits.draw3d.DrawSetting.Fog.
+layout( std140 ) uniform FOG {
+	vec4 COLOR;
+	vec4 PARAMS; // (density, startDist)
+} fog;
+
+vec4 applyFog( vec4 eyeVert, vec4 color ) {
+	float fogCoord = length( eyeVert.xyz ) / eyeVert.w;
+	float fogFactor = exp( -fog.PARAMS.x * ( fogCoord - fog.PARAMS.y ) );
+	fogFactor = clamp( fogFactor, 0.0, 1.0 );
+	return mix( fog.COLOR, color, fogFactor );
+}
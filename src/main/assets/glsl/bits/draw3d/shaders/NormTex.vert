@@ -1,7 +1,6 @@
 #version 330
 
-uniform mat4 PROJ_VIEW_MAT;
-uniform mat3 NORM_MAT;
+#include "Camera.glsl"
 
 layout( location = 0 ) in vec4 inVert;
 layout( location = 1 ) in vec3 inNorm;
@@ -12,6 +11,6 @@ smooth out vec3 norm;
 
 void main() {
 	tex = inTex;
-	norm = normalize( NORM_MAT * inNorm );
-	gl_Position = PROJ_VIEW_MAT * inVert;
+	norm = normalize( cam.NORM_MAT * inNorm );
+	gl_Position = cam.PROJ_VIEW_MAT * inVert;
 }
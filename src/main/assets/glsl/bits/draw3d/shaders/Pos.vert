@@ -1,9 +1,10 @@
 #version 330
 
-uniform mat4 PROJ_VIEW_MAT;
+#include "Camera.glsl"
+
 layout( location = 0 ) in vec4 vert;
 
 void main() {
-	gl_Position = PROJ_VIEW_MAT * vert;
+	gl_Position = cam.PROJ_VIEW_MAT * vert;
 }
 
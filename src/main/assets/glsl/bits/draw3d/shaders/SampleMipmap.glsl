@@ -0,0 +1,8 @@
+vec4 sampleMipmap( sampler2D unit, in vec2 tex ) {
+	vec2 size = textureSize( unit, 0 );
+	vec2 dx = dFdx( tex ) * size;
+	vec2 dy = dFdy( tex ) * size;
+	float level = max( dot( dx, dx ), dot( dy, dy ) );
+	level = 0.5 * log2( level );	
+	return textureLod( unit, tex.st, level );
+}
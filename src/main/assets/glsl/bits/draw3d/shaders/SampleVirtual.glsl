@@ -0,0 +1,11 @@
+// Samples a virtual texture. See bits.draw3d.VirtualTexture.
+// dims holds virtual width, virtual height, tile size and tile border, in pixels.
+vec4 sampleVirtual( sampler2D pageTable, sampler2D atlas, in vec2 tex, in vec4 dims ) {
+	vec2 pos = clamp( tex * dims.xy, vec2( 0.0 ), dims.xy - 0.5 );
+	ivec2 cell = min( ivec2( pos / dims.z ), textureSize( pageTable, 0 ) - 1 );
+	vec4 entry = floor( texelFetch( pageTable, cell, 0 ) * 255.0 + 0.5 );
+	float scale = exp2( entry.b );
+	vec2 inTile = mod( pos, dims.z * scale ) / scale;
+	vec2 p = entry.rg * ( dims.z + 2.0 * dims.w ) + dims.w + inTile;
+	return texture( atlas, p / vec2( textureSize( atlas, 0 ) ) );
+}
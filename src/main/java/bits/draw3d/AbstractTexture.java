@@ -33,9 +33,25 @@ abstract class AbstractTexture implements Texture {
 
     private final Map<Integer, Integer> mParams = new HashMap<>( 4 );
 
+    private boolean              mUseSampler = false;
+    private SamplerCache.Sampler mSampler    = null;
+
     private boolean mNeedInit  = true;
     private boolean mNeedAlloc = true;
 
+    private boolean mImmutable = false;
+    private boolean mStorage   = false;
+
+    // Dimensions of current immutable storage.
+    private int mStorageFormat = -1;
+    private int mStorageW      = 0;
+    private int mStorageH      = 0;
+    private int mStorageD      = 0;
+    private int mStorageLevels = 0;
+
+    // Cache managing residency of this texture, if any.
+    TextureCache mCache = null;
+
 
     protected AbstractTexture( int target ) {
         mTarget = target;
@@ -112,7 +128,7 @@ abstract class AbstractTexture implements Texture {
     }
 
     public void depth( int depth ) {
-        if( mTarget != GL_TEXTURE_3D ) {
+        if( mTarget != GL_TEXTURE_3D && mTarget != GL_TEXTURE_2D_ARRAY ) {
             return;
         }
 
@@ -133,6 +149,25 @@ abstract class AbstractTexture implements Texture {
         return mDepth;
     }
 
+    /**
+     * Enables immutable storage. When enabled, storage is allocated once with
+     * {@code glTexStorage2D/3D} and all data is uploaded as sub-images, which spares the
+     * driver from reallocating and revalidating the texture. Changing format or size
+     * then requires a new texture object, which is created automatically on next bind.
+     * Formats without a sized equivalent, such as GL_ALPHA, use mutable storage regardless.
+     */
+    public void immutable( boolean enable ) {
+        if( enable == mImmutable ) {
+            return;
+        }
+        mImmutable = enable;
+        fireAlloc();
+    }
+
+    public boolean immutable() {
+        return mImmutable;
+    }
+
     public Integer param( int key ) {
         return mParams.get( key );
     }
@@ -140,8 +175,33 @@ abstract class AbstractTexture implements Texture {
     public void param( int key, int value ) {
         Integer prev = mParams.put( key, value );
         if( prev == null || prev != value ) {
-            fireInit();
+            if( mUseSampler && SamplerCache.isSamplerParam( key ) ) {
+                // Resolved to a shared sampler on next bind. Texture object is untouched.
+                mSampler = null;
+            } else {
+                fireInit();
+            }
+        }
+    }
+
+    /**
+     * Enables sampler objects. When enabled, filter, wrap, LOD and compare parameters are
+     * applied through a shared sampler from {@code DrawEnv.mSamplers} instead of the texture
+     * object, and changing them no longer reinitializes the texture. The sampler is
+     * attached by {@link #bind(DrawEnv, int)} and detached by {@link #unbind(DrawEnv, int)}.
+     * Binding with {@link #bind(DrawEnv)} must query the active unit, so is slower.
+     */
+    public void useSampler( boolean enable ) {
+        if( enable == mUseSampler ) {
+            return;
         }
+        mUseSampler = enable;
+        mSampler = null;
+        fireInit();
+    }
+
+    public boolean useSampler() {
+        return mUseSampler;
     }
 
     @Override
@@ -154,37 +214,56 @@ abstract class AbstractTexture implements Texture {
 
     @Override
     public void dispose( DrawEnv g ) {
-        if( mId[0] != 0 ) {
-            GLES30.glDeleteTextures( 1, mId, 0 );
-            mId[0] = 0;
-        }
+        deleteId( g );
         mNeedInit  = true;
         mNeedAlloc = true;
+        mStorage   = false;
     }
 
     @Override
     public void bind( DrawEnv g ) {
+        if( mCache != null ) {
+            mCache.onBind( g, this );
+        }
         if( mNeedInit ) {
             doInit( g );
         }
-        GLES30.glBindTexture( mTarget, mId[0] );
+        g.mTexUnits.bindTexture( mTarget, mId[0] );
+        onBound( g, -1 );
+        // Also clears any sampler left on unit by another texture.
+        g.mSamplers.bind( activeUnit( g ), mUseSampler ? sampler( g ) : null );
     }
 
     @Override
     public void bind( DrawEnv g, int unit ) {
-        GLES30.glActiveTexture( GL_TEXTURE0 + unit );
-        bind( g );
+        if( mCache != null ) {
+            mCache.onBind( g, this );
+        }
+        if( mNeedInit ) {
+            g.mTexUnits.active( unit );
+            doInit( g );
+        }
+        // Does not switch units if texture is already bound to unit.
+        g.mTexUnits.bindTexture( unit, mTarget, mId[0] );
+        onBound( g, unit );
+        // Also clears any sampler left on unit by another texture.
+        g.mSamplers.bind( unit, mUseSampler ? sampler( g ) : null );
     }
 
     @Override
     public void unbind( DrawEnv g ) {
-        GLES30.glBindTexture( mTarget, 0 );
+        g.mTexUnits.bindTexture( mTarget, 0 );
+        if( mUseSampler ) {
+            g.mSamplers.bind( activeUnit( g ), null );
+        }
     }
 
     @Override
     public void unbind( DrawEnv g, int unit ) {
-        GLES30.glActiveTexture( GL_TEXTURE0 + unit );
-        unbind( g );
+        g.mTexUnits.bindTexture( unit, mTarget, 0 );
+        if( mUseSampler ) {
+            g.mSamplers.bind( unit, null );
+        }
     }
 
     @Override
@@ -206,6 +285,71 @@ abstract class AbstractTexture implements Texture {
 
     protected abstract void doAlloc( DrawEnv g  );
 
+    /**
+     * Called after texture is bound by either bind method, for subclasses that upload pending data.
+     *
+     * @param unit Unit texture was bound to, or -1 if bound to active unit. If not -1, the unit
+     *             might not be active, and must be made active before issuing texture commands.
+     */
+    protected void onBound( DrawEnv g, int unit ) {}
+
+    /**
+     * @return true if current texture object has immutable storage, in which case
+     *         {@link #doAlloc} must upload data with sub-image calls only.
+     */
+    protected boolean hasStorage() {
+        return mStorage;
+    }
+
+    /**
+     * @return number of mip levels to allocate for immutable storage.
+     */
+    protected int storageLevelNum() {
+        return 1;
+    }
+
+    /**
+     * @return sized internal format equivalent to the given format, or -1 if there is none.
+     */
+    static int sizedFormat( int intFormat, int dataType ) {
+        switch( intFormat ) {
+        case GL_RGBA:
+            switch( dataType ) {
+            case GL_UNSIGNED_BYTE:          return GL_RGBA8;
+            case GL_UNSIGNED_SHORT_4_4_4_4: return GL_RGBA4;
+            case GL_UNSIGNED_SHORT_5_5_5_1: return GL_RGB5_A1;
+            case GL_HALF_FLOAT:             return GL_RGBA16F;
+            case GL_FLOAT:                  return GL_RGBA32F;
+            default:                        return -1;
+            }
+        case GL_RGB:
+            switch( dataType ) {
+            case GL_UNSIGNED_BYTE:          return GL_RGB8;
+            case GL_UNSIGNED_SHORT_5_6_5:   return GL_RGB565;
+            case GL_HALF_FLOAT:             return GL_RGB16F;
+            case GL_FLOAT:                  return GL_RGB32F;
+            default:                        return -1;
+            }
+        case GL_DEPTH_COMPONENT:
+            switch( dataType ) {
+            case GL_UNSIGNED_SHORT:         return GL_DEPTH_COMPONENT16;
+            case GL_UNSIGNED_INT:           return GL_DEPTH_COMPONENT24;
+            case GL_FLOAT:                  return GL_DEPTH_COMPONENT32F;
+            default:                        return -1;
+            }
+        case GL_DEPTH_STENCIL:
+            return dataType == GL_UNSIGNED_INT_24_8 ? GL_DEPTH24_STENCIL8 : -1;
+        case GL_ALPHA:
+        case GL_LUMINANCE:
+        case GL_LUMINANCE_ALPHA:
+        case -1:
+            return -1;
+        default:
+            // Already sized.
+            return intFormat;
+        }
+    }
+
 
     private void doInit( DrawEnv g ) {
         if( !mNeedInit ) {
@@ -214,6 +358,12 @@ abstract class AbstractTexture implements Texture {
 
         mNeedInit = false;
 
+        if( mNeedAlloc && mStorage && !storageMatches() ) {
+            // Immutable storage cannot be respecified.
+            deleteId( g );
+            mStorage = false;
+        }
+
         if( mId[0] == 0 ) {
             GLES30.glGenTextures( 1, mId, 0 );
             if( mId[0] == 0 ) {
@@ -221,9 +371,12 @@ abstract class AbstractTexture implements Texture {
             }
         }
 
-        GLES30.glBindTexture( mTarget, mId[0] );
+        g.mTexUnits.bindTexture( mTarget, mId[0] );
         if( !mParams.isEmpty() ) {
             for( Map.Entry<Integer, Integer> e : mParams.entrySet() ) {
+                if( mUseSampler && SamplerCache.isSamplerParam( e.getKey() ) ) {
+                    continue;
+                }
                 GLES30.glTexParameteri( mTarget, e.getKey(), e.getValue() );
             }
         }
@@ -231,10 +384,79 @@ abstract class AbstractTexture implements Texture {
         if( mNeedAlloc ) {
             mNeedAlloc = false;
             if( hasSize() ) {
+                if( mImmutable ) {
+                    allocStorage();
+                }
                 doAlloc( g );
                 g.checkErr();
             }
         }
     }
 
+
+    private boolean storageMatches() {
+        return mImmutable &&
+               mStorageFormat == sizedFormat( mIntFormat, mDataType ) &&
+               mStorageW == mWidth &&
+               mStorageH == mHeight &&
+               mStorageD == mDepth &&
+               mStorageLevels == Math.max( 1, storageLevelNum() );
+    }
+
+
+    private void allocStorage() {
+        if( mStorage ) {
+            // Existing storage matches. Data will be uploaded as sub-images.
+            return;
+        }
+        int sized = sizedFormat( mIntFormat, mDataType );
+        if( sized == -1 || mWidth <= 0 || mHeight <= 0 || mDepth <= 0 ) {
+            return;
+        }
+        int levels = Math.max( 1, storageLevelNum() );
+        if( mTarget == GL_TEXTURE_3D || mTarget == GL_TEXTURE_2D_ARRAY ) {
+            GLES30.glTexStorage3D( mTarget, levels, sized, mWidth, mHeight, mDepth );
+        } else {
+            GLES30.glTexStorage2D( mTarget, levels, sized, mWidth, mHeight );
+        }
+        mStorage       = true;
+        mStorageFormat = sized;
+        mStorageW      = mWidth;
+        mStorageH      = mHeight;
+        mStorageD      = mDepth;
+        mStorageLevels = levels;
+    }
+
+
+    private void deleteId( DrawEnv g ) {
+        if( mId[0] != 0 ) {
+            g.mTexUnits.onDelete( mId[0] );
+            GLES30.glDeleteTextures( 1, mId, 0 );
+            mId[0] = 0;
+        }
+    }
+
+
+    /**
+     * @return active texture unit. If not tracked, queries GL once and starts tracking it.
+     */
+    private static int activeUnit( DrawEnv g ) {
+        int unit = g.mTexUnits.active();
+        if( unit < 0 ) {
+            int[] arr = { 0 };
+            GLES30.glGetIntegerv( GL_ACTIVE_TEXTURE, arr, 0 );
+            unit = arr[0] - GL_TEXTURE0;
+            g.mTexUnits.active( unit );
+        }
+        return unit;
+    }
+
+
+    private SamplerCache.Sampler sampler( DrawEnv g ) {
+        if( mSampler == null || mSampler.mId == 0 ) {
+            mSampler = g.mSamplers.sampler( g, mParams );
+        }
+        return mSampler;
+    }
+
 }
@@ -0,0 +1,581 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Loads Texture2 objects without stalling the GL thread.
+ *
+ * <p>Images are decoded and converted to GL pixel formats on a bounded pool of worker
+ * threads, into staging buffers taken from a {@link BufferPool}. Converted images are
+ * queued for upload, and {@link #update} uploads queued images on the GL thread until
+ * a per-frame time budget is spent. Both the worker queue and the upload queue are
+ * ordered by priority, then by submission order.
+ *
+ * <p>Each call to {@link #load} returns a {@link Request}, which acts as a Future
+ * of the texture and may be used to cancel the load or change its priority. An
+ * optional {@link Callback} is notified on the GL thread when the load finishes.
+ * Because uploads occur in {@link #update}, {@code Request.get()} must never be
+ * called on the GL thread.
+ *
+ * <p>Typical use: <pre>{@code
+ * loader = new AsyncTextureLoader( 2 );
+ * Request req = loader.load( AsyncTextureLoader.fromAsset( assets, "tiles/a.png" ), 0, null, null );
+ * ...
+ * // Each frame, on GL thread:
+ * loader.update( d, 2000000L );
+ * }</pre>
+ *
+ * @author Philip DeCamp
+ */
+public class AsyncTextureLoader {
+
+    /**
+     * Provides a decoded bitmap. Called on a worker thread.
+     */
+    public interface Source {
+        Bitmap decode() throws IOException;
+
+        /**
+         * @return true if the loader should recycle the bitmap after conversion.
+         */
+        boolean recycle();
+    }
+
+
+    /**
+     * Receives results of a load. Called on the GL thread from {@link #update}.
+     */
+    public interface Callback {
+        void loaded( Request req, Texture2 tex );
+        void failed( Request req, Throwable err );
+    }
+
+
+    private static final int PENDING    = 0;
+    private static final int CONVERTING = 1;
+    private static final int READY      = 2;
+    private static final int DONE       = 3;
+    private static final int FAILED     = 4;
+    private static final int CANCELLED  = 5;
+
+
+    private final BufferPool         mPool;
+    private final ThreadPoolExecutor mExec;
+    private final PriorityBlockingQueue<Request> mReady = new PriorityBlockingQueue<>();
+    private final AtomicLong mSeq = new AtomicLong( 0 );
+
+    private final ThreadLocal<int[]> mWork = new ThreadLocal<>();
+
+    private PixelUploadRing mRing = null;
+
+    private int  mUploadNum        = 0;
+    private long mUploadBytes      = 0;
+    private long mTotalUploadNanos = 0;
+
+
+    public AsyncTextureLoader( int threadNum ) {
+        this( threadNum, null );
+    }
+
+    /**
+     * @param threadNum Number of worker threads used for decoding and conversion.
+     * @param optPool   Pool of staging buffers. If {@code null}, a private pool is created.
+     */
+    public AsyncTextureLoader( int threadNum, BufferPool optPool ) {
+        mPool = optPool != null ? optPool : new BufferPool();
+        threadNum = Math.max( 1, threadNum );
+        mExec = new ThreadPoolExecutor( threadNum,
+                                        threadNum,
+                                        0L,
+                                        TimeUnit.MILLISECONDS,
+                                        new PriorityBlockingQueue<Runnable>(),
+                                        new ThreadFactory() {
+                                            @Override
+                                            public Thread newThread( Runnable r ) {
+                                                Thread t = new Thread( r, "AsyncTextureLoader" );
+                                                t.setDaemon( true );
+                                                t.setPriority( Thread.NORM_PRIORITY - 1 );
+                                                return t;
+                                            }
+                                        } );
+    }
+
+
+    public static Source fromFile( final File file ) {
+        return new Source() {
+            @Override
+            public Bitmap decode() throws IOException {
+                Bitmap ret = BitmapFactory.decodeFile( file.getPath() );
+                if( ret == null ) {
+                    throw new IOException( "Could not decode image: " + file.getPath() );
+                }
+                return ret;
+            }
+
+            @Override
+            public boolean recycle() {
+                return true;
+            }
+        };
+    }
+
+
+    public static Source fromAsset( final AssetManager assets, final String path ) {
+        return new Source() {
+            @Override
+            public Bitmap decode() throws IOException {
+                Bitmap ret;
+                try( InputStream in = assets.open( path ) ) {
+                    ret = BitmapFactory.decodeStream( in );
+                }
+                if( ret == null ) {
+                    throw new IOException( "Could not decode image: " + path );
+                }
+                return ret;
+            }
+
+            @Override
+            public boolean recycle() {
+                return true;
+            }
+        };
+    }
+
+
+    public static Source fromResource( final Resources res, final int id ) {
+        return new Source() {
+            @Override
+            public Bitmap decode() throws IOException {
+                Bitmap ret = BitmapFactory.decodeResource( res, id );
+                if( ret == null ) {
+                    throw new IOException( "Could not decode resource: " + id );
+                }
+                return ret;
+            }
+
+            @Override
+            public boolean recycle() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * @param bitmap Already decoded bitmap. Will not be recycled.
+     */
+    public static Source fromBitmap( final Bitmap bitmap ) {
+        return new Source() {
+            @Override
+            public Bitmap decode() {
+                return bitmap;
+            }
+
+            @Override
+            public boolean recycle() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Submits an image for loading.
+     *
+     * @param source      Image to load.
+     * @param priority    Higher priorities are converted and uploaded first.
+     * @param optTex      Texture to receive image. If {@code null}, a new Texture2 is created.
+     * @param optCallback Notified on GL thread when load completes. May be {@code null}.
+     * @return request handle.
+     */
+    public Request load( Source source, int priority, Texture2 optTex, Callback optCallback ) {
+        Request req = new Request( source, priority, optTex != null ? optTex : new Texture2(), optCallback );
+        mExec.execute( req );
+        return req;
+    }
+
+    /**
+     * Uploads converted images. Must be called on the GL thread.
+     *
+     * @param d           Current DrawEnv.
+     * @param budgetNanos Time budget. No upload is started once the budget has been spent,
+     *                    but at least one upload is performed if any are ready.
+     * @return number of requests completed by this call.
+     */
+    public int update( DrawEnv d, long budgetNanos ) {
+        final long start = System.nanoTime();
+        int ret = 0;
+        boolean first = true;
+
+        while( first || System.nanoTime() - start < budgetNanos ) {
+            Request req = mReady.poll();
+            if( req == null ) {
+                break;
+            }
+            first = false;
+            ret++;
+
+            if( req.mState.get() == FAILED ) {
+                req.finish();
+                continue;
+            }
+            if( !req.mState.compareAndSet( READY, DONE ) ) {
+                // Cancelled after conversion.
+                req.releaseStaging();
+                req.finish();
+                continue;
+            }
+
+            long t0 = System.nanoTime();
+            try {
+                Texture2 tex = req.mTex;
+                ByteBuffer buf = req.mStaging;
+                tex.buffer( buf, req.mIntFormat, req.mFormat, req.mDataType, req.mWidth, req.mHeight, req.mWidth );
+                PixelUploadRing prevRing = tex.uploadRing();
+                if( mRing != null ) {
+                    tex.uploadRing( mRing );
+                }
+                try {
+                    tex.init( d );
+                } finally {
+                    tex.uploadRing( prevRing );
+                }
+                d.checkErr();
+                mUploadNum++;
+                mUploadBytes += buf.remaining();
+            } catch( RuntimeException ex ) {
+                req.mError = ex;
+                req.mState.set( FAILED );
+            }
+            mTotalUploadNanos += System.nanoTime() - t0;
+            req.releaseStaging();
+            req.finish();
+        }
+
+        return ret;
+    }
+
+    /**
+     * Sets ring used to upload images to textures with mutable storage, so that
+     * {@link #update} does not wait for the driver to copy each image. Images are
+     * uploaded from client memory when the ring is busy. The ring is not disposed
+     * by the loader. Must be called on the GL thread.
+     *
+     * @param optRing Upload ring, or {@code null} to upload from client memory.
+     */
+    public void uploadRing( PixelUploadRing optRing ) {
+        mRing = optRing;
+    }
+
+
+    public PixelUploadRing uploadRing() {
+        return mRing;
+    }
+
+    /**
+     * @return number of requests converted and waiting for upload.
+     */
+    public int readyNum() {
+        return mReady.size();
+    }
+
+    /**
+     * @return number of requests waiting for a worker thread.
+     */
+    public int pendingNum() {
+        return mExec.getQueue().size();
+    }
+
+
+    public int uploadCount() {
+        return mUploadNum;
+    }
+
+
+    public long uploadBytes() {
+        return mUploadBytes;
+    }
+
+    /**
+     * @return total time spent uploading on the GL thread.
+     */
+    public long totalUploadNanos() {
+        return mTotalUploadNanos;
+    }
+
+
+    public BufferPool bufferPool() {
+        return mPool;
+    }
+
+
+    /**
+     * Stops worker threads. Requests that have not been converted are cancelled.
+     * {@link #update} may still be called to upload or release converted images.
+     */
+    public void shutdown() {
+        for( Runnable r: mExec.shutdownNow() ) {
+            ((Request)r).cancelDrained();
+        }
+    }
+
+
+    private int[] workRow( int w ) {
+        int[] ret = mWork.get();
+        if( ret == null || ret.length < w ) {
+            ret = new int[w];
+            mWork.set( ret );
+        }
+        return ret;
+    }
+
+
+    private static int bytesPerPixel( Bitmap.Config config ) {
+        if( config == null ) {
+            return 4;
+        }
+        switch( config ) {
+        case ALPHA_8:
+            return 1;
+        case RGB_565:
+        case ARGB_4444:
+            return 2;
+        default:
+            return 4;
+        }
+    }
+
+
+
+    /**
+     * Handle for a submitted load.
+     */
+    public final class Request implements Runnable, Comparable<Request>, Future<Texture2> {
+
+        private final Source   mSource;
+        private final Texture2 mTex;
+        private final Callback mCallback;
+        private final long     mSeqNum;
+
+        private volatile int mPriority;
+
+        private final AtomicInteger  mState = new AtomicInteger( PENDING );
+        private final CountDownLatch mDone  = new CountDownLatch( 1 );
+
+        private volatile Throwable mError = null;
+
+        private ByteBuffer mStaging   = null;
+        private int        mIntFormat = 0;
+        private int        mFormat    = 0;
+        private int        mDataType  = 0;
+        private int        mWidth     = 0;
+        private int        mHeight    = 0;
+
+
+        Request( Source source, int priority, Texture2 tex, Callback callback ) {
+            mSource   = source;
+            mPriority = priority;
+            mTex      = tex;
+            mCallback = callback;
+            mSeqNum   = mSeq.getAndIncrement();
+        }
+
+
+        public Texture2 texture() {
+            return mTex;
+        }
+
+
+        public int priority() {
+            return mPriority;
+        }
+
+        /**
+         * Changes priority of request. Has no effect if image is already being converted or uploaded.
+         */
+        public void priority( int priority ) {
+            if( priority == mPriority ) {
+                return;
+            }
+            // Priority queues do not reorder in place, so remove and resubmit.
+            if( mExec.getQueue().remove( this ) ) {
+                mPriority = priority;
+                mExec.execute( this );
+            } else if( mReady.remove( this ) ) {
+                mPriority = priority;
+                mReady.add( this );
+            } else {
+                mPriority = priority;
+            }
+        }
+
+        /**
+         * @return error that caused load to fail, or {@code null}.
+         */
+        public Throwable error() {
+            return mError;
+        }
+
+        /**
+         * Cancels request. If the image has already been converted, its staging
+         * buffer is released on the next call to {@link AsyncTextureLoader#update}.
+         *
+         * @param mayInterruptIfRunning Ignored. Conversion is never interrupted.
+         */
+        @Override
+        public boolean cancel( boolean mayInterruptIfRunning ) {
+            while( true ) {
+                int s = mState.get();
+                if( s == DONE || s == FAILED || s == CANCELLED ) {
+                    return false;
+                }
+                if( mState.compareAndSet( s, CANCELLED ) ) {
+                    if( s == PENDING && mExec.getQueue().remove( this ) ) {
+                        mDone.countDown();
+                    }
+                    return true;
+                }
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mState.get() == CANCELLED;
+        }
+
+        @Override
+        public boolean isDone() {
+            return mDone.getCount() == 0;
+        }
+
+        @Override
+        public Texture2 get() throws InterruptedException, ExecutionException {
+            mDone.await();
+            return result();
+        }
+
+        @Override
+        public Texture2 get( long timeout, TimeUnit unit ) throws InterruptedException, ExecutionException, TimeoutException {
+            if( !mDone.await( timeout, unit ) ) {
+                throw new TimeoutException();
+            }
+            return result();
+        }
+
+        @Override
+        public void run() {
+            if( !mState.compareAndSet( PENDING, CONVERTING ) ) {
+                mDone.countDown();
+                return;
+            }
+
+            Bitmap bmp = null;
+            ByteBuffer buf = null;
+            try {
+                bmp = mSource.decode();
+                int w = bmp.getWidth();
+                int h = bmp.getHeight();
+                int[] format = new int[3];
+                buf = mPool.acquire( w * h * bytesPerPixel( bmp.getConfig() ) );
+                ByteBuffer out = DrawUtil.imageToBuffer( bmp, workRow( w ), buf, format );
+                if( out != buf ) {
+                    mPool.release( buf );
+                }
+                buf = null;
+                mStaging   = out;
+                mIntFormat = format[0];
+                mFormat    = format[1];
+                mDataType  = format[2];
+                mWidth     = w;
+                mHeight    = h;
+            } catch( Throwable t ) {
+                mError = t;
+                mState.compareAndSet( CONVERTING, FAILED );
+                if( buf != null ) {
+                    // Conversion failed before buffer was handed to request.
+                    mPool.release( buf );
+                }
+            } finally {
+                if( bmp != null && mSource.recycle() ) {
+                    bmp.recycle();
+                }
+            }
+
+            if( mState.compareAndSet( CONVERTING, READY ) || mState.get() == FAILED ) {
+                mReady.add( this );
+            } else {
+                // Cancelled during conversion.
+                releaseStaging();
+                mDone.countDown();
+            }
+        }
+
+        @Override
+        public int compareTo( Request r ) {
+            if( mPriority != r.mPriority ) {
+                return mPriority > r.mPriority ? -1 : 1;
+            }
+            return mSeqNum < r.mSeqNum ? -1 : ( mSeqNum == r.mSeqNum ? 0 : 1 );
+        }
+
+
+        /**
+         * Cancels a request that was removed from the queue by {@link #shutdown}
+         * and will never run. The latch is released even if {@link #cancel} was
+         * called first, as its queue removal may have lost to the drain.
+         */
+        void cancelDrained() {
+            mState.compareAndSet( PENDING, CANCELLED );
+            mDone.countDown();
+        }
+
+
+        void releaseStaging() {
+            ByteBuffer buf = mStaging;
+            mStaging = null;
+            mPool.release( buf );
+        }
+
+
+        void finish() {
+            if( mCallback != null ) {
+                int s = mState.get();
+                if( s == DONE ) {
+                    mCallback.loaded( this, mTex );
+                } else if( s == FAILED ) {
+                    mCallback.failed( this, mError );
+                }
+            }
+            mDone.countDown();
+        }
+
+
+        private Texture2 result() throws ExecutionException {
+            switch( mState.get() ) {
+            case DONE:
+                return mTex;
+            case FAILED:
+                throw new ExecutionException( mError );
+            default:
+                throw new CancellationException();
+            }
+        }
+    }
+
+}
@@ -23,6 +23,8 @@ public class AutoloadProgram extends Program {
     protected List<Uniform>         mUniforms;
     protected List<UniformBlock>    mBlocks;
 
+    private NameIndex mUniformIndex = null;
+
 
     private List<DrawTask> mOnBind = null;
 
@@ -88,16 +90,65 @@ public class AutoloadProgram extends Program {
      * @return uniform with given name, or {@code null} if not exists.
      */
     public Uniform uniform( String name ) {
-        for( Uniform u: mUniforms ) {
-            if( name.equals( u.mName ) ) {
-                return u;
+        int handle = mUniformIndex.get( name );
+        return handle < 0 ? null : mUniforms.get( handle );
+    }
+
+    /**
+     * Not available until initialized. Resolves a uniform name to a handle that
+     * remains valid until the program is reinitialized. Code that accesses uniforms
+     * every frame should resolve handles once and use {@link #uniform(int)}.
+     *
+     * @return handle of uniform with given name, or -1 if not exists.
+     */
+    public int uniformHandle( String name ) {
+        return mUniformIndex.get( name );
+    }
+
+    /**
+     * @param handle Handle returned by {@link #uniformHandle}.
+     */
+    public Uniform uniform( int handle ) {
+        return mUniforms.get( handle );
+    }
+
+    /**
+     * @return total number of uniform uploads performed by this program since counts were last reset.
+     * @see Uniform#uploadCount()
+     */
+    public int uniformUploadCount() {
+        int ret = 0;
+        if( mUniforms != null ) {
+            for( Uniform u: mUniforms ) {
+                ret += u.uploadCount();
             }
         }
-        return null;
+        return ret;
     }
 
+    /**
+     * @return total number of uniform uploads skipped by this program because the value had not changed.
+     * @see Uniform#skipCount()
+     */
+    public int uniformSkipCount() {
+        int ret = 0;
+        if( mUniforms != null ) {
+            for( Uniform u: mUniforms ) {
+                ret += u.skipCount();
+            }
+        }
+        return ret;
+    }
 
 
+    public void resetUniformCounts() {
+        if( mUniforms != null ) {
+            for( Uniform u: mUniforms ) {
+                u.resetCounts();
+            }
+        }
+    }
+
 
     public void addBindTask( DrawTask task ) {
         if( mOnBind == null ) {
@@ -110,15 +161,35 @@ public class AutoloadProgram extends Program {
     @Override
     public void init( DrawEnv d ) {
         super.init( d );
-        mAttribs  = Shaders.listAttributes( mId );
-        mUniforms = Shaders.listUniforms( mId );
-        mBlocks   = Shaders.listUniformBlocks( mId, mUniforms );
-
-        // Remove uniforms in blocks.
-        Iterator<Uniform> iter = mUniforms.iterator();
-        while( iter.hasNext() ) {
-            if( iter.next().mBlockIndex >= 0 ) {
-                iter.remove();
+
+        // Programs linked from identical sources share names, types and block layouts,
+        // so full introspection runs once per source. Locations and indices may differ
+        // between programs and are queried for each.
+        String key = Shaders.sourceKey( mShaders, d.mShaderMan.defaultVersionOverride() );
+        Shaders.Reflection layout = d.mShaderMan.reflection( key );
+        if( layout == null ) {
+            layout = Shaders.layoutOf( Shaders.reflect( mId ) );
+            d.mShaderMan.reflection( key, layout );
+        }
+        Shaders.Reflection ref = Shaders.locate( layout, mId );
+
+        mAttribs  = new ArrayList<>( ref.mAttribs );
+        mBlocks   = new ArrayList<>( ref.mBlocks );
+        mUniforms = new ArrayList<>( ref.mUniforms.size() );
+        for( Uniform u: ref.mUniforms ) {
+            // Skip uniforms in blocks.
+            if( u.mBlockIndex < 0 ) {
+                mUniforms.add( new Uniform( u ) );
+            }
+        }
+
+        mUniformIndex = new NameIndex( mUniforms.size() );
+        for( int i = 0; i < mUniforms.size(); i++ ) {
+            String name = mUniforms.get( i ).mName;
+            mUniformIndex.put( name, i );
+            // Arrays are reported as "name[0]". Allow lookup by plain name as well.
+            if( name.endsWith( "[0]" ) ) {
+                mUniformIndex.put( name.substring( 0, name.length() - 3 ), i );
             }
         }
 
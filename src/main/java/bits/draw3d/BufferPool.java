@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+
+/**
+ * Thread-safe pool of direct, native-ordered ByteBuffers used as staging memory
+ * for pixel data. Buffer capacities are rounded up to powers of two so that
+ * buffers of similar size may be reused. Released buffers are retained until
+ * the total capacity of retained buffers would exceed a cap, after which they
+ * are left to the garbage collector.
+ *
+ * @author Philip DeCamp
+ */
+public final class BufferPool {
+
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 32L * 1024L * 1024L;
+
+    private static final int MIN_SHIFT = 12;
+
+    @SuppressWarnings( "unchecked" )
+    private final ArrayDeque<ByteBuffer>[] mBuckets = new ArrayDeque[32];
+
+    private final long mMaxRetainedBytes;
+    private       long mRetainedBytes = 0;
+
+    private int mAllocNum = 0;
+    private int mReuseNum = 0;
+
+
+    public BufferPool() {
+        this( DEFAULT_MAX_RETAINED_BYTES );
+    }
+
+
+    public BufferPool( long maxRetainedBytes ) {
+        mMaxRetainedBytes = maxRetainedBytes;
+    }
+
+    /**
+     * @param bytes Required size.
+     * @return direct buffer with {@code position == 0} and {@code limit == bytes}.
+     */
+    public ByteBuffer acquire( int bytes ) {
+        final int shift = shiftFor( bytes );
+        ByteBuffer ret = null;
+        synchronized( this ) {
+            ArrayDeque<ByteBuffer> bucket = mBuckets[shift];
+            if( bucket != null ) {
+                ret = bucket.pollLast();
+            }
+            if( ret != null ) {
+                mRetainedBytes -= ret.capacity();
+                mReuseNum++;
+            } else {
+                mAllocNum++;
+            }
+        }
+        if( ret == null ) {
+            ret = DrawUtil.alloc( 1 << shift );
+        }
+        ret.clear().limit( bytes );
+        return ret;
+    }
+
+    /**
+     * Returns buffer to pool. The buffer must have been obtained from {@link #acquire}
+     * and must not be used after release.
+     */
+    public void release( ByteBuffer buf ) {
+        if( buf == null ) {
+            return;
+        }
+        final int cap = buf.capacity();
+        if( Integer.bitCount( cap ) != 1 ) {
+            return;
+        }
+        final int shift = Integer.numberOfTrailingZeros( cap );
+        synchronized( this ) {
+            if( mRetainedBytes + cap > mMaxRetainedBytes ) {
+                return;
+            }
+            ArrayDeque<ByteBuffer> bucket = mBuckets[shift];
+            if( bucket == null ) {
+                bucket = new ArrayDeque<>();
+                mBuckets[shift] = bucket;
+            }
+            bucket.addLast( buf );
+            mRetainedBytes += cap;
+        }
+    }
+
+    /**
+     * Drops all retained buffers.
+     */
+    public synchronized void clear() {
+        for( ArrayDeque<ByteBuffer> b: mBuckets ) {
+            if( b != null ) {
+                b.clear();
+            }
+        }
+        mRetainedBytes = 0;
+    }
+
+
+    public synchronized long retainedBytes() {
+        return mRetainedBytes;
+    }
+
+    /**
+     * @return number of buffers allocated because no pooled buffer was available.
+     */
+    public synchronized int allocCount() {
+        return mAllocNum;
+    }
+
+    /**
+     * @return number of acquisitions satisfied by pooled buffers.
+     */
+    public synchronized int reuseCount() {
+        return mReuseNum;
+    }
+
+
+    private static int shiftFor( int bytes ) {
+        if( bytes < 0 || bytes > ( 1 << 30 ) ) {
+            throw new IllegalArgumentException( "Invalid buffer size: " + bytes );
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros( Math.max( 1, bytes ) - 1 );
+        return Math.max( MIN_SHIFT, shift );
+    }
+
+}
@@ -47,11 +47,8 @@ public enum ByteAlignment {
         }
 
         public int arrayStride( MemberType type, int arrayLen ) {
-            if( type.rows() == 1 ) {
-                return size( type.componentType(), arrayLen );
-            } else {
-                return arrayLen * size( type.componentType(), 4 );
-            }
+            // Every array element and every matrix column is padded to a vec4.
+            return arrayLen * type.cols() * size( type.componentType(), 4 );
         }
 
         public int matrixStride( MemberType type ) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Texture loaded from a {@link KtxFile}, typically holding ETC2, EAC or ASTC
+ * compressed data. Every mip level stored in the file is uploaded directly from the
+ * memory-mapped file with {@code glCompressedTexImage2D} or {@code glCompressedTexImage3D}.
+ * Supports 2D textures, 2D arrays, 3D textures and cube maps.
+ *
+ * <p>The file remains mapped after upload, so the texture may be disposed and
+ * reloaded without reading the file again.
+ *
+ * @author Philip DeCamp
+ */
+public class CompressedTexture extends AbstractTexture {
+
+    public static CompressedTexture load( File file ) throws IOException {
+        return new CompressedTexture( KtxFile.open( file ) );
+    }
+
+
+    private KtxFile mKtx;
+
+
+    public CompressedTexture( KtxFile ktx ) {
+        super( ktx.target() );
+        buffer( ktx );
+    }
+
+
+    public KtxFile ktx() {
+        return mKtx;
+    }
+
+    /**
+     * @param ktx File to upload. Must have same target as texture.
+     */
+    public synchronized void buffer( KtxFile ktx ) {
+        if( ktx.target() != target() ) {
+            throw new IllegalArgumentException( "KTX target does not match texture target." );
+        }
+        mKtx = ktx;
+        super.format( ktx.internalFormat(), ktx.format(), ktx.dataType() );
+        super.size( ktx.width(), ktx.height() );
+        if( target() == GL_TEXTURE_3D ) {
+            super.depth( ktx.depth() );
+        } else if( target() == GL_TEXTURE_2D_ARRAY ) {
+            super.depth( ktx.layerNum() );
+        }
+        int levels = ktx.levelNum();
+        param( GL_TEXTURE_MAX_LEVEL, levels - 1 );
+        param( GL_TEXTURE_MIN_FILTER, levels > 1 ? GL_LINEAR_MIPMAP_LINEAR : GL_LINEAR );
+        fireAlloc();
+    }
+
+    @Override
+    protected synchronized void doAlloc( DrawEnv g ) {
+        final KtxFile ktx = mKtx;
+        final int target = target();
+        final int intFormat = internalFormat();
+        final boolean compressed = ktx.isCompressed();
+        final boolean storage = hasStorage();
+
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+        for( int level = 0; level < ktx.levelNum(); level++ ) {
+            final int w = ktx.width( level );
+            final int h = ktx.height( level );
+
+            if( target == GL_TEXTURE_3D || target == GL_TEXTURE_2D_ARRAY ) {
+                int d = target == GL_TEXTURE_3D ? ktx.depth( level ) : ktx.layerNum();
+                ByteBuffer data = ktx.levelData( level );
+                if( storage ) {
+                    if( compressed ) {
+                        GLES30.glCompressedTexSubImage3D( target, level, 0, 0, 0, w, h, d, intFormat, data.remaining(), data );
+                    } else {
+                        GLES30.glTexSubImage3D( target, level, 0, 0, 0, w, h, d, format(), dataType(), data );
+                    }
+                } else if( compressed ) {
+                    GLES30.glCompressedTexImage3D( target, level, intFormat, w, h, d, 0, data.remaining(), data );
+                } else {
+                    GLES30.glTexImage3D( target, level, intFormat, w, h, d, 0, format(), dataType(), data );
+                }
+                continue;
+            }
+
+            for( int face = 0; face < ktx.faceNum(); face++ ) {
+                int faceTarget = target == GL_TEXTURE_CUBE_MAP ? GL_TEXTURE_CUBE_MAP_POSITIVE_X + face : target;
+                ByteBuffer data = ktx.data( level, 0, face );
+                if( storage ) {
+                    if( compressed ) {
+                        GLES30.glCompressedTexSubImage2D( faceTarget, level, 0, 0, w, h, intFormat, data.remaining(), data );
+                    } else {
+                        GLES30.glTexSubImage2D( faceTarget, level, 0, 0, w, h, format(), dataType(), data );
+                    }
+                } else if( compressed ) {
+                    GLES30.glCompressedTexImage2D( faceTarget, level, intFormat, w, h, 0, data.remaining(), data );
+                } else {
+                    GLES30.glTexImage2D( faceTarget, level, intFormat, w, h, 0, format(), dataType(), data );
+                }
+            }
+        }
+    }
+
+    @Override
+    protected int storageLevelNum() {
+        return mKtx.levelNum();
+    }
+
+}
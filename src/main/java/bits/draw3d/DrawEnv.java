@@ -29,6 +29,11 @@ public class DrawEnv {
     public final MatStack mColorMat = new MatStack();
     public final MatStack mTexMat   = new MatStack();
 
+    /**
+     * Inverses and products of {@link #mProj} and {@link #mView}, recomputed only when those change.
+     */
+    public final MatCache mMatCache = new MatCache( this );
+
     public final DrawSetting.Program mProgram    = new DrawSetting.Program( this );
     public final DrawSetting.Buffer  mArrayBuf   = new DrawSetting.Buffer( this, GL_ARRAY_BUFFER );
     public final DrawSetting.Buffer  mElementBuf = new DrawSetting.Buffer( this, GL_ELEMENT_ARRAY_BUFFER );
@@ -36,6 +41,7 @@ public class DrawEnv {
 
     public final DrawSetting.Blend         mBlend         = new DrawSetting.Blend( this );
     public final DrawSetting.BlendColor    mBlendColor    = new DrawSetting.BlendColor( this );
+    public final DrawSetting.Camera        mCamera        = new DrawSetting.Camera( this );
     public final DrawSetting.ColorMask     mColorMask     = new DrawSetting.ColorMask( this );
     public final DrawSetting.CullFace      mCullFace      = new DrawSetting.CullFace( this );
     public final DrawSetting.DepthMask     mDepthMask     = new DrawSetting.DepthMask( this );
@@ -51,6 +57,8 @@ public class DrawEnv {
 
     public final ShaderManager mShaderMan;
     public final FontManager   mFontMan   = new FontManager();
+    public final SamplerCache  mSamplers  = new SamplerCache();
+    public final TextureUnits  mTexUnits  = new TextureUnits();
 
     public final Vec2        mWorkVec2   = new Vec2();
     public final Vec3        mWorkVec3   = new Vec3();
@@ -59,6 +67,7 @@ public class DrawEnv {
     public final Mat4        mWorkMat4   = new Mat4();
     public final ByteBuffer  mWorkBytes  = DrawUtil.alloc( 16 * 4 );
     public final FloatBuffer mWorkFloats = DrawUtil.allocFloats( 16 );
+    public final float[]     mWorkArr    = new float[16];
     public final Rect        mWorkRect   = new Rect();
 
     private final DrawStream mStream = new DrawStream();
@@ -93,6 +102,16 @@ public class DrawEnv {
         return mShaderMan;
     }
 
+
+    public SamplerCache samplerCache() {
+        return mSamplers;
+    }
+
+
+    public TextureUnits textureUnits() {
+        return mTexUnits;
+    }
+
     /**
      * Should be called every frame.
 
@@ -112,6 +131,17 @@ public class DrawEnv {
         mStream.init( this );
     }
 
+    /**
+     * Must be called when a GL context is created, including after context loss,
+     * typically from {@code GLSurfaceView.Renderer.onSurfaceCreated}. Forgets cached
+     * bindings and object ids that belonged to any previous context.
+     */
+    public void onContextCreated() {
+        mTexUnits.invalidate();
+        mSamplers.reset();
+        mShaderMan.onContextCreated();
+    }
+
 
     public void dispose() {}
 
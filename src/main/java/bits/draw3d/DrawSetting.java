@@ -7,8 +7,7 @@
 package bits.draw3d;
 
 import android.opengl.GLES30;
-import bits.vec.Vec2;
-import bits.vec.Vec4;
+import bits.vec.*;
 
 import java.util.Arrays;
 
@@ -222,6 +221,140 @@ public interface DrawSetting {
     }
 
 
+    /**
+     * Holds the standard CAMERA uniform block, which provides the projection and
+     * view matrices, their derivatives, and the viewport to all programs that
+     * declare it:
+     * <pre>{@code
+     * layout( std140 ) uniform CAMERA {
+     *     mat4 PROJ_MAT;
+     *     mat4 VIEW_MAT;
+     *     mat4 PROJ_VIEW_MAT;
+     *     mat4 INV_PROJ_MAT;
+     *     mat4 INV_VIEW_MAT;
+     *     mat4 INV_PROJ_VIEW_MAT;
+     *     mat3 NORM_MAT;
+     *     vec4 VIEWPORT;
+     * } cam;
+     * }</pre>
+     *
+     * The block is filled from {@link DrawEnv#mProj}, {@link DrawEnv#mView} and
+     * {@link DrawEnv#mViewport} and uploaded once, no matter how many programs read it.
+     * {@link bits.draw3d.camera.CameraNode} applies it automatically. Programs that declare
+     * the block call {@link #update} on bind, which only uploads if the matrices have
+     * changed since the last upload.
+     */
+    class Camera implements DrawSetting {
+
+        private final DrawEnv mEnv;
+
+        public final Ubo       mUbo;
+        public final UboMember mProjMat;
+        public final UboMember mViewMat;
+        public final UboMember mProjViewMat;
+        public final UboMember mInvProjMat;
+        public final UboMember mInvViewMat;
+        public final UboMember mInvProjViewMat;
+        public final UboMember mNormMat;
+        public final UboMember mViewport;
+
+        private       int     mLastProj     = -1;
+        private       int     mLastView     = -1;
+        private final Vec4    mLastViewport = new Vec4();
+        private       boolean mNeedUpdate   = true;
+
+
+        public Camera( DrawEnv d ) {
+            mEnv = d;
+            mUbo = new Ubo();
+            mUbo.bindLocation( Uniforms.defaultBlockBinding( "CAMERA" ) );
+            mProjMat        = mUbo.addUniform( 1, GL_FLOAT_MAT4, Uniforms.PROJ_MAT );
+            mViewMat        = mUbo.addUniform( 1, GL_FLOAT_MAT4, Uniforms.VIEW_MAT );
+            mProjViewMat    = mUbo.addUniform( 1, GL_FLOAT_MAT4, Uniforms.PROJ_VIEW_MAT );
+            mInvProjMat     = mUbo.addUniform( 1, GL_FLOAT_MAT4, Uniforms.INV_PROJ_MAT );
+            mInvViewMat     = mUbo.addUniform( 1, GL_FLOAT_MAT4, Uniforms.INV_VIEW_MAT );
+            mInvProjViewMat = mUbo.addUniform( 1, GL_FLOAT_MAT4, Uniforms.INV_PROJ_VIEW_MAT );
+            mNormMat        = mUbo.addUniform( 1, GL_FLOAT_MAT3, Uniforms.NORM_MAT );
+            mViewport       = mUbo.addUniform( 1, GL_FLOAT_VEC4, Uniforms.VIEWPORT );
+            mUbo.allocMembersBuffer();
+        }
+
+
+        public int bindLocation() {
+            return mUbo.bindLocation();
+        }
+
+
+        public void bindLocation( int loc ) {
+            mUbo.bindLocation( loc );
+            mNeedUpdate = true;
+        }
+
+        /**
+         * Uploads block if projection, view or viewport have changed since last upload.
+         */
+        public void update() {
+            if( mNeedUpdate || isStale() ) {
+                apply();
+            }
+        }
+
+        @Override
+        public void push() {}
+
+        @Override
+        public void pop() {
+            apply();
+        }
+
+        @Override
+        public int stackDepth() {
+            return 0;
+        }
+
+        /**
+         * Fills block from current state of DrawEnv and uploads it.
+         */
+        @Override
+        public void apply() {
+            final DrawEnv d = mEnv;
+            final MatCache cache = d.mMatCache;
+
+            mProjMat.set( d.mProj.get() );
+            mViewMat.set( d.mView.get() );
+            mProjViewMat.set( cache.projView() );
+            mInvProjViewMat.set( cache.invProjView() );
+            mInvProjMat.set( cache.invProj() );
+            mInvViewMat.set( cache.invView() );
+            mNormMat.set( cache.normMat() );
+
+            Vec4 vp = mLastViewport;
+            vp.x = d.mViewport.mX;
+            vp.y = d.mViewport.mY;
+            vp.z = d.mViewport.mW;
+            vp.w = d.mViewport.mH;
+            mViewport.set( vp );
+
+            mLastProj   = cache.projVersion();
+            mLastView   = cache.viewVersion();
+            mNeedUpdate = false;
+            mUbo.bind( d );
+        }
+
+
+        private boolean isStale() {
+            final DrawEnv d = mEnv;
+            final Vec4 vp = mLastViewport;
+            return vp.x != d.mViewport.mX ||
+                   vp.y != d.mViewport.mY ||
+                   vp.z != d.mViewport.mW ||
+                   vp.w != d.mViewport.mH ||
+                   mLastView != d.mMatCache.viewVersion() ||
+                   mLastProj != d.mMatCache.projVersion();
+        }
+    }
+
+
     class ColorMask extends Stack<ColorMask> {
         public boolean mRed;
         public boolean mGreen;
@@ -976,6 +1109,7 @@ public interface DrawSetting {
 
 
         public void delete( int id ) {
+            mEnv.mTexUnits.onDelete( id );
             mWork[0] = id;
             GLES30.glDeleteTextures( 1, mWork, 0 );
         }
@@ -988,7 +1122,7 @@ public interface DrawSetting {
 
         @Override
         public void apply() {
-            GLES30.glBindTexture( mTarget, mId );
+            mEnv.mTexUnits.bindTexture( mTarget, mId );
         }
 
 
@@ -131,7 +131,7 @@ public class DrawStream {
      * @param vertWriter BoWriter to serialize data in configuration.
      */
     public void createCustomConfig( Object key, Program prog, BoWriter<? super DrawVert> vertWriter ) {
-        Writer writer = new Writer( prog, vertWriter );
+        Writer writer = new Writer( prog, vertWriter, false );
         Writer prev = mWriters.put( key, writer );
         if( prev != null ) {
             prev.deref();
@@ -154,6 +154,34 @@ public class DrawStream {
 
 
 
+    /**
+     * @param chosen Config produced by {@link BasicShaderConfig#chooseAvailable}.
+     * @return true if a program has already been created for {@code chosen}.
+     */
+    public boolean hasBasicConfig( BasicShaderConfig chosen ) {
+        return mWriters.containsKey( chosen );
+    }
+
+    /**
+     * Installs a prebuilt program for a basic configuration, so that it need not be
+     * compiled the first time the configuration is drawn. DrawStream must be initialized.
+     *
+     * @param chosen Config produced by {@link BasicShaderConfig#chooseAvailable}.
+     * @param prog   Program created by {@link BasicShaders}. If not yet initialized, it will be initialized here.
+     *               If installed, the stream takes ownership and releases the program with the configuration.
+     * @return true if installed, false if {@code chosen} already had a program, in which case {@code prog} is unused.
+     */
+    public boolean addBasicConfig( BasicShaderConfig chosen, BoProgram<DrawVert,?> prog ) {
+        if( mWriters.containsKey( chosen ) ) {
+            return false;
+        }
+        Writer writer = new Writer( prog.mProgram, prog.mVertWriter, true );
+        mWriters.put( new BasicShaderConfig( chosen ), writer );
+        return true;
+    }
+
+
+
     public void beginPoints() {
         mConfig.geomMode( GL_POINTS );
         begin( getWriter(), null, GL_POINTS, 1 );
@@ -407,7 +435,7 @@ public class DrawStream {
         }
 
         BoProgram<DrawVert,?> prog = BasicShaders.createProgram( mChosenConfig, mDraw.mShaderMan );
-        writer = new Writer( prog.mProgram, prog.mVertWriter );
+        writer = new Writer( prog.mProgram, prog.mVertWriter, true );
         mWriters.put( new BasicShaderConfig( mChosenConfig ), writer );
         return writer;
     }
@@ -419,19 +447,31 @@ public class DrawStream {
         public Program                    mProgram;
         public BoWriter<? super DrawVert> mVertWriter;
         public Vao                        mVao;
+        public boolean                    mOwnsProgram;
 
-        public Writer( Program program, BoWriter<? super DrawVert> writer ) {
+        /**
+         * @param ownsProgram If true, program and its shaders are released when writer is freed.
+         *                    Otherwise the program is only disposed.
+         */
+        public Writer( Program program, BoWriter<? super DrawVert> writer, boolean ownsProgram ) {
             mProgram = program;
+            mOwnsProgram = ownsProgram;
             mVertWriter = writer;
             mVao = new Vao( mVbo, null );
 
-            program.init( mDraw );
+            if( program.id() == 0 ) {
+                program.init( mDraw );
+            }
             writer.attributes( mVao );
         }
 
         @Override
         protected void freeObject() {
-            mProgram.dispose( mDraw );
+            if( mOwnsProgram ) {
+                mProgram.release( mDraw );
+            } else {
+                mProgram.dispose( mDraw );
+            }
             mVao.dispose( mDraw );
         }
     }
@@ -20,6 +20,8 @@ import static android.opengl.GLES30.*;
  */
 public class DrawUtil {
 
+    private static final ImageConverter CONVERTER = new ImageConverter();
+
     /**
      * @throws GLException if {@code gl.glGetError() != GL_NO_ERROR}
      */
@@ -100,14 +102,14 @@ public class DrawUtil {
         case ALPHA_8:
             out4[0] = GL_ALPHA;
             out4[1] = GL_ALPHA;
-            out4[2] = GL_UNSIGNED_SHORT;
+            out4[2] = GL_UNSIGNED_BYTE;
             out4[3] = 0;
             return true;
 
         case RGB_565:
             out4[0] = GL_RGB;
             out4[1] = GL_RGB;
-            out4[2] = GL_UNSIGNED_SHORT_5_5_5_1;
+            out4[2] = GL_UNSIGNED_SHORT_5_6_5;
             out4[3] = 0;
             return true;
 
@@ -130,6 +132,14 @@ public class DrawUtil {
         }
     }
 
+    /**
+     * @return converter used by the {@code imageTo*Buffer} methods, for reading throughput counts.
+     *         For parallel conversion, create an {@link ImageConverter} with an Executor.
+     */
+    public static ImageConverter imageConverter() {
+        return CONVERTER;
+    }
+
     /**
      * Converts a BitMap to a ByteBuffer of the smallest format possible.
      *
@@ -142,38 +152,13 @@ public class DrawUtil {
      * @param optFormat  [Optional][Out] if not null and {@code length >= 2}, will receive output format: <br>
      *                   optFormat[0] = internal format <br>
      *                   optFormat[1] = format <br>
-
-     * @return ByteBuffer containing unsigned 1-byte samples in RGBA format and sRGB colorub space.
-
-     *
+     *                   optFormat[2] = data type, if {@code length >= 3}
+     * @return ByteBuffer containing image in sRGB colorub space. RGB_565 and ARGB_4444 images are kept
+     *         as 16-bit GL_UNSIGNED_SHORT_5_6_5 and GL_UNSIGNED_SHORT_4_4_4_4 pixels. Other images
+     *         hold unsigned 1-byte samples.
      */
     public static ByteBuffer imageToBuffer( Bitmap image, int[] optWork, ByteBuffer optOut, int[] optFormat ) {
-        switch( image.getConfig() ) {
-        case ALPHA_8:
-            optOut = imageToAlphaBuffer( image, optWork, optOut );
-            if( optFormat != null && optFormat.length >= 2 ) {
-                optFormat[0] = GL_ALPHA;
-                optFormat[1] = GL_RED;
-            }
-            break;
-        case RGB_565:
-            optOut = imageToRgbBuffer( image, optWork, optOut );
-            if( optFormat != null && optFormat.length >= 2 ) {
-                optFormat[0] = GL_RGB;
-                optFormat[1] = GL_RGB;
-            }
-            break;
-        case ARGB_4444:
-        case ARGB_8888:
-        default:
-            optOut = imageToRgbaBuffer( image, optWork, optOut );
-            if( optFormat != null && optFormat.length >= 2 ) {
-                optFormat[0] = GL_RGBA;
-                optFormat[1] = GL_RGBA;
-            }
-        }
-
-        return optOut;
+        return CONVERTER.toBuffer( image, optOut, optFormat, optWork );
     }
 
     /**
@@ -185,32 +170,11 @@ public class DrawUtil {
      *                 {@code optOut.remaining() >= image.getWidth() * image.getHeight() *  4},
      *                 otherwise a new directly-allocated ByteBuffer will be created with
      *                 native byte order.
-     * @return ByteBuffer containing unsigned 1-byte samples in RGBA order and sRGB colorub space.
+     * @return ByteBuffer containing unsigned 1-byte samples in RGBA order and sRGB colorub space,
+     *         positioned at the first sample with limit set after the last.
      */
     public static ByteBuffer imageToRgbaBuffer( Bitmap image, int[] optWork, ByteBuffer optOut ) {
-        int w = image.getWidth();
-        int h = image.getHeight();
-        int[] row = optWork != null && optWork.length >= w ? optWork : new int[w];
-        ByteOrder order = ByteOrder.nativeOrder();
-
-        if( optOut != null && optOut.remaining() >= 4 * w * h ) {
-            optOut = ByteBuffer.allocateDirect( 4 * w * h );
-        } else {
-            order = optOut.order();
-        }
-
-        optOut.order( ByteOrder.BIG_ENDIAN );
-
-        for( int i = 0; i < h; i++ ) {
-            image.getPixels( row, 0,  w, 0, i, w, 1 );
-            for( int x = 0; x < w; x++ ) {
-                int v = row[x];
-                optOut.putInt( v << 8 | v >>> 24 );
-            }
-        }
-
-        optOut.order( order );
-        return optOut;
+        return CONVERTER.convert( image, optOut, ImageConverter.RGBA, ImageConverter.Dither.NONE, optWork );
     }
 
     /**
@@ -222,28 +186,11 @@ public class DrawUtil {
      *                 {@code optOut.remaining() >= image.getWidth() * image.getHeight() *  4},
      *                 otherwise a new directly-allocated ByteBuffer will be created with
      *                 native byte order.
-     * @return ByteBuffer containing unsigned 1-byte samples in RGB order and sRGB colorub space.
+     * @return ByteBuffer containing unsigned 1-byte samples in RGB order and sRGB colorub space,
+     *         positioned at the first sample with limit set after the last.
      */
     public static ByteBuffer imageToRgbBuffer( Bitmap image, int[] optWork, ByteBuffer optOut ) {
-        int w = image.getWidth();
-        int h = image.getHeight();
-        int[] row = optWork != null && optWork.length >= w ? optWork : new int[w];
-
-        if( optOut != null && optOut.remaining() >= 3 * w * h ) {
-            optOut = ByteBuffer.allocateDirect( 3 * w * h ).order( ByteOrder.nativeOrder() );
-        }
-
-        for( int i = 0; i < h; i++ ) {
-            image.getPixels( row, 0,  w, 0, i, w, 1 );
-            for( int x = 0; x < w; x++ ) {
-                int v = row[x];
-                optOut.put( (byte)( v >> 16 ) );
-                optOut.put( (byte)( v >>  8 ) );
-                optOut.put( (byte)(v) );
-            }
-        }
-
-        return optOut;
+        return CONVERTER.convert( image, optOut, ImageConverter.RGB, ImageConverter.Dither.NONE, optWork );
     }
 
     /**
@@ -255,26 +202,11 @@ public class DrawUtil {
      *                 {@code optOut.remaining() >= image.getWidth() * image.getHeight()},
      *                 otherwise a new directly-allocated ByteBuffer will be created with
      *                 native byte order.
-     * @return ByteBuffer containing unsigned 1-byte samples in sRGB colorub space.
+     * @return ByteBuffer containing unsigned 1-byte samples in sRGB colorub space,
+     *         positioned at the first sample with limit set after the last.
      */
     public static ByteBuffer imageToAlphaBuffer( Bitmap image, int[] optWork, ByteBuffer optOut ) {
-        int w = image.getWidth();
-        int h = image.getHeight();
-        int[] row = optWork != null && optWork.length >= w ? optWork : new int[w];
-
-        if( optOut != null && optOut.remaining() >= w * h ) {
-            optOut = ByteBuffer.allocateDirect( w * h ).order( ByteOrder.nativeOrder() );
-        }
-
-        for( int i = 0; i < h; i++ ) {
-            image.getPixels( row, 0,  w, 0, i, w, 1 );
-            for( int x = 0; x < w; x++ ) {
-                int v = row[x];
-                optOut.put( (byte)v );
-            }
-        }
-
-        return optOut;
+        return CONVERTER.convert( image, optOut, ImageConverter.ALPHA, ImageConverter.Dither.NONE, optWork );
     }
 
 }
@@ -21,4 +21,8 @@ public class Fake {
 
     public static final int GL_GEOMETRY_SHADER = 36313;
 
+    // ASTC formats from KHR_texture_compression_astc_ldr. Other block sizes follow in sequence.
+    public static final int GL_COMPRESSED_RGBA_ASTC_4x4         = 37808;
+    public static final int GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 = 37840;
+
 }
@@ -0,0 +1,556 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Converts Bitmaps to tightly packed buffers of GL pixel data.
+ *
+ * <p>When the layout of the Bitmap already matches the requested output, pixels are
+ * copied with a single {@code Bitmap.copyPixelsToBuffer} call. This applies to
+ * ALPHA_8 bitmaps, and to ARGB_8888 bitmaps that are opaque or when premultiplied
+ * output is allowed, since Android stores alpha bitmaps premultiplied. Otherwise rows
+ * are read in blocks with {@code getPixels}, swizzled in an int array, and written
+ * with bulk puts. Blocks of rows may be split among tasks on an Executor.
+ *
+ * <p>RGB_565 and ARGB_4444 bitmaps are kept in their 16-bit packed layouts, which GL
+ * reads as GL_UNSIGNED_SHORT_5_6_5 and GL_UNSIGNED_SHORT_4_4_4_4. Images may also
+ * be downconverted to a packed 16-bit type with {@link #toPacked}, optionally with
+ * ordered or error-diffusion dither to hide banding.
+ *
+ * <p>Output buffers may be provided by the caller, for example from a {@link BufferPool}.
+ * Returned buffers are positioned at the first sample with the limit set after the last.
+ * Instances are thread-safe and record throughput statistics.
+ *
+ * @author Philip DeCamp
+ */
+public class ImageConverter {
+
+    /**
+     * Dither applied when reducing samples to fewer bits.
+     */
+    public enum Dither {
+        /** Rounds each sample to nearest level. */
+        NONE,
+        /** Adds a 4x4 Bayer threshold pattern. Rows are independent, so may be converted in parallel. */
+        ORDERED,
+        /** Floyd-Steinberg error diffusion. Highest quality, but always converted on a single thread. */
+        DIFFUSION
+    }
+
+
+    private static final int[] BAYER4 = { 0,  8,  2, 10,
+                                         12,  4, 14,  6,
+                                          3, 11,  1,  9,
+                                         15,  7, 13,  5 };
+
+    private static final int BLOCK_PIXELS  = 16 * 1024;
+    private static final int MIN_TASK_ROWS = 32;
+
+    static final int RGBA     = 0;
+    static final int RGB      = 1;
+    static final int ALPHA    = 2;
+    static final int RGB565   = 3;
+    static final int RGBA4444 = 4;
+    static final int RGBA5551 = 5;
+
+
+    private final Executor mOptExec;
+    private final int      mTaskNum;
+
+    private volatile boolean mAllowPremultiplied = false;
+
+    private final AtomicLong mConvertNum = new AtomicLong( 0 );
+    private final AtomicLong mCopyNum    = new AtomicLong( 0 );
+    private final AtomicLong mPixelNum   = new AtomicLong( 0 );
+    private final AtomicLong mNanos      = new AtomicLong( 0 );
+
+
+    /**
+     * Creates converter that runs on the calling thread.
+     */
+    public ImageConverter() {
+        this( null, 1 );
+    }
+
+    /**
+     * @param optExec Executor on which to convert rows. If {@code null}, conversion runs on calling thread.
+     * @param taskNum Number of tasks into which each image is split, typically the number of threads.
+     */
+    public ImageConverter( Executor optExec, int taskNum ) {
+        mOptExec = optExec;
+        mTaskNum = Math.max( 1, taskNum );
+    }
+
+    /**
+     * @param allow If true, ARGB_8888 bitmaps with alpha may be copied directly, producing
+     *              premultiplied output. Otherwise output is never premultiplied.
+     */
+    public void allowPremultiplied( boolean allow ) {
+        mAllowPremultiplied = allow;
+    }
+
+
+    public boolean allowPremultiplied() {
+        return mAllowPremultiplied;
+    }
+
+    /**
+     * Converts a Bitmap to the smallest format that holds it without loss. RGB_565 and
+     * ARGB_4444 bitmaps remain 16 bits per pixel.
+     *
+     * @param optFormat [Optional][Out] if {@code length >= 2}, receives internal format and format.
+     *                  If {@code length >= 3}, also receives data type.
+     */
+    public ByteBuffer toBuffer( Bitmap image, ByteBuffer optOut, int[] optFormat ) {
+        return toBuffer( image, optOut, optFormat, null );
+    }
+
+    /**
+     * Like {@link #toBuffer}, but always produces one unsigned byte per sample. RGB_565
+     * bitmaps are expanded to GL_RGB and all other color bitmaps to GL_RGBA.
+     */
+    public ByteBuffer toByteSamples( Bitmap image, ByteBuffer optOut, int[] optFormat ) {
+        switch( image.getConfig() ) {
+        case ALPHA_8:
+            writeFormat( GL_ALPHA, GL_RED, GL_UNSIGNED_BYTE, optFormat );
+            return convert( image, optOut, ALPHA, Dither.NONE, null );
+        case RGB_565:
+            writeFormat( GL_RGB, GL_RGB, GL_UNSIGNED_BYTE, optFormat );
+            return convert( image, optOut, RGB, Dither.NONE, null );
+        default:
+            writeFormat( GL_RGBA, GL_RGBA, GL_UNSIGNED_BYTE, optFormat );
+            return convert( image, optOut, RGBA, Dither.NONE, null );
+        }
+    }
+
+    /**
+     * Converts a Bitmap to 16-bit packed pixels. Intended for textures where memory
+     * and upload bandwidth matter more than color depth.
+     *
+     * @param optOut   [Optional] buffer with at least {@code 2 * w * h} bytes remaining.
+     * @param dataType GL_UNSIGNED_SHORT_5_6_5, GL_UNSIGNED_SHORT_4_4_4_4 or GL_UNSIGNED_SHORT_5_5_5_1.
+     * @param dither   Dither to apply when reducing samples. {@code null} for none.
+     * @return buffer holding packed pixels in native byte order. Format is given by {@link #packedFormat}.
+     */
+    public ByteBuffer toPacked( Bitmap image, ByteBuffer optOut, int dataType, Dither dither ) {
+        return convert( image, optOut, packedMode( dataType ), dither == null ? Dither.NONE : dither, null );
+    }
+
+    /**
+     * @return GL_RGB for GL_UNSIGNED_SHORT_5_6_5, otherwise GL_RGBA.
+     */
+    public static int packedFormat( int dataType ) {
+        return dataType == GL_UNSIGNED_SHORT_5_6_5 ? GL_RGB : GL_RGBA;
+    }
+
+    /**
+     * @param optOut [Optional] buffer with at least {@code 4 * w * h} bytes remaining.
+     * @return buffer holding RGBA samples.
+     */
+    public ByteBuffer toRgba( Bitmap image, ByteBuffer optOut ) {
+        return convert( image, optOut, RGBA, Dither.NONE, null );
+    }
+
+    /**
+     * @param optOut [Optional] buffer with at least {@code 3 * w * h} bytes remaining.
+     * @return buffer holding RGB samples.
+     */
+    public ByteBuffer toRgb( Bitmap image, ByteBuffer optOut ) {
+        return convert( image, optOut, RGB, Dither.NONE, null );
+    }
+
+    /**
+     * @param optOut [Optional] buffer with at least {@code w * h} bytes remaining.
+     * @return buffer holding alpha samples.
+     */
+    public ByteBuffer toAlpha( Bitmap image, ByteBuffer optOut ) {
+        return convert( image, optOut, ALPHA, Dither.NONE, null );
+    }
+
+    /**
+     * @return number of images converted.
+     */
+    public long convertCount() {
+        return mConvertNum.get();
+    }
+
+    /**
+     * @return number of images converted with a single direct copy.
+     */
+    public long directCopyCount() {
+        return mCopyNum.get();
+    }
+
+
+    public long pixelCount() {
+        return mPixelNum.get();
+    }
+
+
+    public long totalNanos() {
+        return mNanos.get();
+    }
+
+    /**
+     * @return average throughput in megapixels per second.
+     */
+    public double megapixelsPerSecond() {
+        long nanos = mNanos.get();
+        return nanos <= 0 ? 0.0 : mPixelNum.get() * 1000.0 / nanos;
+    }
+
+
+    public void resetCounts() {
+        mConvertNum.set( 0 );
+        mCopyNum.set( 0 );
+        mPixelNum.set( 0 );
+        mNanos.set( 0 );
+    }
+
+
+    ByteBuffer toBuffer( Bitmap image, ByteBuffer optOut, int[] optFormat, int[] optWork ) {
+        switch( image.getConfig() ) {
+        case ALPHA_8:
+            writeFormat( GL_ALPHA, GL_RED, GL_UNSIGNED_BYTE, optFormat );
+            return convert( image, optOut, ALPHA, Dither.NONE, optWork );
+        case RGB_565:
+            writeFormat( GL_RGB, GL_RGB, GL_UNSIGNED_SHORT_5_6_5, optFormat );
+            return convert( image, optOut, RGB565, Dither.NONE, optWork );
+        case ARGB_4444:
+            writeFormat( GL_RGBA, GL_RGBA, GL_UNSIGNED_SHORT_4_4_4_4, optFormat );
+            return convert( image, optOut, RGBA4444, Dither.NONE, optWork );
+        default:
+            writeFormat( GL_RGBA, GL_RGBA, GL_UNSIGNED_BYTE, optFormat );
+            return convert( image, optOut, RGBA, Dither.NONE, optWork );
+        }
+    }
+
+
+    ByteBuffer convert( final Bitmap image, ByteBuffer optOut, final int mode, final Dither dither, int[] optWork ) {
+        final long t0 = System.nanoTime();
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        final int bpp = bytesPerPixel( mode );
+        final int size = w * h * bpp;
+
+        if( optOut == null || optOut.remaining() < size ) {
+            optOut = DrawUtil.alloc( size );
+        }
+        final ByteBuffer out = optOut;
+        final int pos = out.position();
+
+        if( canCopy( image, mode, bpp ) ) {
+            ByteBuffer dst = out.duplicate();
+            dst.limit( pos + size );
+            image.copyPixelsToBuffer( dst );
+            mCopyNum.incrementAndGet();
+        } else {
+            int taskNum = mOptExec == null ? 1 : Math.min( mTaskNum, Math.max( 1, h / MIN_TASK_ROWS ) );
+            if( taskNum <= 1 || dither == Dither.DIFFUSION ) {
+                // Error diffusion carries error from row to row.
+                convertRows( image, 0, h, out, pos, mode, dither, optWork );
+            } else {
+                convertParallel( image, h, out, pos, mode, dither, taskNum );
+            }
+        }
+
+        out.limit( pos + size ).position( pos );
+        mConvertNum.incrementAndGet();
+        mPixelNum.addAndGet( (long)w * h );
+        mNanos.addAndGet( System.nanoTime() - t0 );
+        return out;
+    }
+
+
+    private boolean canCopy( Bitmap image, int mode, int bpp ) {
+        if( image.getRowBytes() != image.getWidth() * bpp ) {
+            return false;
+        }
+        switch( image.getConfig() ) {
+        case ALPHA_8:
+            return mode == ALPHA;
+        case RGB_565:
+            return mode == RGB565;
+        case ARGB_4444:
+            return mode == RGBA4444 && ( !image.hasAlpha() || mAllowPremultiplied );
+        case ARGB_8888:
+            return mode == RGBA && ( !image.hasAlpha() || mAllowPremultiplied );
+        default:
+            return false;
+        }
+    }
+
+
+    private void convertParallel( final Bitmap image,
+                                  final int h,
+                                  final ByteBuffer out,
+                                  final int pos,
+                                  final int mode,
+                                  final Dither dither,
+                                  int taskNum )
+    {
+        final CountDownLatch latch = new CountDownLatch( taskNum - 1 );
+        final Throwable[] err = { null };
+        for( int i = 1; i < taskNum; i++ ) {
+            final int y0 = (int)( (long)h * i / taskNum );
+            final int y1 = (int)( (long)h * ( i + 1 ) / taskNum );
+            mOptExec.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        convertRows( image, y0, y1, out, pos, mode, dither, null );
+                    } catch( Throwable t ) {
+                        err[0] = t;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            } );
+        }
+        // Calling thread takes first chunk.
+        convertRows( image, 0, h / taskNum, out, pos, mode, dither, null );
+
+        try {
+            latch.await();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        if( err[0] != null ) {
+            throw new RuntimeException( err[0] );
+        }
+    }
+
+    /**
+     * Converts rows {@code [y0,y1)}. Safe to call concurrently on disjoint rows.
+     */
+    static void convertRows( Bitmap image,
+                             int y0,
+                             int y1,
+                             ByteBuffer out,
+                             int pos,
+                             int mode,
+                             Dither dither,
+                             int[] optWork )
+    {
+        final int w = image.getWidth();
+        final int blockRows = Math.max( 1, Math.min( y1 - y0, BLOCK_PIXELS / Math.max( 1, w ) ) );
+        final int blockLen = blockRows * w;
+        final int[] px = optWork != null && optWork.length >= blockLen ? optWork : new int[blockLen];
+        final int bpp = bytesPerPixel( mode );
+
+        ByteBuffer dst = out.duplicate();
+        dst.clear();
+        dst.position( pos + y0 * w * bpp );
+
+        IntBuffer ints = null;
+        ShortBuffer shorts = null;
+        byte[] bytes = null;
+        short[] packed = null;
+        int[] err = null;
+
+        switch( mode ) {
+        case RGBA:
+            // View in big endian so that an int 0xRRGGBBAA is stored as R,G,B,A.
+            ints = dst.slice().order( ByteOrder.BIG_ENDIAN ).asIntBuffer();
+            break;
+        case RGB:
+        case ALPHA:
+            bytes = new byte[blockLen * bpp];
+            break;
+        default:
+            // GL reads packed types in native byte order.
+            shorts = dst.slice().order( ByteOrder.nativeOrder() ).asShortBuffer();
+            packed = new short[blockLen];
+            if( dither == Dither.DIFFUSION ) {
+                err = new int[2 * ( w + 2 ) * 4];
+            }
+            break;
+        }
+
+        for( int y = y0; y < y1; y += blockRows ) {
+            final int rows = Math.min( blockRows, y1 - y );
+            final int n = rows * w;
+            image.getPixels( px, 0, w, 0, y, w, rows );
+
+            switch( mode ) {
+            case RGBA:
+                for( int i = 0; i < n; i++ ) {
+                    int v = px[i];
+                    px[i] = v << 8 | v >>> 24;
+                }
+                ints.put( px, 0, n );
+                break;
+            case RGB:
+                for( int i = 0, j = 0; i < n; i++ ) {
+                    int v = px[i];
+                    bytes[j++] = (byte)( v >> 16 );
+                    bytes[j++] = (byte)( v >>  8 );
+                    bytes[j++] = (byte)( v       );
+                }
+                dst.put( bytes, 0, n * 3 );
+                break;
+            case ALPHA:
+                for( int i = 0; i < n; i++ ) {
+                    bytes[i] = (byte)( px[i] >>> 24 );
+                }
+                dst.put( bytes, 0, n );
+                break;
+            default:
+                pack( px, w, rows, y, mode, dither, err, packed );
+                shorts.put( packed, 0, n );
+                break;
+            }
+        }
+    }
+
+    /**
+     * Packs rows of ARGB pixels into 16-bit pixels.
+     *
+     * @param px     ARGB pixels, {@code w * rows} long.
+     * @param y      Image row of first pixel, used to place dither pattern.
+     * @param optErr Error rows for DIFFUSION, {@code 2 * (w + 2) * 4} long, zeroed before the first row.
+     *               Carries error between calls.
+     * @param out    Receives packed pixels.
+     */
+    static void pack( int[] px, int w, int rows, int y, int mode, Dither dither, int[] optErr, short[] out ) {
+        final int rBits, gBits, bBits, aBits;
+        switch( mode ) {
+        case RGB565:
+            rBits = 5; gBits = 6; bBits = 5; aBits = 0;
+            break;
+        case RGBA4444:
+            rBits = 4; gBits = 4; bBits = 4; aBits = 4;
+            break;
+        case RGBA5551:
+            rBits = 5; gBits = 5; bBits = 5; aBits = 1;
+            break;
+        default:
+            throw new IllegalArgumentException( "Not a packed mode: " + mode );
+        }
+        final int gShift = bBits + aBits;
+        final int rShift = gBits + gShift;
+        final int[] bits = { rBits, gBits, bBits, aBits };
+        final int[] sample = new int[4];
+
+        for( int row = 0; row < rows; row++, y++ ) {
+            final int off = row * w;
+            int[] err = null;
+            int cur = 0;
+            int next = 0;
+            if( dither == Dither.DIFFUSION ) {
+                err = optErr;
+                cur  = ( y & 1 ) * ( w + 2 ) * 4;
+                next = ( ( y + 1 ) & 1 ) * ( w + 2 ) * 4;
+                Arrays.fill( err, next, next + ( w + 2 ) * 4, 0 );
+            }
+
+            for( int x = 0; x < w; x++ ) {
+                int v = px[off + x];
+                sample[0] = v >> 16 & 0xFF;
+                sample[1] = v >>  8 & 0xFF;
+                sample[2] = v       & 0xFF;
+                sample[3] = v >>> 24;
+
+                for( int c = 0; c < 4; c++ ) {
+                    if( bits[c] == 0 ) {
+                        sample[c] = 0;
+                        continue;
+                    }
+                    final int max = ( 1 << bits[c] ) - 1;
+                    int s = sample[c];
+                    int q;
+                    switch( dither ) {
+                    case ORDERED: {
+                        int t = BAYER4[( y & 3 ) * 4 + ( x & 3 )];
+                        q = ( 32 * s * max + ( 2 * t + 1 ) * 255 ) / ( 32 * 255 );
+                        break;
+                    }
+                    case DIFFUSION: {
+                        // Errors are stored in 1/16ths.
+                        int i = cur + ( x + 1 ) * 4 + c;
+                        int e = err[i];
+                        s += e >= 0 ? ( e + 8 ) >> 4 : -( ( -e + 8 ) >> 4 );
+                        q = s <= 0 ? 0 : ( s * max + 127 ) / 255;
+                        if( q > max ) {
+                            q = max;
+                        }
+                        int d = s - ( q * 255 + max / 2 ) / max;
+                        int j = next + ( x + 1 ) * 4 + c;
+                        err[i + 4] += 7 * d;
+                        err[j - 4] += 3 * d;
+                        err[j    ] += 5 * d;
+                        err[j + 4] += d;
+                        break;
+                    }
+                    default:
+                        q = ( s * max + 127 ) / 255;
+                        break;
+                    }
+                    sample[c] = q > max ? max : q;
+                }
+
+                out[off + x] = (short)( sample[0] << rShift | sample[1] << gShift | sample[2] << aBits | sample[3] );
+            }
+        }
+    }
+
+
+    static int bytesPerPixel( int mode ) {
+        switch( mode ) {
+        case RGBA:
+            return 4;
+        case RGB:
+            return 3;
+        case ALPHA:
+            return 1;
+        default:
+            return 2;
+        }
+    }
+
+
+    private static int packedMode( int dataType ) {
+        switch( dataType ) {
+        case GL_UNSIGNED_SHORT_5_6_5:
+            return RGB565;
+        case GL_UNSIGNED_SHORT_4_4_4_4:
+            return RGBA4444;
+        case GL_UNSIGNED_SHORT_5_5_5_1:
+            return RGBA5551;
+        default:
+            throw new IllegalArgumentException( "Unsupported packed data type: " + dataType );
+        }
+    }
+
+
+    private static void writeFormat( int intFormat, int format, int dataType, int[] optOut ) {
+        if( optOut == null || optOut.length < 2 ) {
+            return;
+        }
+        optOut[0] = intFormat;
+        optOut[1] = format;
+        if( optOut.length >= 3 ) {
+            optOut[2] = dataType;
+        }
+    }
+
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Reader for KTX 1.1 and KTX 2.0 texture containers.
+ *
+ * <p>Files are memory-mapped, and {@link #data} returns slices of the mapping for each
+ * mip level, array layer and cube face, so image data may be passed to
+ * {@code glCompressedTexImage*} without being copied. KTX 2.0 files are supported
+ * only without supercompression and only for ETC2, EAC and ASTC formats, which are
+ * mapped to GL internal formats. KTX 1.1 files may hold any format.
+ *
+ * @author Philip DeCamp
+ */
+public final class KtxFile {
+
+    private static final byte[] ID_KTX1 = { (byte)0xAB, 'K', 'T', 'X', ' ', '1', '1', (byte)0xBB, '\r', '\n', 0x1A, '\n' };
+    private static final byte[] ID_KTX2 = { (byte)0xAB, 'K', 'T', 'X', ' ', '2', '0', (byte)0xBB, '\r', '\n', 0x1A, '\n' };
+
+    private static final int KTX1_ENDIAN = 0x04030201;
+    private static final int KTX1_HEADER = 64;
+    private static final int KTX2_HEADER = 80;
+
+    private static final int VK_ETC2_FIRST = 147;
+    private static final int VK_ASTC_FIRST = 157;
+    private static final int VK_ASTC_LAST  = 184;
+
+
+    /**
+     * Memory-maps and parses a file.
+     *
+     * @throws IOException if file cannot be read or is not a supported KTX file.
+     */
+    public static KtxFile open( File file ) throws IOException {
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+            FileChannel ch = raf.getChannel();
+            // Mapping remains valid after channel is closed.
+            ByteBuffer buf = ch.map( FileChannel.MapMode.READ_ONLY, 0, ch.size() );
+            return parse( buf );
+        }
+    }
+
+    /**
+     * Parses a KTX file held in a buffer. Data slices will reference the buffer.
+     *
+     * @param buf Entire file. Position and limit are ignored.
+     * @throws IOException if buffer does not hold a supported KTX file.
+     */
+    public static KtxFile parse( ByteBuffer buf ) throws IOException {
+        buf = buf.duplicate();
+        buf.clear();
+        if( matches( buf, ID_KTX1 ) ) {
+            return parseKtx1( buf );
+        }
+        if( matches( buf, ID_KTX2 ) ) {
+            return parseKtx2( buf );
+        }
+        throw new IOException( "Not a KTX file." );
+    }
+
+
+    private final ByteBuffer mBuf;
+    private final int mVersion;
+    private final int mInternalFormat;
+    private final int mFormat;
+    private final int mDataType;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mDepth;
+    private final int mLayers;
+    private final int mFaces;
+    private final int mLevels;
+
+    // Offset and size of each image, indexed by [ ( level * layers + layer ) * faces + face ].
+    private final long[] mOffsets;
+    private final int[]  mSizes;
+
+
+    private KtxFile( ByteBuffer buf,
+                     int version,
+                     int intFormat,
+                     int format,
+                     int dataType,
+                     int w,
+                     int h,
+                     int depth,
+                     int layers,
+                     int faces,
+                     int levels )
+    {
+        mBuf            = buf;
+        mVersion        = version;
+        mInternalFormat = intFormat;
+        mFormat         = format;
+        mDataType       = dataType;
+        mWidth          = w;
+        mHeight         = h;
+        mDepth          = depth;
+        mLayers         = layers;
+        mFaces          = faces;
+        mLevels         = levels;
+        mOffsets        = new long[levels * layers * faces];
+        mSizes          = new int[levels * layers * faces];
+    }
+
+    /**
+     * @return 1 for KTX 1.1, 2 for KTX 2.0.
+     */
+    public int version() {
+        return mVersion;
+    }
+
+
+    public int internalFormat() {
+        return mInternalFormat;
+    }
+
+    /**
+     * @return pixel format, or 0 if compressed.
+     */
+    public int format() {
+        return mFormat;
+    }
+
+    /**
+     * @return pixel data type, or 0 if compressed.
+     */
+    public int dataType() {
+        return mDataType;
+    }
+
+
+    public boolean isCompressed() {
+        return mDataType == 0;
+    }
+
+
+    public int width() {
+        return mWidth;
+    }
+
+
+    public int height() {
+        return mHeight;
+    }
+
+    /**
+     * @return depth of 3D texture, or 1 if not 3D.
+     */
+    public int depth() {
+        return mDepth;
+    }
+
+    /**
+     * @return number of array layers, or 1 if not an array.
+     */
+    public int layerNum() {
+        return mLayers;
+    }
+
+    /**
+     * @return 6 for cube maps, otherwise 1.
+     */
+    public int faceNum() {
+        return mFaces;
+    }
+
+
+    public int levelNum() {
+        return mLevels;
+    }
+
+
+    public int width( int level ) {
+        return Math.max( 1, mWidth >> level );
+    }
+
+
+    public int height( int level ) {
+        return Math.max( 1, mHeight >> level );
+    }
+
+
+    public int depth( int level ) {
+        return Math.max( 1, mDepth >> level );
+    }
+
+    /**
+     * @return texture target appropriate for file.
+     */
+    public int target() {
+        if( mFaces == 6 ) {
+            return GL_TEXTURE_CUBE_MAP;
+        }
+        if( mDepth > 1 ) {
+            return GL_TEXTURE_3D;
+        }
+        if( mLayers > 1 ) {
+            return GL_TEXTURE_2D_ARRAY;
+        }
+        return GL_TEXTURE_2D;
+    }
+
+    /**
+     * @return number of bytes of image.
+     */
+    public int dataSize( int level, int layer, int face ) {
+        return mSizes[index( level, layer, face )];
+    }
+
+    /**
+     * @return slice of file holding one image. For 3D textures, holds all depth slices of the level.
+     */
+    public ByteBuffer data( int level, int layer, int face ) {
+        int i = index( level, layer, face );
+        ByteBuffer ret = mBuf.duplicate();
+        ret.clear();
+        ret.position( (int)mOffsets[i] );
+        ret.limit( (int)mOffsets[i] + mSizes[i] );
+        return ret.slice().order( ByteOrder.nativeOrder() );
+    }
+
+    /**
+     * @return slice of file holding all layers and faces of a level, for {@code glCompressedTexImage3D}.
+     *         Only valid if images of the level are contiguous, which holds for all KTX 2.0 files
+     *         and for KTX 1.1 files with image sizes that are multiples of 4.
+     */
+    public ByteBuffer levelData( int level ) {
+        int first = index( level, 0, 0 );
+        int last  = index( level, mLayers - 1, mFaces - 1 );
+        long end  = mOffsets[last] + mSizes[last];
+        ByteBuffer ret = mBuf.duplicate();
+        ret.clear();
+        ret.position( (int)mOffsets[first] );
+        ret.limit( (int)end );
+        return ret.slice().order( ByteOrder.nativeOrder() );
+    }
+
+
+    private int index( int level, int layer, int face ) {
+        return ( level * mLayers + layer ) * mFaces + face;
+    }
+
+
+    private static KtxFile parseKtx1( ByteBuffer buf ) throws IOException {
+        if( buf.capacity() < KTX1_HEADER ) {
+            throw new IOException( "Truncated KTX header." );
+        }
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        if( buf.getInt( 12 ) != KTX1_ENDIAN ) {
+            buf.order( ByteOrder.BIG_ENDIAN );
+            if( buf.getInt( 12 ) != KTX1_ENDIAN ) {
+                throw new IOException( "Invalid KTX endianness field." );
+            }
+        }
+
+        int glType     = buf.getInt( 16 );
+        int glFormat   = buf.getInt( 24 );
+        int glIntFmt   = buf.getInt( 28 );
+        int w          = buf.getInt( 36 );
+        int h          = Math.max( 1, buf.getInt( 40 ) );
+        int depth      = Math.max( 1, buf.getInt( 44 ) );
+        int layers     = Math.max( 1, buf.getInt( 48 ) );
+        int faces      = buf.getInt( 52 );
+        int levels     = Math.max( 1, buf.getInt( 56 ) );
+        int kvBytes    = buf.getInt( 60 );
+        checkDims( w, h, depth, layers, faces, levels );
+
+        KtxFile ret = new KtxFile( buf, 1, glIntFmt, glFormat, glType, w, h, depth, layers, faces, levels );
+        long pos = (long)KTX1_HEADER + ( kvBytes & 0xFFFFFFFFL );
+        final boolean cube = faces == 6 && buf.getInt( 48 ) == 0;
+
+        for( int level = 0; level < levels; level++ ) {
+            long imageSize = readUint( buf, pos );
+            pos += 4;
+            // For non-array cube maps, imageSize is the size of one face. Otherwise, of all layers.
+            long each = cube ? imageSize : imageSize / ( layers * faces );
+            for( int layer = 0; layer < layers; layer++ ) {
+                for( int face = 0; face < faces; face++ ) {
+                    int i = ret.index( level, layer, face );
+                    checkRange( buf, pos, each );
+                    ret.mOffsets[i] = pos;
+                    ret.mSizes[i]   = (int)each;
+                    pos += each;
+                    if( cube ) {
+                        pos = align4( pos );
+                    }
+                }
+            }
+            pos = align4( pos );
+        }
+
+        return ret;
+    }
+
+
+    private static KtxFile parseKtx2( ByteBuffer buf ) throws IOException {
+        if( buf.capacity() < KTX2_HEADER ) {
+            throw new IOException( "Truncated KTX2 header." );
+        }
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        int vkFormat = buf.getInt( 12 );
+        int w        = buf.getInt( 20 );
+        int h        = Math.max( 1, buf.getInt( 24 ) );
+        int depth    = Math.max( 1, buf.getInt( 28 ) );
+        int layers   = Math.max( 1, buf.getInt( 32 ) );
+        int faces    = buf.getInt( 36 );
+        int levels   = Math.max( 1, buf.getInt( 40 ) );
+        int scheme   = buf.getInt( 44 );
+        checkDims( w, h, depth, layers, faces, levels );
+
+        if( scheme != 0 ) {
+            throw new IOException( "KTX2 supercompression not supported: " + scheme );
+        }
+        int intFormat = glFormatForVk( vkFormat );
+        if( intFormat == 0 ) {
+            throw new IOException( "Unsupported KTX2 format: " + vkFormat );
+        }
+
+        KtxFile ret = new KtxFile( buf, 2, intFormat, 0, 0, w, h, depth, layers, faces, levels );
+        checkRange( buf, KTX2_HEADER, levels * 24L );
+        for( int level = 0; level < levels; level++ ) {
+            long off = buf.getLong( KTX2_HEADER + level * 24 );
+            long len = buf.getLong( KTX2_HEADER + level * 24 + 8 );
+            checkRange( buf, off, len );
+            long each = len / ( layers * faces );
+            for( int layer = 0; layer < layers; layer++ ) {
+                for( int face = 0; face < faces; face++ ) {
+                    int i = ret.index( level, layer, face );
+                    ret.mOffsets[i] = off + each * ( layer * faces + face );
+                    ret.mSizes[i]   = (int)each;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return GL internal format for Vulkan format, or 0 if not supported.
+     */
+    static int glFormatForVk( int vk ) {
+        switch( vk ) {
+        case VK_ETC2_FIRST:     return GL_COMPRESSED_RGB8_ETC2;
+        case VK_ETC2_FIRST + 1: return GL_COMPRESSED_SRGB8_ETC2;
+        case VK_ETC2_FIRST + 2: return GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2;
+        case VK_ETC2_FIRST + 3: return GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2;
+        case VK_ETC2_FIRST + 4: return GL_COMPRESSED_RGBA8_ETC2_EAC;
+        case VK_ETC2_FIRST + 5: return GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC;
+        case VK_ETC2_FIRST + 6: return GL_COMPRESSED_R11_EAC;
+        case VK_ETC2_FIRST + 7: return GL_COMPRESSED_SIGNED_R11_EAC;
+        case VK_ETC2_FIRST + 8: return GL_COMPRESSED_RG11_EAC;
+        case VK_ETC2_FIRST + 9: return GL_COMPRESSED_SIGNED_RG11_EAC;
+        }
+        if( vk >= VK_ASTC_FIRST && vk <= VK_ASTC_LAST ) {
+            // Vulkan interleaves UNORM and SRGB variants in the same block-size order as GL.
+            int idx = ( vk - VK_ASTC_FIRST ) / 2;
+            boolean srgb = ( ( vk - VK_ASTC_FIRST ) & 1 ) != 0;
+            return ( srgb ? Fake.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 : Fake.GL_COMPRESSED_RGBA_ASTC_4x4 ) + idx;
+        }
+        return 0;
+    }
+
+
+    private static boolean matches( ByteBuffer buf, byte[] id ) {
+        if( buf.capacity() < id.length ) {
+            return false;
+        }
+        for( int i = 0; i < id.length; i++ ) {
+            if( buf.get( i ) != id[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static void checkDims( int w, int h, int depth, int layers, int faces, int levels ) throws IOException {
+        if( w <= 0 || h <= 0 || depth <= 0 || layers <= 0 || ( faces != 1 && faces != 6 ) || levels <= 0 || levels > 32 ) {
+            throw new IOException( "Invalid KTX dimensions." );
+        }
+        if( (long)levels * layers * faces > 1 << 20 ) {
+            throw new IOException( "Too many KTX images." );
+        }
+    }
+
+
+    private static void checkRange( ByteBuffer buf, long off, long len ) throws IOException {
+        if( off < 0 || len < 0 || off + len > buf.capacity() ) {
+            throw new IOException( "Truncated KTX file." );
+        }
+    }
+
+
+    private static long readUint( ByteBuffer buf, long pos ) throws IOException {
+        checkRange( buf, pos, 4 );
+        return buf.getInt( (int)pos ) & 0xFFFFFFFFL;
+    }
+
+
+    private static long align4( long v ) {
+        return ( v + 3 ) & ~3L;
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import bits.vec.*;
+
+
+/**
+ * Caches matrices derived from the projection and view stacks of a DrawEnv.
+ *
+ * <p>Each stack is given a version number that increments whenever the top of
+ * the stack is found to differ from the last observed value. Derived matrices
+ * record the versions they were computed from and are recomputed lazily only
+ * when one of those versions changes, so any number of program binds within a
+ * frame share a single inversion.
+ *
+ * <p>Because the matrices on a MatStack are mutable and may be modified directly,
+ * changes are detected by comparing the top of each stack against a snapshot
+ * rather than by instrumenting the stack. Matrices returned from this
+ * class must not be modified.
+ *
+ * @author Philip DeCamp
+ */
+public final class MatCache {
+
+    private final DrawEnv mEnv;
+
+    private final Mat4 mProjSnap = new Mat4();
+    private final Mat4 mViewSnap = new Mat4();
+    private int mProjVersion = 0;
+    private int mViewVersion = 0;
+
+    private final Mat4 mInvProj     = new Mat4();
+    private final Mat4 mInvView     = new Mat4();
+    private final Mat4 mProjView    = new Mat4();
+    private final Mat4 mInvProjView = new Mat4();
+    private final Mat3 mNorm        = new Mat3();
+
+    private int mInvProjAt         = -1;
+    private int mInvViewAt         = -1;
+    private int mNormAt            = -1;
+    private int mProjViewAtProj    = -1;
+    private int mProjViewAtView    = -1;
+    private int mInvProjViewAtProj = -1;
+    private int mInvProjViewAtView = -1;
+
+
+    MatCache( DrawEnv d ) {
+        mEnv = d;
+        // Force first observation to register as a change.
+        mProjSnap.m00 = Float.NaN;
+        mViewSnap.m00 = Float.NaN;
+    }
+
+    /**
+     * @return version of current projection matrix. Changes whenever the top of {@code mProj} changes.
+     */
+    public int projVersion() {
+        Mat4 m = mEnv.mProj.get();
+        if( !equal( m, mProjSnap ) ) {
+            Mat.put( m, mProjSnap );
+            mProjVersion++;
+        }
+        return mProjVersion;
+    }
+
+    /**
+     * @return version of current view matrix. Changes whenever the top of {@code mView} changes.
+     */
+    public int viewVersion() {
+        Mat4 m = mEnv.mView.get();
+        if( !equal( m, mViewSnap ) ) {
+            Mat.put( m, mViewSnap );
+            mViewVersion++;
+        }
+        return mViewVersion;
+    }
+
+
+    public Mat4 invProj() {
+        int v = projVersion();
+        if( mInvProjAt != v ) {
+            Mat.invert( mProjSnap, mInvProj );
+            mInvProjAt = v;
+        }
+        return mInvProj;
+    }
+
+
+    public Mat4 invView() {
+        int v = viewVersion();
+        if( mInvViewAt != v ) {
+            Mat.invert( mViewSnap, mInvView );
+            mInvViewAt = v;
+        }
+        return mInvView;
+    }
+
+
+    public Mat4 projView() {
+        int p = projVersion();
+        int v = viewVersion();
+        if( mProjViewAtProj != p || mProjViewAtView != v ) {
+            Mat.mult( mProjSnap, mViewSnap, mProjView );
+            mProjViewAtProj = p;
+            mProjViewAtView = v;
+        }
+        return mProjView;
+    }
+
+
+    public Mat4 invProjView() {
+        int p = projVersion();
+        int v = viewVersion();
+        if( mInvProjViewAtProj != p || mInvProjViewAtView != v ) {
+            Mat.invert( projView(), mInvProjView );
+            mInvProjViewAtProj = p;
+            mInvProjViewAtView = v;
+        }
+        return mInvProjView;
+    }
+
+    /**
+     * @return transpose of the inverse of the upper 3x3 of the view matrix.
+     */
+    public Mat3 normMat() {
+        int v = viewVersion();
+        if( mNormAt != v ) {
+            Mat4 inv = invView();
+            Mat3 n = mNorm;
+            n.m00 = inv.m00; n.m01 = inv.m10; n.m02 = inv.m20;
+            n.m10 = inv.m01; n.m11 = inv.m11; n.m12 = inv.m21;
+            n.m20 = inv.m02; n.m21 = inv.m12; n.m22 = inv.m22;
+            mNormAt = v;
+        }
+        return mNorm;
+    }
+
+    /**
+     * Forces all derived matrices to be recomputed on next access.
+     */
+    public void invalidate() {
+        mProjSnap.m00 = Float.NaN;
+        mViewSnap.m00 = Float.NaN;
+    }
+
+
+    private static boolean equal( Mat4 a, Mat4 b ) {
+        return a.m00 == b.m00 && a.m10 == b.m10 && a.m20 == b.m20 && a.m30 == b.m30 &&
+               a.m01 == b.m01 && a.m11 == b.m11 && a.m21 == b.m21 && a.m31 == b.m31 &&
+               a.m02 == b.m02 && a.m12 == b.m12 && a.m22 == b.m22 && a.m32 == b.m32 &&
+               a.m03 == b.m03 && a.m13 == b.m13 && a.m23 == b.m23 && a.m33 == b.m33;
+    }
+
+}
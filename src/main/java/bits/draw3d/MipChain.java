@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Complete chain of mipmap levels for an image with unsigned byte samples.
+ * Level 0 holds the full image and each following level halves each dimension,
+ * rounding down, until a 1x1 level. Rows of every level are tightly packed.
+ *
+ * <p>Chains may be written to and read from files so that they can be
+ * computed once and reused across runs.
+ *
+ * @author Philip DeCamp
+ */
+public final class MipChain {
+
+    private static final int MAGIC = 0x4D495031; // "MIP1"
+
+
+    /**
+     * @return number of levels in a complete chain for an image of the given size.
+     */
+    public static int levelNumFor( int w, int h ) {
+        int n = Math.max( w, h );
+        return 32 - Integer.numberOfLeadingZeros( Math.max( 1, n ) );
+    }
+
+    /**
+     * @return chain read from file, or {@code null} if file is missing or corrupt.
+     */
+    public static MipChain read( File file ) {
+        if( !file.isFile() ) {
+            return null;
+        }
+        try( DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ) ) {
+            if( in.readInt() != MAGIC ) {
+                return null;
+            }
+            int w  = in.readInt();
+            int h  = in.readInt();
+            int ch = in.readInt();
+            int n  = in.readInt();
+            if( w <= 0 || h <= 0 || ch < 1 || ch > 4 || n != levelNumFor( w, h ) ) {
+                return null;
+            }
+            MipChain ret = new MipChain( w, h, ch );
+            byte[] arr = new byte[ret.levelBytes( 0 )];
+            for( int i = 0; i < n; i++ ) {
+                int len = ret.levelBytes( i );
+                in.readFully( arr, 0, len );
+                ret.level( i ).put( arr, 0, len ).flip();
+            }
+            return ret;
+        } catch( IOException e ) {
+            return null;
+        }
+    }
+
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mChannels;
+    private final ByteBuffer[] mLevels;
+
+
+    /**
+     * Allocates buffers for all levels.
+     *
+     * @param w        Width of level 0.
+     * @param h        Height of level 0.
+     * @param channels Samples per pixel, 1 to 4.
+     */
+    public MipChain( int w, int h, int channels ) {
+        mWidth    = w;
+        mHeight   = h;
+        mChannels = channels;
+        mLevels   = new ByteBuffer[levelNumFor( w, h )];
+        for( int i = 0; i < mLevels.length; i++ ) {
+            mLevels[i] = DrawUtil.alloc( levelBytes( i ) );
+        }
+    }
+
+
+    public int levelNum() {
+        return mLevels.length;
+    }
+
+
+    public int channels() {
+        return mChannels;
+    }
+
+
+    public int width( int level ) {
+        return Math.max( 1, mWidth >> level );
+    }
+
+
+    public int height( int level ) {
+        return Math.max( 1, mHeight >> level );
+    }
+
+
+    public int levelBytes( int level ) {
+        return width( level ) * height( level ) * mChannels;
+    }
+
+    /**
+     * @return direct reference to buffer for level.
+     */
+    public ByteBuffer level( int level ) {
+        return mLevels[level];
+    }
+
+    /**
+     * Writes chain to file. The file is written to a temporary file first and
+     * renamed, so a partial file is never left in place.
+     *
+     * @return true if written.
+     */
+    public boolean write( File file ) {
+        File dir = file.getParentFile();
+        if( dir != null && !dir.isDirectory() && !dir.mkdirs() ) {
+            return false;
+        }
+        File tmp = new File( file.getPath() + ".tmp" + Thread.currentThread().getId() );
+        try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) ) ) {
+            out.writeInt( MAGIC );
+            out.writeInt( mWidth );
+            out.writeInt( mHeight );
+            out.writeInt( mChannels );
+            out.writeInt( mLevels.length );
+            byte[] arr = new byte[levelBytes( 0 )];
+            for( int i = 0; i < mLevels.length; i++ ) {
+                ByteBuffer b = mLevels[i].duplicate();
+                b.clear();
+                int len = levelBytes( i );
+                b.get( arr, 0, len );
+                out.write( arr, 0, len );
+            }
+        } catch( IOException e ) {
+            tmp.delete();
+            return false;
+        }
+        if( !tmp.renameTo( file ) ) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+}
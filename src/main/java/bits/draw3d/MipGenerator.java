@@ -0,0 +1,515 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Generates mipmap chains on the CPU.
+ *
+ * <p>Each level is resampled from the previous level with a separable filter, kept
+ * in floating point between levels so that error does not accumulate. Color samples
+ * may be converted from sRGB to linear before filtering and back afterward, and
+ * are weighted by alpha so that transparent pixels do not bleed into neighbors.
+ * When an alpha reference value is given, the alpha of each level is scaled so that
+ * the fraction of pixels passing an alpha test at that value matches level 0,
+ * which keeps foliage and text from thinning out at a distance.
+ *
+ * <p>Rows are split among tasks run on an optional Executor. If a cache directory
+ * is set, generated chains are stored there, keyed by a hash of the image and the
+ * generator settings, and reused on later calls.
+ *
+ * <p>Supports images with 1 to 4 unsigned byte samples per pixel. With 4 samples
+ * the last sample is alpha. With 1 sample the sample is treated as alpha, as for
+ * font textures, and is never gamma corrected.
+ *
+ * @author Philip DeCamp
+ */
+public class MipGenerator {
+
+    public enum Filter {
+        /** Averages each 2x2 block. Fastest, softest aliasing control. */
+        BOX( 0.5 ),
+        /** Kaiser-windowed sinc. Sharp with little ringing. */
+        KAISER( 3.0 ),
+        /** Three-lobe Lanczos. Sharpest, with slight ringing. */
+        LANCZOS( 3.0 );
+
+        final double mSupport;
+
+        Filter( double support ) {
+            mSupport = support;
+        }
+
+        double eval( double x ) {
+            double ax = Math.abs( x );
+            switch( this ) {
+            case BOX:
+                return ax < 0.5 ? 1.0 : ax == 0.5 ? 0.5 : 0.0;
+            case KAISER:
+                if( ax >= mSupport ) {
+                    return 0.0;
+                }
+                double t = x / mSupport;
+                return sinc( x ) * bessel0( KAISER_ALPHA * Math.sqrt( 1.0 - t * t ) ) / bessel0( KAISER_ALPHA );
+            default:
+                return ax < mSupport ? sinc( x ) * sinc( x / mSupport ) : 0.0;
+            }
+        }
+    }
+
+
+    private static final double KAISER_ALPHA  = 4.0;
+    private static final int    MIN_TASK_ROWS = 16;
+
+    private static final float[] SRGB_TO_LINEAR = new float[256];
+    private static final byte[]  LINEAR_TO_SRGB = new byte[4096];
+
+    static {
+        for( int i = 0; i < 256; i++ ) {
+            double c = i / 255.0;
+            SRGB_TO_LINEAR[i] = (float)( c <= 0.04045 ? c / 12.92 : Math.pow( ( c + 0.055 ) / 1.055, 2.4 ) );
+        }
+        for( int i = 0; i < LINEAR_TO_SRGB.length; i++ ) {
+            double c = i / ( LINEAR_TO_SRGB.length - 1.0 );
+            double s = c <= 0.0031308 ? c * 12.92 : 1.055 * Math.pow( c, 1.0 / 2.4 ) - 0.055;
+            LINEAR_TO_SRGB[i] = (byte)Math.round( s * 255.0 );
+        }
+    }
+
+
+    private Filter   mFilter   = Filter.KAISER;
+    private boolean  mGamma    = true;
+    private float    mAlphaRef = -1f;
+    private Executor mOptExec  = null;
+    private int      mTaskNum  = 1;
+    private File     mOptCache = null;
+
+
+    public MipGenerator() {}
+
+
+    public Filter filter() {
+        return mFilter;
+    }
+
+
+    public MipGenerator filter( Filter filter ) {
+        mFilter = filter;
+        return this;
+    }
+
+
+    public boolean gammaCorrect() {
+        return mGamma;
+    }
+
+    /**
+     * @param enable If true, color samples are treated as sRGB and filtered in linear space.
+     */
+    public MipGenerator gammaCorrect( boolean enable ) {
+        mGamma = enable;
+        return this;
+    }
+
+
+    public float alphaRef() {
+        return mAlphaRef;
+    }
+
+    /**
+     * @param ref Alpha test reference value in [0,1] at which coverage is preserved,
+     *            or a negative value to disable coverage preservation.
+     */
+    public MipGenerator alphaRef( float ref ) {
+        mAlphaRef = ref;
+        return this;
+    }
+
+    /**
+     * @param optExec Executor on which to filter rows. If {@code null}, rows are filtered on the calling thread.
+     * @param taskNum Number of tasks into which each pass is split, typically the number of threads.
+     */
+    public MipGenerator executor( Executor optExec, int taskNum ) {
+        mOptExec = optExec;
+        mTaskNum = Math.max( 1, taskNum );
+        return this;
+    }
+
+
+    public File cacheDir() {
+        return mOptCache;
+    }
+
+    /**
+     * @param optDir Directory in which generated chains are stored, or {@code null} to disable caching.
+     */
+    public MipGenerator cacheDir( File optDir ) {
+        mOptCache = optDir;
+        return this;
+    }
+
+    /**
+     * Generates a complete mip chain. May be called from any thread.
+     *
+     * @param src      Level 0 samples, tightly packed. Remaining bytes are read. Position is not modified.
+     * @param w        Width of image.
+     * @param h        Height of image.
+     * @param channels Samples per pixel, 1 to 4.
+     * @return new chain
+     */
+    public MipChain generate( ByteBuffer src, int w, int h, int channels ) {
+        if( channels < 1 || channels > 4 ) {
+            throw new IllegalArgumentException( "Unsupported channel count: " + channels );
+        }
+        src = src.duplicate();
+        if( src.remaining() < w * h * channels ) {
+            throw new IllegalArgumentException( "Buffer too small for image." );
+        }
+
+        File cacheFile = null;
+        if( mOptCache != null ) {
+            cacheFile = new File( mOptCache, cacheKey( src, w, h, channels ) + ".mip" );
+            MipChain cached = MipChain.read( cacheFile );
+            if( cached != null && cached.width( 0 ) == w && cached.height( 0 ) == h && cached.channels() == channels ) {
+                return cached;
+            }
+        }
+
+        final int alphaChan = channels == 4 ? 3 : channels == 1 ? 0 : -1;
+        final boolean gamma = mGamma && channels >= 3;
+
+        MipChain ret = new MipChain( w, h, channels );
+        ByteBuffer level0 = ret.level( 0 );
+        level0.clear();
+        ByteBuffer s = src.duplicate();
+        s.limit( s.position() + w * h * channels );
+        level0.put( s ).clear();
+
+        float[] cur = toFloat( src, w * h, channels, alphaChan, gamma );
+        final float coverage = mAlphaRef >= 0f && alphaChan >= 0 ? coverage( cur, w * h, channels, alphaChan, mAlphaRef, 1f ) : -1f;
+
+        int curW = w;
+        int curH = h;
+        for( int level = 1; level < ret.levelNum(); level++ ) {
+            int nw = ret.width( level );
+            int nh = ret.height( level );
+            float[] next = resample( cur, curW, curH, nw, nh, channels );
+            float scale = 1f;
+            if( coverage >= 0f ) {
+                scale = coverageScale( next, nw * nh, channels, alphaChan, mAlphaRef, coverage );
+            }
+            toBytes( next, nw * nh, channels, alphaChan, gamma, scale, ret.level( level ) );
+            cur = next;
+            curW = nw;
+            curH = nh;
+        }
+
+        if( cacheFile != null ) {
+            ret.write( cacheFile );
+        }
+        return ret;
+    }
+
+
+    private String cacheKey( ByteBuffer src, int w, int h, int channels ) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance( "SHA-1" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( e );
+        }
+        String params = w + "," + h + "," + channels + "," + mFilter + "," + mGamma + "," + mAlphaRef;
+        for( int i = 0; i < params.length(); i++ ) {
+            md.update( (byte)params.charAt( i ) );
+        }
+        ByteBuffer b = src.duplicate();
+        b.limit( b.position() + w * h * channels );
+        md.update( b );
+
+        byte[] bytes = md.digest();
+        StringBuilder ret = new StringBuilder( bytes.length * 2 );
+        for( byte v: bytes ) {
+            ret.append( Character.forDigit( ( v >> 4 ) & 0xF, 16 ) );
+            ret.append( Character.forDigit( v & 0xF, 16 ) );
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Converts samples to floats, linearizing color if requested and premultiplying color by alpha.
+     */
+    private static float[] toFloat( ByteBuffer src, int pixNum, int channels, int alphaChan, boolean gamma ) {
+        final float[] ret = new float[pixNum * channels];
+        final int pos = src.position();
+        final boolean premult = channels == 4;
+        for( int p = 0; p < pixNum; p++ ) {
+            int off = p * channels;
+            float a = premult ? ( src.get( pos + off + 3 ) & 0xFF ) / 255f : 1f;
+            for( int c = 0; c < channels; c++ ) {
+                int v = src.get( pos + off + c ) & 0xFF;
+                if( c == alphaChan ) {
+                    ret[off + c] = v / 255f;
+                } else {
+                    ret[off + c] = ( gamma ? SRGB_TO_LINEAR[v] : v / 255f ) * a;
+                }
+            }
+        }
+        return ret;
+    }
+
+
+    private static void toBytes( float[] src,
+                                 int pixNum,
+                                 int channels,
+                                 int alphaChan,
+                                 boolean gamma,
+                                 float alphaScale,
+                                 ByteBuffer out )
+    {
+        final boolean premult = channels == 4;
+        final int lutMax = LINEAR_TO_SRGB.length - 1;
+        for( int p = 0; p < pixNum; p++ ) {
+            int off = p * channels;
+            float a = premult ? clamp( src[off + 3] ) : 1f;
+            float inv = a > 0f ? 1f / a : 0f;
+            for( int c = 0; c < channels; c++ ) {
+                float v = src[off + c];
+                byte b;
+                if( c == alphaChan ) {
+                    b = (byte)( clamp( v * alphaScale ) * 255f + 0.5f );
+                } else {
+                    v = clamp( premult ? v * inv : v );
+                    b = gamma ? LINEAR_TO_SRGB[(int)( v * lutMax + 0.5f )] : (byte)( v * 255f + 0.5f );
+                }
+                out.put( off + c, b );
+            }
+        }
+    }
+
+
+    private float[] resample( final float[] src, final int sw, final int sh, final int dw, final int dh, final int ch ) {
+        final Kernel kx = new Kernel( mFilter, sw, dw );
+        final Kernel ky = new Kernel( mFilter, sh, dh );
+        final float[] tmp = new float[dw * sh * ch];
+        final float[] dst = new float[dw * dh * ch];
+
+        // Horizontal pass over every source row.
+        parallel( sh, new RowTask() {
+            @Override
+            public void run( int y0, int y1 ) {
+                for( int y = y0; y < y1; y++ ) {
+                    int srcRow = y * sw * ch;
+                    int dstRow = y * dw * ch;
+                    for( int x = 0; x < dw; x++ ) {
+                        int start = kx.mStart[x];
+                        int kOff  = kx.mOffsets[x];
+                        int kLen  = kx.mOffsets[x + 1] - kOff;
+                        for( int c = 0; c < ch; c++ ) {
+                            float sum = 0f;
+                            for( int k = 0; k < kLen; k++ ) {
+                                int sx = clampIndex( start + k, sw );
+                                sum += src[srcRow + sx * ch + c] * kx.mWeights[kOff + k];
+                            }
+                            tmp[dstRow + x * ch + c] = sum;
+                        }
+                    }
+                }
+            }
+        } );
+
+        // Vertical pass over every destination row.
+        parallel( dh, new RowTask() {
+            @Override
+            public void run( int y0, int y1 ) {
+                final int rowLen = dw * ch;
+                for( int y = y0; y < y1; y++ ) {
+                    int start = ky.mStart[y];
+                    int kOff  = ky.mOffsets[y];
+                    int kLen  = ky.mOffsets[y + 1] - kOff;
+                    int dstRow = y * rowLen;
+                    for( int k = 0; k < kLen; k++ ) {
+                        int srcRow = clampIndex( start + k, sh ) * rowLen;
+                        float wt = ky.mWeights[kOff + k];
+                        for( int i = 0; i < rowLen; i++ ) {
+                            dst[dstRow + i] += tmp[srcRow + i] * wt;
+                        }
+                    }
+                }
+            }
+        } );
+
+        return dst;
+    }
+
+
+    private void parallel( int rows, final RowTask task ) {
+        final Executor exec = mOptExec;
+        int taskNum = Math.min( mTaskNum, Math.max( 1, rows / MIN_TASK_ROWS ) );
+        if( exec == null || taskNum <= 1 ) {
+            task.run( 0, rows );
+            return;
+        }
+
+        final CountDownLatch latch = new CountDownLatch( taskNum - 1 );
+        final Throwable[] err = { null };
+        for( int i = 1; i < taskNum; i++ ) {
+            final int y0 = (int)( (long)rows * i / taskNum );
+            final int y1 = (int)( (long)rows * ( i + 1 ) / taskNum );
+            exec.execute( new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run( y0, y1 );
+                    } catch( Throwable t ) {
+                        err[0] = t;
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            } );
+        }
+        // Calling thread takes first chunk.
+        task.run( 0, rows / taskNum );
+
+        try {
+            latch.await();
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( e );
+        }
+        if( err[0] != null ) {
+            throw new RuntimeException( err[0] );
+        }
+    }
+
+
+    private static float coverage( float[] src, int pixNum, int channels, int alphaChan, float ref, float scale ) {
+        int n = 0;
+        for( int p = 0; p < pixNum; p++ ) {
+            if( src[p * channels + alphaChan] * scale > ref ) {
+                n++;
+            }
+        }
+        return (float)n / pixNum;
+    }
+
+    /**
+     * Binary searches for alpha scale at which coverage of level matches target.
+     */
+    private static float coverageScale( float[] src, int pixNum, int channels, int alphaChan, float ref, float target ) {
+        float lo = 0f;
+        float hi = 4f;
+        float best = 1f;
+        float bestErr = Math.abs( coverage( src, pixNum, channels, alphaChan, ref, 1f ) - target );
+        for( int i = 0; i < 10; i++ ) {
+            float mid = ( lo + hi ) * 0.5f;
+            float c = coverage( src, pixNum, channels, alphaChan, ref, mid );
+            float e = Math.abs( c - target );
+            if( e < bestErr ) {
+                bestErr = e;
+                best = mid;
+            }
+            if( c < target ) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return best;
+    }
+
+
+    private static float clamp( float v ) {
+        return v <= 0f ? 0f : v >= 1f ? 1f : v;
+    }
+
+
+    private static int clampIndex( int i, int n ) {
+        return i < 0 ? 0 : i >= n ? n - 1 : i;
+    }
+
+
+    private static double sinc( double x ) {
+        if( Math.abs( x ) < 1e-6 ) {
+            return 1.0;
+        }
+        x *= Math.PI;
+        return Math.sin( x ) / x;
+    }
+
+    /**
+     * Zeroth order modified Bessel function of the first kind.
+     */
+    private static double bessel0( double x ) {
+        double sum  = 1.0;
+        double term = 1.0;
+        double hx   = x * 0.5;
+        for( int k = 1; k < 32; k++ ) {
+            term *= hx / k;
+            double t2 = term * term;
+            sum += t2;
+            if( t2 < sum * 1e-12 ) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+
+    private interface RowTask {
+        void run( int y0, int y1 );
+    }
+
+    /**
+     * Precomputed, normalized filter weights for resampling one dimension.
+     */
+    private static final class Kernel {
+        final int[]   mStart;
+        final int[]   mOffsets;
+        final float[] mWeights;
+
+        Kernel( Filter filter, int srcLen, int dstLen ) {
+            final double scale   = (double)srcLen / dstLen;
+            final double support = filter.mSupport * scale;
+            final int    maxTaps = (int)Math.ceil( support * 2 ) + 3;
+
+            mStart   = new int[dstLen];
+            mOffsets = new int[dstLen + 1];
+            float[] weights = new float[dstLen * maxTaps];
+            int pos = 0;
+
+            for( int i = 0; i < dstLen; i++ ) {
+                double center = ( i + 0.5 ) * scale;
+                int j0 = (int)Math.floor( center - support - 0.5 );
+                int j1 = (int)Math.ceil( center + support + 0.5 );
+                double sum = 0.0;
+                int start = pos;
+                for( int j = j0; j < j1 && pos - start < maxTaps; j++ ) {
+                    double wt = filter.eval( ( j + 0.5 - center ) / scale );
+                    weights[pos++] = (float)wt;
+                    sum += wt;
+                }
+                if( sum != 0.0 ) {
+                    for( int k = start; k < pos; k++ ) {
+                        weights[k] /= sum;
+                    }
+                }
+                mStart[i]       = j0;
+                mOffsets[i + 1] = pos;
+            }
+            mWeights = weights;
+        }
+    }
+
+}
@@ -15,6 +15,11 @@ import static android.opengl.GLES30.*;
 
 
 /**
+ * 2D texture with mipmaps. By default, level 0 is uploaded and the remaining levels
+ * are generated by the driver with {@code glGenerateMipmap}. Alternatively, a
+ * complete {@link MipChain} may be provided, for example from a {@link MipGenerator},
+ * in which case every level is uploaded explicitly.
+ *
  * @author decamp
  */
 public class Mipmap2 extends AbstractTexture {
@@ -22,6 +27,7 @@ public class Mipmap2 extends AbstractTexture {
 
     private ByteBuffer mBuf = null;
     private int mStride = 0;
+    private MipChain mChain = null;
 
 
     public Mipmap2() {
@@ -33,14 +39,47 @@ public class Mipmap2 extends AbstractTexture {
         if( image == null ) {
             buffer( null, 0, 0, 0, -1, -1, -1 );
         } else {
-            int[] format = new int[2];
+            int[] format = new int[3];
             ByteBuffer buf = DrawUtil.imageToBuffer( image, null, null, format );
             int w = image.getWidth();
-            buffer( buf, format[0], format[1], GL_UNSIGNED_BYTE, w, image.getHeight(), w );
+            buffer( buf, format[0], format[1], format[2], w, image.getHeight(), w );
         }
     }
 
 
+    /**
+     * Generates mip chain for image on calling thread with {@code gen} and buffers all levels.
+     */
+    public void buffer( Bitmap image, MipGenerator gen ) {
+        if( image == null ) {
+            buffer( null, 0, 0, 0, -1, -1, -1 );
+            return;
+        }
+        int[] format = new int[2];
+        // Generator requires byte samples.
+        ByteBuffer buf = DrawUtil.imageConverter().toByteSamples( image, null, format );
+        int w = image.getWidth();
+        int h = image.getHeight();
+        buffer( gen.generate( buf, w, h, buf.remaining() / ( w * h ) ), format[0], format[1] );
+    }
+
+    /**
+     * Buffers complete mip chain with unsigned byte samples. Each level will be uploaded explicitly.
+     */
+    public synchronized void buffer( MipChain chain, int intFormat, int format ) {
+        if( chain == null ) {
+            buffer( null, 0, 0, 0, -1, -1, -1 );
+            return;
+        }
+        super.format( intFormat, format, GL_UNSIGNED_BYTE );
+        super.size( chain.width( 0 ), chain.height( 0 ) );
+        mBuf    = null;
+        mStride = 0;
+        mChain  = chain;
+        fireAlloc();
+    }
+
+
     public synchronized void buffer( ByteBuffer buf,
                                      int intFormat,
                                      int format,
@@ -49,6 +88,7 @@ public class Mipmap2 extends AbstractTexture {
                                      int h,
                                      int stride )
     {
+        mChain = null;
         if( buf == null ) {
             if( mBuf == null ) {
                 return;
@@ -77,22 +117,75 @@ public class Mipmap2 extends AbstractTexture {
     public void dispose( DrawEnv g ) {
         super.dispose( g );
         mBuf = null;
+        mChain = null;
     }
 
     @Override
     protected synchronized void doAlloc( DrawEnv g ) {
+        if( mChain != null ) {
+            allocChain( mChain );
+            mChain = null;
+            return;
+        }
         GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, mStride );
-        GLES30.glTexImage2D( GL_TEXTURE_2D,
-                             0, //level
-                             internalFormat(),
-                             width(),
-                             height(),
-                             0, // border
-                             format(),
-                             dataType(),
-                             mBuf );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        if( hasStorage() ) {
+            if( mBuf != null ) {
+                GLES30.glTexSubImage2D( GL_TEXTURE_2D, 0, 0, 0, width(), height(), format(), dataType(), mBuf );
+            }
+        } else {
+            GLES30.glTexImage2D( GL_TEXTURE_2D,
+                                 0, //level
+                                 internalFormat(),
+                                 width(),
+                                 height(),
+                                 0, // border
+                                 format(),
+                                 dataType(),
+                                 mBuf );
+        }
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
         GLES30.glGenerateMipmap( GL_TEXTURE_2D );
         mBuf = null;
     }
 
-}
\ No newline at end of file
+    @Override
+    protected int storageLevelNum() {
+        int ret = mChain != null ? mChain.levelNum() : MipChain.levelNumFor( width(), height() );
+        Integer maxLevel = param( GL_TEXTURE_MAX_LEVEL );
+        return maxLevel != null ? Math.min( ret, maxLevel + 1 ) : ret;
+    }
+
+
+    private void allocChain( MipChain chain ) {
+        // Rows of small levels are not 4-byte aligned.
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        final int levels = hasStorage() ? Math.min( chain.levelNum(), storageLevelNum() ) : chain.levelNum();
+        for( int level = 0; level < levels; level++ ) {
+            if( hasStorage() ) {
+                GLES30.glTexSubImage2D( GL_TEXTURE_2D,
+                                        level,
+                                        0,
+                                        0,
+                                        chain.width( level ),
+                                        chain.height( level ),
+                                        format(),
+                                        dataType(),
+                                        chain.level( level ) );
+            } else {
+                GLES30.glTexImage2D( GL_TEXTURE_2D,
+                                     level,
+                                     internalFormat(),
+                                     chain.width( level ),
+                                     chain.height( level ),
+                                     0, // border
+                                     format(),
+                                     dataType(),
+                                     chain.level( level ) );
+            }
+        }
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+    }
+
+}
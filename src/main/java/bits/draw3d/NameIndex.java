@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.util.Arrays;
+
+
+/**
+ * Open-addressing map from resource names to non-negative integer indices.
+ * Used to resolve uniform and block member names without scanning lists.
+ *
+ * <p>Keys are probed linearly. Each slot stores the hash of its key, so most misses
+ * are resolved without calling {@code String.equals}.
+ *
+ * @author Philip DeCamp
+ */
+final class NameIndex {
+
+    private String[] mKeys;
+    private int[]    mHashes;
+    private int[]    mVals;
+    private int      mMask;
+    private int      mSize = 0;
+
+
+    NameIndex() {
+        this( 8 );
+    }
+
+
+    NameIndex( int expectedSize ) {
+        int cap = 4;
+        // Keep load factor under 1/2.
+        while( cap < expectedSize * 2 ) {
+            cap <<= 1;
+        }
+        alloc( cap );
+    }
+
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return index associated with name, or -1 if none.
+     */
+    int get( String name ) {
+        if( name == null ) {
+            return -1;
+        }
+        final int hash = hash( name );
+        final int mask = mMask;
+        int i = hash & mask;
+        while( true ) {
+            String k = mKeys[i];
+            if( k == null ) {
+                return -1;
+            }
+            if( mHashes[i] == hash && ( k == name || k.equals( name ) ) ) {
+                return mVals[i];
+            }
+            i = ( i + 1 ) & mask;
+        }
+    }
+
+    /**
+     * Associates name with index. If name is already present, its index is replaced.
+     */
+    void put( String name, int val ) {
+        insert( name, val, true );
+    }
+
+    /**
+     * Associates name with index only if name is not already present, so that lookups
+     * find the first of several entries with the same name.
+     *
+     * @return index already associated with name, or -1 if val was added.
+     */
+    int putIfAbsent( String name, int val ) {
+        return insert( name, val, false );
+    }
+
+
+    void clear() {
+        Arrays.fill( mKeys, null );
+        mSize = 0;
+    }
+
+
+    private int insert( String name, int val, boolean replace ) {
+        if( ( mSize + 1 ) * 2 > mKeys.length ) {
+            rehash( mKeys.length * 2 );
+        }
+        final int hash = hash( name );
+        final int mask = mMask;
+        int i = hash & mask;
+        while( true ) {
+            String k = mKeys[i];
+            if( k == null ) {
+                mKeys[i]   = name;
+                mHashes[i] = hash;
+                mVals[i]   = val;
+                mSize++;
+                return -1;
+            }
+            if( mHashes[i] == hash && k.equals( name ) ) {
+                int prev = mVals[i];
+                if( replace ) {
+                    mVals[i] = val;
+                }
+                return prev;
+            }
+            i = ( i + 1 ) & mask;
+        }
+    }
+
+
+    private void rehash( int cap ) {
+        String[] keys = mKeys;
+        int[] vals    = mVals;
+        alloc( cap );
+        mSize = 0;
+        for( int i = 0; i < keys.length; i++ ) {
+            if( keys[i] != null ) {
+                put( keys[i], vals[i] );
+            }
+        }
+    }
+
+
+    private void alloc( int cap ) {
+        mKeys   = new String[cap];
+        mHashes = new int[cap];
+        mVals   = new int[cap];
+        mMask   = cap - 1;
+    }
+
+
+    private static int hash( String s ) {
+        // String caches its hashCode. Spread high bits since we mask off low bits.
+        int h = s.hashCode();
+        return h ^ ( h >>> 16 );
+    }
+
+}
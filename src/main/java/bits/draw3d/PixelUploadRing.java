@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Uploads texture data through a ring of pixel unpack buffers so that
+ * {@code glTexSubImage*} calls return without waiting for the driver to copy client memory.
+ *
+ * <p>Each upload takes the next slot of the ring, maps its buffer with
+ * {@code GL_MAP_UNSYNCHRONIZED_BIT}, copies the pixels, and issues the upload sourced
+ * from the buffer. A fence is inserted after the upload, and the slot is not written
+ * again until the fence has signaled, so the unsynchronized mapping never overwrites
+ * data still in use. If the next slot is busy, uploads return false unless blocking is
+ * enabled, allowing callers to fall back to client memory or defer the upload.
+ *
+ * <p>The Java bindings at API 19 provide an offset variant of {@code glTexSubImage3D},
+ * but not of the 2D calls, and {@code glTexSubImage2D} rejects a {@code null} pixel
+ * buffer. 2D images are therefore uploaded with {@link #texImage2D}, which passes
+ * {@code null} to {@code glTexImage2D} and so reads from offset zero of the bound
+ * buffer. That call allocates the level, so it may only be used for textures with
+ * mutable storage; {@link Texture2} uses it when given a ring. Each upload begins at
+ * offset zero of its own buffer object. Slots grow as needed to hold the largest upload.
+ *
+ * <p>For {@link #texSubImage3D}, textures must already have storage for the target
+ * level. All methods must be called on the GL thread.
+ *
+ * @author Philip DeCamp
+ */
+public class PixelUploadRing implements DrawResource {
+
+    public static final int DEFAULT_SLOT_NUM = 3;
+
+    private static final int  MIN_SLOT_BYTES = 64 * 1024;
+    private static final long WAIT_NANOS     = 1000000L;
+
+    private final int[]  mIds;
+    private final int[]  mCaps;
+    private final long[] mFences;
+
+    private int     mNext     = 0;
+    private boolean mBlocking = false;
+
+    private int  mUploadNum   = 0;
+    private long mUploadBytes = 0;
+    private int  mBusyNum     = 0;
+    private long mWaitNanos   = 0;
+
+
+    public PixelUploadRing() {
+        this( DEFAULT_SLOT_NUM );
+    }
+
+    /**
+     * @param slotNum Number of buffers in ring. Determines how many uploads may be in flight at once.
+     */
+    public PixelUploadRing( int slotNum ) {
+        slotNum = Math.max( 1, slotNum );
+        mIds    = new int[slotNum];
+        mCaps   = new int[slotNum];
+        mFences = new long[slotNum];
+    }
+
+    /**
+     * @param blocking If true, uploads wait for busy slots instead of failing.
+     */
+    public void blocking( boolean blocking ) {
+        mBlocking = blocking;
+    }
+
+
+    public boolean blocking() {
+        return mBlocking;
+    }
+
+
+    public int slotNum() {
+        return mIds.length;
+    }
+
+    /**
+     * @return true if next upload can be issued without waiting.
+     */
+    public boolean ready() {
+        return mIds[0] == 0 || retire( mNext, 0L );
+    }
+
+    /**
+     * Uploads a region of a 3D or array texture from a pixel unpack buffer. The texture
+     * must be bound to {@code target}.
+     *
+     * @param rowLength   Pixels per row of {@code pixels}, or 0 if rows are tightly packed.
+     * @param imageHeight Rows per image of {@code pixels}, or 0 if images are tightly packed.
+     * @param pixels      Pixel data. All remaining bytes are copied. Position is not modified.
+     * @return true if upload was issued. False if next slot is busy and ring is not blocking.
+     */
+    public boolean texSubImage3D( DrawEnv d,
+                                  int target,
+                                  int level,
+                                  int x,
+                                  int y,
+                                  int z,
+                                  int w,
+                                  int h,
+                                  int depth,
+                                  int format,
+                                  int dataType,
+                                  int rowLength,
+                                  int imageHeight,
+                                  ByteBuffer pixels )
+    {
+        if( !stage( d, pixels ) ) {
+            return false;
+        }
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, rowLength );
+        GLES30.glPixelStorei( GL_UNPACK_IMAGE_HEIGHT, imageHeight );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        GLES30.glTexSubImage3D( target, level, x, y, z, w, h, depth, format, dataType, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_IMAGE_HEIGHT, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+        finish( d, pixels.remaining() );
+        return true;
+    }
+
+    /**
+     * Defines a level of a 2D texture with mutable storage from a pixel unpack buffer.
+     * The texture must be bound to {@code target}.
+     *
+     * @param target    GL_TEXTURE_2D or a cube map face.
+     * @param rowLength Pixels per row of {@code pixels}, or 0 if rows are tightly packed.
+     * @param pixels    Pixel data. All remaining bytes are copied. Position is not modified.
+     * @return true if upload was issued. False if next slot is busy and ring is not blocking.
+     */
+    public boolean texImage2D( DrawEnv d,
+                               int target,
+                               int level,
+                               int intFormat,
+                               int w,
+                               int h,
+                               int format,
+                               int dataType,
+                               int rowLength,
+                               ByteBuffer pixels )
+    {
+        if( !stage( d, pixels ) ) {
+            return false;
+        }
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, rowLength );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        // With an unpack buffer bound, a null pointer is read as offset 0.
+        GLES30.glTexImage2D( target, level, intFormat, w, h, 0, format, dataType, null );
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+        finish( d, pixels.remaining() );
+        return true;
+    }
+
+    /**
+     * @return number of uploads issued.
+     */
+    public int uploadCount() {
+        return mUploadNum;
+    }
+
+
+    public long uploadBytes() {
+        return mUploadBytes;
+    }
+
+    /**
+     * @return number of times an upload found the next slot still in use.
+     */
+    public int busyCount() {
+        return mBusyNum;
+    }
+
+    /**
+     * @return total time spent waiting on fences in blocking mode.
+     */
+    public long waitNanos() {
+        return mWaitNanos;
+    }
+
+    @Override
+    public void init( DrawEnv d ) {
+        if( mIds[0] != 0 ) {
+            return;
+        }
+        GLES30.glGenBuffers( mIds.length, mIds, 0 );
+        d.checkErr();
+    }
+
+    @Override
+    public void dispose( DrawEnv d ) {
+        if( mIds[0] == 0 ) {
+            return;
+        }
+        for( int i = 0; i < mIds.length; i++ ) {
+            if( mFences[i] != 0 ) {
+                GLES30.glDeleteSync( mFences[i] );
+                mFences[i] = 0;
+            }
+            mCaps[i] = 0;
+        }
+        GLES30.glDeleteBuffers( mIds.length, mIds, 0 );
+        for( int i = 0; i < mIds.length; i++ ) {
+            mIds[i] = 0;
+        }
+        mNext = 0;
+    }
+
+    /**
+     * Copies pixels into next slot and leaves its buffer bound to GL_PIXEL_UNPACK_BUFFER.
+     */
+    private boolean stage( DrawEnv d, ByteBuffer pixels ) {
+        if( mIds[0] == 0 ) {
+            init( d );
+        }
+        final int slot = mNext;
+        if( !retire( slot, 0L ) ) {
+            mBusyNum++;
+            if( !mBlocking ) {
+                return false;
+            }
+            long t0 = System.nanoTime();
+            while( !retire( slot, WAIT_NANOS ) ) {}
+            mWaitNanos += System.nanoTime() - t0;
+        }
+
+        final int len = pixels.remaining();
+        GLES30.glBindBuffer( GL_PIXEL_UNPACK_BUFFER, mIds[slot] );
+        if( mCaps[slot] < len ) {
+            int cap = MIN_SLOT_BYTES;
+            while( cap < len ) {
+                cap *= 2;
+            }
+            GLES30.glBufferData( GL_PIXEL_UNPACK_BUFFER, cap, null, GL_STREAM_DRAW );
+            mCaps[slot] = cap;
+        }
+
+        ByteBuffer dst = (ByteBuffer)GLES30.glMapBufferRange( GL_PIXEL_UNPACK_BUFFER,
+                                                              0,
+                                                              len,
+                                                              GL_MAP_WRITE_BIT |
+                                                              GL_MAP_INVALIDATE_RANGE_BIT |
+                                                              GL_MAP_UNSYNCHRONIZED_BIT );
+        if( dst == null ) {
+            GLES30.glBindBuffer( GL_PIXEL_UNPACK_BUFFER, 0 );
+            d.checkErr();
+            return false;
+        }
+        dst.put( pixels.duplicate() );
+        if( !GLES30.glUnmapBuffer( GL_PIXEL_UNPACK_BUFFER ) ) {
+            // Buffer contents were lost. Rare; caller may retry.
+            GLES30.glBindBuffer( GL_PIXEL_UNPACK_BUFFER, 0 );
+            return false;
+        }
+        return true;
+    }
+
+
+    private void finish( DrawEnv d, int len ) {
+        // Unbind so that later client-memory uploads are not interpreted as buffer offsets.
+        GLES30.glBindBuffer( GL_PIXEL_UNPACK_BUFFER, 0 );
+        mFences[mNext] = GLES30.glFenceSync( GL_SYNC_GPU_COMMANDS_COMPLETE, 0 );
+        mNext = ( mNext + 1 ) % mIds.length;
+        mUploadNum++;
+        mUploadBytes += len;
+        d.checkErr();
+    }
+
+    /**
+     * @return true if slot is free, after waiting at most {@code timeoutNanos}.
+     */
+    private boolean retire( int slot, long timeoutNanos ) {
+        long fence = mFences[slot];
+        if( fence == 0 ) {
+            return true;
+        }
+        // Always flush, or a poll may never see the fence signal if nothing else flushes.
+        int result = GLES30.glClientWaitSync( fence, GL_SYNC_FLUSH_COMMANDS_BIT, timeoutNanos );
+        // On GL_WAIT_FAILED, the fence is invalid and cannot protect anything.
+        if( result != GL_TIMEOUT_EXPIRED ) {
+            GLES30.glDeleteSync( fence );
+            mFences[slot] = 0;
+            return true;
+        }
+        return false;
+    }
+
+}
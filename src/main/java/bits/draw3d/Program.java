@@ -30,19 +30,44 @@ public class Program implements DrawUnit {
     }
 
 
+    /**
+     * Adds shader to program. The program takes ownership of the reference to
+     * {@code shader} held by the caller and releases it in {@link #release}.
+     */
     public void addShader( Shader shader ) {
         mShaders.add( shader );
     }
 
 
+    /**
+     * Creates and links program. If the DrawEnv's ShaderManager has a {@link ProgramBinaryCache},
+     * the program is restored from the cache when possible, and stored in the cache after
+     * linking otherwise.
+     */
     public void init( DrawEnv d ) {
         mId = GLES30.glCreateProgram();
+
+        ProgramBinaryCache cache = d.mShaderMan.programCache();
+        String key = null;
+        if( cache != null ) {
+            key = cache.key( d.mShaderMan.defaultVersionOverride(), mShaders );
+            if( cache.restore( mId, key ) ) {
+                d.checkErr();
+                return;
+            }
+            cache.prepareLink( mId );
+        }
+
         for( Shader s : mShaders ) {
             s.init( d );
             GLES30.glAttachShader( mId, s.id() );
         }
         GLES30.glLinkProgram( mId );
         d.checkErr();
+
+        if( cache != null ) {
+            cache.store( mId, key );
+        }
     }
 
 
@@ -53,6 +78,18 @@ public class Program implements DrawUnit {
         }
     }
 
+    /**
+     * Disposes program and releases its shaders. Call when the program will not be
+     * used again. Must be called on the GL thread.
+     */
+    public void release( DrawEnv d ) {
+        dispose( d );
+        for( Shader s: mShaders ) {
+            s.deref();
+        }
+        mShaders.clear();
+    }
+
 
     public void bind( DrawEnv d ) {
         if( mId == 0 ) {
@@ -0,0 +1,419 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Stores linked program binaries on disk so that programs can be restored with
+ * {@code glProgramBinary} instead of being compiled from source.
+ *
+ * <p>Entries are keyed by a hash of the shader types and sources, the GLSL version
+ * override, and the driver string (vendor, renderer and version), so a driver update
+ * or any change to a shader invalidates the entry. Binaries rejected by the driver are
+ * deleted and the program is compiled normally. Files are written to a temporary file
+ * and renamed into place, so a crash never leaves a partial entry. When the total
+ * size of the cache exceeds its cap, the least recently used entries are deleted.
+ *
+ * <p>Install with {@link ShaderManager#programCache(ProgramBinaryCache)}. Apart from
+ * {@link #key}, which may be called from any thread, methods must be called on
+ * the GL thread.
+ *
+ * @author Philip DeCamp
+ */
+public class ProgramBinaryCache {
+
+    public static final long DEFAULT_MAX_BYTES = 16L * 1024L * 1024L;
+
+    private static final int    MAGIC  = 0x50424331; // "PBC1"
+    private static final int    HEADER = 16;
+    private static final String SUFFIX = ".bin";
+
+
+    /**
+     * Subset of GL used by the cache. Replaceable for testing.
+     */
+    public interface Gl {
+        /**
+         * @return string identifying driver. Binaries are only valid for the same driver.
+         */
+        String driverString();
+
+        /**
+         * Called before linking a program that will be cached.
+         */
+        void prepareLink( int program );
+
+        /**
+         * @param program   Linked program.
+         * @param outFormat Receives binary format at {@code outFormat[0]}.
+         * @return program binary, or {@code null} if not available.
+         */
+        byte[] getProgramBinary( int program, int[] outFormat );
+
+        /**
+         * @return true iff binary was accepted and program is linked.
+         */
+        boolean programBinary( int program, int format, byte[] data, int len );
+    }
+
+
+    private final File mDir;
+    private final Gl   mGl;
+    private       long mMaxBytes;
+
+    private String mDriver = null;
+
+    private int mHitNum    = 0;
+    private int mMissNum   = 0;
+    private int mRejectNum = 0;
+    private int mStoreNum  = 0;
+
+
+    public ProgramBinaryCache( File dir ) {
+        this( dir, DEFAULT_MAX_BYTES, null );
+    }
+
+    /**
+     * @param dir      Directory holding cache files. Created if it does not exist.
+     * @param maxBytes Maximum total size of cache files.
+     * @param optGl    GL implementation, or {@code null} for GLES30.
+     */
+    public ProgramBinaryCache( File dir, long maxBytes, Gl optGl ) {
+        mDir      = dir;
+        mMaxBytes = maxBytes;
+        mGl       = optGl != null ? optGl : new Gles30Gl();
+    }
+
+
+    public File directory() {
+        return mDir;
+    }
+
+
+    public long maxBytes() {
+        return mMaxBytes;
+    }
+
+
+    public void maxBytes( long maxBytes ) {
+        mMaxBytes = maxBytes;
+        trim( null );
+    }
+
+    /**
+     * Computes cache key for a program. Driver string is queried on the first call,
+     * so the first call must be made on the GL thread.
+     *
+     * @param optVersionOverride GLSL version override applied to sources.
+     * @param shaders            Shaders of program, in order of attachment.
+     * @return hex string key
+     */
+    public String key( String optVersionOverride, List<Shader> shaders ) {
+        return Shaders.sourceKey( shaders, driverString(), optVersionOverride );
+    }
+
+    /**
+     * Attempts to load a program binary from the cache.
+     *
+     * @param program Unlinked program object.
+     * @param key     Key from {@link #key}.
+     * @return true if program was restored and linked. If false, program must be compiled and linked normally.
+     */
+    public boolean restore( int program, String key ) {
+        File file = file( key );
+        byte[] data = read( file );
+        if( data == null ) {
+            mMissNum++;
+            return false;
+        }
+
+        ByteBuffer bb = ByteBuffer.wrap( data ).order( ByteOrder.LITTLE_ENDIAN );
+        int magic  = bb.getInt();
+        int format = bb.getInt();
+        int len    = bb.getInt();
+        int crc    = bb.getInt();
+        if( magic != MAGIC || len != data.length - HEADER || crc != crc( data, HEADER, len ) ) {
+            file.delete();
+            mRejectNum++;
+            return false;
+        }
+
+        byte[] bin = Arrays.copyOfRange( data, HEADER, data.length );
+        if( !mGl.programBinary( program, format, bin, len ) ) {
+            file.delete();
+            mRejectNum++;
+            return false;
+        }
+
+        file.setLastModified( System.currentTimeMillis() );
+        mHitNum++;
+        return true;
+    }
+
+    /**
+     * Must be called before linking a program that will be passed to {@link #store}.
+     */
+    public void prepareLink( int program ) {
+        mGl.prepareLink( program );
+    }
+
+    /**
+     * Retrieves binary of linked program and writes it to cache.
+     *
+     * @return true if stored.
+     */
+    public boolean store( int program, String key ) {
+        int[] format = { 0 };
+        byte[] bin = mGl.getProgramBinary( program, format );
+        if( bin == null || bin.length == 0 ) {
+            return false;
+        }
+
+        ByteBuffer bb = ByteBuffer.allocate( HEADER + bin.length ).order( ByteOrder.LITTLE_ENDIAN );
+        bb.putInt( MAGIC );
+        bb.putInt( format[0] );
+        bb.putInt( bin.length );
+        bb.putInt( crc( bin, 0, bin.length ) );
+        bb.put( bin );
+
+        File file = file( key );
+        if( !writeAtomic( file, bb.array() ) ) {
+            return false;
+        }
+        mStoreNum++;
+        trim( file );
+        return true;
+    }
+
+    /**
+     * Deletes all cache entries.
+     */
+    public void clear() {
+        File[] files = mDir.listFiles();
+        if( files == null ) {
+            return;
+        }
+        for( File f: files ) {
+            if( f.getName().endsWith( SUFFIX ) ) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * @return total size of cache entries in bytes.
+     */
+    public long sizeBytes() {
+        long ret = 0;
+        for( File f: entries() ) {
+            ret += f.length();
+        }
+        return ret;
+    }
+
+    /**
+     * @return number of programs restored from cache.
+     */
+    public int hitCount() {
+        return mHitNum;
+    }
+
+    /**
+     * @return number of lookups that found no entry.
+     */
+    public int missCount() {
+        return mMissNum;
+    }
+
+    /**
+     * @return number of entries that were corrupt or rejected by the driver.
+     */
+    public int rejectCount() {
+        return mRejectNum;
+    }
+
+    /**
+     * @return number of entries written.
+     */
+    public int storeCount() {
+        return mStoreNum;
+    }
+
+
+    private String driverString() {
+        if( mDriver == null ) {
+            String s = mGl.driverString();
+            mDriver = s != null ? s : "";
+        }
+        return mDriver;
+    }
+
+
+    private File file( String key ) {
+        return new File( mDir, key + SUFFIX );
+    }
+
+
+    private File[] entries() {
+        File[] files = mDir.listFiles( new FileFilter() {
+            @Override
+            public boolean accept( File f ) {
+                return f.isFile() && f.getName().endsWith( SUFFIX );
+            }
+        } );
+        return files != null ? files : new File[0];
+    }
+
+    /**
+     * Deletes least recently used entries until cache fits within cap.
+     * @param optKeep Entry that should not be deleted, if possible.
+     */
+    private void trim( File optKeep ) {
+        File[] files = entries();
+        long total = 0;
+        for( File f: files ) {
+            total += f.length();
+        }
+        if( total <= mMaxBytes ) {
+            return;
+        }
+
+        final long[] times = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for( int i = 0; i < files.length; i++ ) {
+            times[i] = files[i].lastModified();
+            order[i] = i;
+        }
+        Arrays.sort( order, new Comparator<Integer>() {
+            @Override
+            public int compare( Integer a, Integer b ) {
+                return Long.compare( times[a], times[b] );
+            }
+        } );
+
+        for( int i = 0; i < order.length && total > mMaxBytes; i++ ) {
+            File f = files[order[i]];
+            if( f.equals( optKeep ) ) {
+                continue;
+            }
+            long len = f.length();
+            if( f.delete() ) {
+                total -= len;
+            }
+        }
+    }
+
+
+    private boolean writeAtomic( File file, byte[] data ) {
+        if( !mDir.isDirectory() && !mDir.mkdirs() ) {
+            return false;
+        }
+        File tmp = new File( mDir, file.getName() + ".tmp" + Thread.currentThread().getId() );
+        // No fsync, as this runs on the GL thread. Rename prevents partial files,
+        // and the CRC check rejects any file torn by a crash.
+        try( FileOutputStream out = new FileOutputStream( tmp ) ) {
+            out.write( data );
+        } catch( IOException e ) {
+            tmp.delete();
+            return false;
+        }
+        if( !tmp.renameTo( file ) ) {
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+
+    private static byte[] read( File file ) {
+        long len = file.length();
+        if( len < HEADER || len > Integer.MAX_VALUE ) {
+            return null;
+        }
+        byte[] ret = new byte[(int)len];
+        try( DataInputStream in = new DataInputStream( new FileInputStream( file ) ) ) {
+            in.readFully( ret );
+        } catch( IOException e ) {
+            return null;
+        }
+        return ret;
+    }
+
+
+    private static int crc( byte[] data, int off, int len ) {
+        CRC32 crc = new CRC32();
+        crc.update( data, off, len );
+        return (int)crc.getValue();
+    }
+
+
+    /**
+     * Default implementation of {@link Gl}.
+     */
+    public static class Gles30Gl implements Gl {
+
+        @Override
+        public String driverString() {
+            return GLES30.glGetString( GL_VENDOR ) + "/" +
+                   GLES30.glGetString( GL_RENDERER ) + "/" +
+                   GLES30.glGetString( GL_VERSION );
+        }
+
+        @Override
+        public void prepareLink( int program ) {
+            GLES30.glProgramParameteri( program, GL_PROGRAM_BINARY_RETRIEVABLE_HINT, GL_TRUE );
+        }
+
+        @Override
+        public byte[] getProgramBinary( int program, int[] outFormat ) {
+            int[] vals = { 0 };
+            GLES30.glGetProgramiv( program, GL_LINK_STATUS, vals, 0 );
+            if( vals[0] == 0 ) {
+                return null;
+            }
+            GLES30.glGetProgramiv( program, GL_PROGRAM_BINARY_LENGTH, vals, 0 );
+            final int cap = vals[0];
+            if( cap <= 0 ) {
+                return null;
+            }
+            ByteBuffer buf = DrawUtil.alloc( cap );
+            GLES30.glGetProgramBinary( program, cap, vals, 0, outFormat, 0, buf );
+            if( GLES30.glGetError() != GL_NO_ERROR || vals[0] <= 0 ) {
+                return null;
+            }
+            byte[] ret = new byte[vals[0]];
+            buf.clear();
+            buf.get( ret );
+            return ret;
+        }
+
+        @Override
+        public boolean programBinary( int program, int format, byte[] data, int len ) {
+            ByteBuffer buf = DrawUtil.alloc( len );
+            buf.put( data, 0, len ).flip();
+            GLES30.glProgramBinary( program, format, buf, len );
+            // Clear any error from rejected binary. Rejection is reported through link status.
+            GLES30.glGetError();
+            int[] status = { 0 };
+            GLES30.glGetProgramiv( program, GL_LINK_STATUS, status, 0 );
+            return status[0] != 0;
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Packs rectangles into a fixed area using the MaxRects algorithm with the
+ * best-short-side-fit heuristic.
+ *
+ * <p>The packer keeps a list of maximal free rectangles, which may overlap. Each
+ * insertion chooses the free rectangle that leaves the smallest leftover on its
+ * shorter side, then splits every free rectangle that intersects the placement
+ * and prunes free rectangles contained by others. Rectangles are never rotated,
+ * since atlas regions must keep their orientation.
+ *
+ * @author Philip DeCamp
+ */
+public final class RectPacker {
+
+    private final int mWidth;
+    private final int mHeight;
+
+    private final List<Rect> mFree     = new ArrayList<>();
+    private final List<Rect> mNewFree  = new ArrayList<>();
+    private       long       mUsedArea = 0;
+
+
+    public RectPacker( int width, int height ) {
+        mWidth  = width;
+        mHeight = height;
+        clear();
+    }
+
+
+    public int width() {
+        return mWidth;
+    }
+
+
+    public int height() {
+        return mHeight;
+    }
+
+    /**
+     * @return total area of inserted rectangles.
+     */
+    public long usedArea() {
+        return mUsedArea;
+    }
+
+    /**
+     * @return fraction of area occupied by inserted rectangles, in [0,1].
+     */
+    public double occupancy() {
+        return (double)mUsedArea / ( (long)mWidth * mHeight );
+    }
+
+    /**
+     * Removes all rectangles.
+     */
+    public void clear() {
+        mFree.clear();
+        mFree.add( new Rect( 0, 0, mWidth, mHeight ) );
+        mUsedArea = 0;
+    }
+
+    /**
+     * @param w   Width of rectangle.
+     * @param h   Height of rectangle.
+     * @param out Receives placement of rectangle, if found.
+     * @return true if rectangle was placed, false if it does not fit.
+     */
+    public boolean insert( int w, int h, Rect out ) {
+        if( w <= 0 || h <= 0 ) {
+            return false;
+        }
+
+        final List<Rect> free = mFree;
+        final int len = free.size();
+        int bestShort = Integer.MAX_VALUE;
+        int bestLong  = Integer.MAX_VALUE;
+        Rect best = null;
+
+        for( int i = 0; i < len; i++ ) {
+            Rect r = free.get( i );
+            int fw = r.x1 - r.x0;
+            int fh = r.y1 - r.y0;
+            if( fw < w || fh < h ) {
+                continue;
+            }
+            int dx = fw - w;
+            int dy = fh - h;
+            int s  = Math.min( dx, dy );
+            int l  = Math.max( dx, dy );
+            if( s < bestShort || s == bestShort && l < bestLong ) {
+                bestShort = s;
+                bestLong  = l;
+                best      = r;
+            }
+        }
+
+        if( best == null ) {
+            return false;
+        }
+
+        out.x0 = best.x0;
+        out.y0 = best.y0;
+        out.x1 = best.x0 + w;
+        out.y1 = best.y0 + h;
+        place( out );
+        mUsedArea += (long)w * h;
+        return true;
+    }
+
+
+    private void place( Rect used ) {
+        final List<Rect> free = mFree;
+        final List<Rect> added = mNewFree;
+        added.clear();
+
+        for( int i = free.size() - 1; i >= 0; i-- ) {
+            Rect r = free.get( i );
+            if( !r.intersects( used ) ) {
+                continue;
+            }
+            // Replace r with up to four maximal rectangles around the used area.
+            removeAt( free, i );
+            if( used.x0 > r.x0 ) {
+                added.add( new Rect( r.x0, r.y0, used.x0, r.y1 ) );
+            }
+            if( used.x1 < r.x1 ) {
+                added.add( new Rect( used.x1, r.y0, r.x1, r.y1 ) );
+            }
+            if( used.y0 > r.y0 ) {
+                added.add( new Rect( r.x0, r.y0, r.x1, used.y0 ) );
+            }
+            if( used.y1 < r.y1 ) {
+                added.add( new Rect( r.x0, used.y1, r.x1, r.y1 ) );
+            }
+        }
+
+        // New rectangles only need to be checked against each other and the survivors.
+        for( int i = 0; i < added.size(); i++ ) {
+            Rect a = added.get( i );
+            boolean contained = false;
+            for( int j = 0; j < free.size() && !contained; j++ ) {
+                contained = contains( free.get( j ), a );
+            }
+            for( int j = 0; j < added.size() && !contained; j++ ) {
+                // Ties are broken by index so that one of two equal rectangles survives.
+                if( i != j && contains( added.get( j ), a ) && ( j < i || !contains( a, added.get( j ) ) ) ) {
+                    contained = true;
+                }
+            }
+            if( contained ) {
+                continue;
+            }
+            for( int j = free.size() - 1; j >= 0; j-- ) {
+                if( contains( a, free.get( j ) ) ) {
+                    removeAt( free, j );
+                }
+            }
+            free.add( a );
+        }
+        added.clear();
+    }
+
+
+    private static boolean contains( Rect outer, Rect inner ) {
+        return inner.x0 >= outer.x0 && inner.y0 >= outer.y0 && inner.x1 <= outer.x1 && inner.y1 <= outer.y1;
+    }
+
+    /**
+     * Removes element without shifting, since order of free list is irrelevant.
+     */
+    private static void removeAt( List<Rect> list, int i ) {
+        int last = list.size() - 1;
+        list.set( i, list.get( last ) );
+        list.remove( last );
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Shares GLES 3.0 sampler objects among textures with identical sampling parameters.
+ *
+ * <p>Samplers are keyed by the sampler-state subset of a texture's parameter map:
+ * filters, wrap modes, LOD range and compare mode. Each distinct set of values
+ * produces one sampler object, so hundreds of textures with the same filtering
+ * share a handful of samplers. Parameters that belong to the texture object, such as
+ * {@code GL_TEXTURE_BASE_LEVEL} or swizzles, are ignored.
+ *
+ * <p>The cache also records the sampler bound to each texture unit and skips redundant
+ * {@code glBindSampler} calls. If the GL context is lost, call {@link #reset}.
+ * All methods must be called on the GL thread.
+ *
+ * @author Philip DeCamp
+ */
+public class SamplerCache {
+
+    /**
+     * @return true if {@code key} is part of sampler state, and therefore handled by samplers.
+     */
+    public static boolean isSamplerParam( int key ) {
+        switch( key ) {
+        case GL_TEXTURE_MIN_FILTER:
+        case GL_TEXTURE_MAG_FILTER:
+        case GL_TEXTURE_WRAP_S:
+        case GL_TEXTURE_WRAP_T:
+        case GL_TEXTURE_WRAP_R:
+        case GL_TEXTURE_MIN_LOD:
+        case GL_TEXTURE_MAX_LOD:
+        case GL_TEXTURE_COMPARE_MODE:
+        case GL_TEXTURE_COMPARE_FUNC:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+
+    private final Map<Map<Integer, Integer>, Sampler> mSamplers = new HashMap<>();
+
+    private int[] mBound = new int[16];
+
+    private int mBindNum = 0;
+    private int mSkipNum = 0;
+
+
+    public SamplerCache() {}
+
+    /**
+     * @param params Texture parameters. Only sampler parameters are used.
+     * @return shared sampler with the given parameters. The GL object is created on first use.
+     */
+    public Sampler sampler( DrawEnv d, Map<Integer, Integer> params ) {
+        Map<Integer, Integer> key = new HashMap<>( 8 );
+        for( Map.Entry<Integer, Integer> e: params.entrySet() ) {
+            if( isSamplerParam( e.getKey() ) ) {
+                key.put( e.getKey(), e.getValue() );
+            }
+        }
+
+        Sampler ret = mSamplers.get( key );
+        if( ret != null ) {
+            return ret;
+        }
+
+        int[] id = { 0 };
+        GLES30.glGenSamplers( 1, id, 0 );
+        if( id[0] == 0 ) {
+            throw new RuntimeException( "Failed to allocate sampler." );
+        }
+        for( Map.Entry<Integer, Integer> e: key.entrySet() ) {
+            int k = e.getKey();
+            if( k == GL_TEXTURE_MIN_LOD || k == GL_TEXTURE_MAX_LOD ) {
+                GLES30.glSamplerParameterf( id[0], k, e.getValue() );
+            } else {
+                GLES30.glSamplerParameteri( id[0], k, e.getValue() );
+            }
+        }
+        d.checkErr();
+
+        ret = new Sampler( id[0], key );
+        mSamplers.put( key, ret );
+        return ret;
+    }
+
+    /**
+     * Binds sampler to texture unit, unless already bound.
+     *
+     * @param unit       Texture unit. 0 is TEX_UNIT0.
+     * @param optSampler Sampler to bind, or {@code null} to let the texture's own parameters apply.
+     */
+    public void bind( int unit, Sampler optSampler ) {
+        int id = optSampler == null ? 0 : optSampler.mId;
+        if( unit >= mBound.length ) {
+            int[] arr = new int[Math.max( unit + 1, mBound.length * 2 )];
+            System.arraycopy( mBound, 0, arr, 0, mBound.length );
+            mBound = arr;
+        }
+        if( mBound[unit] == id ) {
+            mSkipNum++;
+            return;
+        }
+        mBound[unit] = id;
+        GLES30.glBindSampler( unit, id );
+        mBindNum++;
+    }
+
+    /**
+     * @return id of sampler recorded as bound to unit.
+     */
+    public int boundSampler( int unit ) {
+        return unit < mBound.length ? mBound[unit] : 0;
+    }
+
+    /**
+     * @return number of distinct samplers.
+     */
+    public int size() {
+        return mSamplers.size();
+    }
+
+    /**
+     * @return number of {@code glBindSampler} calls made.
+     */
+    public int bindCount() {
+        return mBindNum;
+    }
+
+    /**
+     * @return number of binds skipped because sampler was already bound.
+     */
+    public int skipCount() {
+        return mSkipNum;
+    }
+
+
+    public void resetCounts() {
+        mBindNum = 0;
+        mSkipNum = 0;
+    }
+
+    /**
+     * Forgets all samplers and bindings without making GL calls, for use after context loss.
+     */
+    public void reset() {
+        for( Sampler s: mSamplers.values() ) {
+            s.mId = 0;
+        }
+        mSamplers.clear();
+        mBound = new int[mBound.length];
+    }
+
+    /**
+     * Deletes all samplers. Textures referencing them will fetch new samplers on next bind.
+     */
+    public void dispose( DrawEnv d ) {
+        for( Sampler s: mSamplers.values() ) {
+            if( s.mId != 0 ) {
+                GLES30.glDeleteSamplers( 1, new int[]{ s.mId }, 0 );
+            }
+        }
+        reset();
+    }
+
+
+    /**
+     * Shared sampler object. Parameters may not be modified.
+     */
+    public static final class Sampler {
+
+        int mId;
+        private final Map<Integer, Integer> mParams;
+
+
+        Sampler( int id, Map<Integer, Integer> params ) {
+            mId     = id;
+            mParams = params;
+        }
+
+
+        public int id() {
+            return mId;
+        }
+
+
+        public Integer param( int key ) {
+            return mParams.get( key );
+        }
+
+    }
+
+}
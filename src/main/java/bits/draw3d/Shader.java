@@ -11,6 +11,11 @@ import bits.util.ref.Refable;
 
 
 /**
+ * A shader is created with a single reference held by the creator. Shaders obtained from a
+ * {@link ShaderManager} are shared between programs, each holding one reference.
+ * When the last reference is released, the GL shader is deleted. Because of this,
+ * {@link #deref()} must be called on the GL thread.
+ *
  * @author Philip DeCamp
  */
 public class Shader implements Refable {
@@ -22,6 +27,11 @@ public class Shader implements Refable {
     private int mId       = 0;
     private int mRefCount = 1;
 
+    /**
+     * Manager that interned this shader, if any.
+     */
+    ShaderManager mOwner = null;
+
 
     public Shader( int shaderType, String source ) {
         mShaderType = shaderType;
@@ -39,6 +49,11 @@ public class Shader implements Refable {
     }
 
 
+    public String source() {
+        return mSource;
+    }
+
+
     public void init( DrawEnv d ) {
         if( mId == 0 ) {
             mId = Shaders.compile( mShaderType, mSource );
@@ -47,16 +62,27 @@ public class Shader implements Refable {
     }
 
 
+    /**
+     * Deletes the GL shader immediately, regardless of references.
+     * Shared shaders should be released with {@link #deref()} instead.
+     */
     public void dispose( DrawEnv d ) {
-        if( mId != 0 ) {
+        if( mId == 0 ) {
             return;
         }
         GLES30.glDeleteShader( mId );
         mId = 0;
     }
 
+    /**
+     * Clears id of a GL shader that was lost with its context.
+     */
+    void forgetId() {
+        mId = 0;
+    }
+
     @Override
-    public boolean ref() {
+    public synchronized boolean ref() {
         if( mRefCount++ > 0 ) {
             return true;
         }
@@ -66,13 +92,27 @@ public class Shader implements Refable {
 
     @Override
     public void deref() {
-        if( --mRefCount < 0 ) {
-            mRefCount = 0;
+        synchronized( this ) {
+            if( mRefCount <= 0 ) {
+                return;
+            }
+            if( --mRefCount > 0 ) {
+                return;
+            }
+        }
+
+        ShaderManager owner = mOwner;
+        if( owner != null ) {
+            owner.release( this );
+        }
+        if( mId != 0 ) {
+            GLES30.glDeleteShader( mId );
+            mId = 0;
         }
     }
 
     @Override
-    public int refCount() {
+    public synchronized int refCount() {
         return mRefCount;
     }
 
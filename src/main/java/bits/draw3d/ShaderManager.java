@@ -11,15 +11,52 @@ import android.content.res.Resources;
 import bits.util.Streams;
 
 import java.io.*;
+import java.util.*;
 
 
 /**
+ * Loads, preprocesses and interns shaders.
+ *
+ * <p>Sources pass through a small preprocessor before compilation. The
+ * preprocessor replaces the {@code #version} directive if a version override
+ * is given. It then injects {@code #define} directives right after the
+ * {@code #version} line and expands {@code #include "path"} directives.
+ * Include paths are resolved against the directory of the including
+ * resource, or against the asset root if they begin with '/'. Each file is
+ * included at most once per shader, and any {@code #version} directive in
+ * an included file is dropped. So a variant can be written as:
+ * <pre>
+ * #version 330
+ * #define FOG
+ * #include "Color.vert"
+ * </pre>
+ * Other directives are left for the GLSL compiler. Expanded resource sources
+ * are cached by path, version override and defines, so each expansion
+ * happens once per process.
+ *
+ * <p>Shaders are interned by type and expanded source. Every program that
+ * loads the same source shares one Shader and one compiled GL shader. Each
+ * load call returns a new reference to the shared Shader. The caller must
+ * release it with {@link Shader#deref()}, or pass it to
+ * {@link Program#addShader}, which takes ownership of it. ShaderManager may
+ * be used from any thread.
+ *
  * @author Philip DeCamp
  */
 public class ShaderManager {
 
+    private static final String[] NO_DEFINES = {};
+
     private Resources mOptRes;
     private String mOptVersionOverride;
+    private ProgramBinaryCache mOptProgramCache = null;
+
+    private final Map<ShaderKey, Shader> mShaders = new HashMap<>();
+    private final Map<String, Shaders.Reflection> mReflections = new HashMap<>();
+
+    // Raw and expanded sources, by Resources instance and then by path or expansion key.
+    private final Map<Resources, Map<String, String>> mSources  = new WeakHashMap<>();
+    private final Map<Resources, Map<String, String>> mExpanded = new WeakHashMap<>();
 
 
     public ShaderManager( Resources optResources, String optVersionOverride ) {
@@ -37,17 +74,58 @@ public class ShaderManager {
         return mOptVersionOverride;
     }
 
+    /**
+     * @return cache used by programs to store linked binaries, or {@code null} if none.
+     */
+    public ProgramBinaryCache programCache() {
+        return mOptProgramCache;
+    }
+
+    /**
+     * @param optCache Cache that programs will use to restore and store linked binaries. May be {@code null}.
+     */
+    public void programCache( ProgramBinaryCache optCache ) {
+        mOptProgramCache = optCache;
+    }
+
+
+    /**
+     * @param key Key from {@link Shaders#sourceKey}.
+     * @return cached introspection results for programs with given key, or {@code null} if none.
+     */
+    public synchronized Shaders.Reflection reflection( String key ) {
+        return mReflections.get( key );
+    }
+
+    /**
+     * Caches introspection results of a linked program, so that later programs
+     * built from the same shader sources may skip introspection queries. Cached
+     * reflections should hold no program-specific locations; see {@link Shaders#layoutOf}.
+     *
+     * @param key Key from {@link Shaders#sourceKey}.
+     */
+    public synchronized void reflection( String key, Shaders.Reflection reflection ) {
+        mReflections.put( key, reflection );
+    }
+
+
+    public synchronized void clearReflections() {
+        mReflections.clear();
+    }
+
 
     public Shader loadSource( int type, String source ) {
         return loadSource( type, source, mOptVersionOverride );
     }
 
-
-    public Shader loadSource( int type, String source, String optVersionOverride ) {
-        if( optVersionOverride != null ) {
-            source = source.replaceFirst( "^#version\\s.*", "#version " + optVersionOverride );
-        }
-        return new Shader( type, source );
+    /**
+     * @param type               Shader type.
+     * @param source             Shader source. Includes are resolved against the asset root of the default Resources.
+     * @param optVersionOverride Replaces version of {@code #version} directive, if not {@code null}.
+     * @param defines            Definitions to inject, each of form "NAME" or "NAME VALUE".
+     */
+    public Shader loadSource( int type, String source, String optVersionOverride, String... defines ) {
+        return intern( type, preprocess( mOptRes, null, source, optVersionOverride, defines ) );
     }
 
 
@@ -55,8 +133,94 @@ public class ShaderManager {
         return loadResource( mOptRes, type, resourcePath, mOptVersionOverride );
     }
 
+    /**
+     * @param type         Shader type.
+     * @param resourcePath Asset path of shader.
+     * @param defines      Definitions to inject, each of form "NAME" or "NAME VALUE".
+     */
+    public Shader loadResource( int type, String resourcePath, String... defines ) {
+        return loadResource( mOptRes, type, resourcePath, mOptVersionOverride, defines );
+    }
+
+
+    public Shader loadResource( Resources res, int type, String resourcePath, String optVersionOverride, String... defines ) {
+        return intern( type, expandResource( res, resourcePath, optVersionOverride, defines ) );
+    }
+
+
+    public Shader loadFile( int type, File file ) {
+        try {
+            String s = Streams.readString( file );
+            return loadSource( type, s );
+        } catch( IOException e ) {
+            throw new LinkageError( "Could not run shader: " + file.getPath() );
+        }
+    }
+
+    /**
+     * Forgets GL ids of all interned shaders without deleting them, for use when a new
+     * context has been created. Shaders are compiled again when programs using them
+     * are next initialized. Called by {@link DrawEnv#onContextCreated}.
+     */
+    public synchronized void onContextCreated() {
+        for( Shader s: mShaders.values() ) {
+            s.forgetId();
+        }
+    }
+
+    /**
+     * @return number of distinct shaders currently interned.
+     */
+    public synchronized int internedNum() {
+        return mShaders.size();
+    }
+
+    /**
+     * Returns the preprocessed source of a shader resource. Expansions are cached.
+     *
+     * @param res                Resources holding shader.
+     * @param resourcePath       Asset path of shader.
+     * @param optVersionOverride Replaces version of {@code #version} directive, if not {@code null}.
+     * @param defines            Definitions to inject, each of form "NAME" or "NAME VALUE".
+     */
+    public String expandResource( Resources res, String resourcePath, String optVersionOverride, String... defines ) {
+        if( defines == null ) {
+            defines = NO_DEFINES;
+        }
+        StringBuilder sb = new StringBuilder( resourcePath );
+        sb.append( '\0' ).append( optVersionOverride );
+        for( String d: defines ) {
+            sb.append( '\0' ).append( d );
+        }
+        final String key = sb.toString();
+
+        synchronized( this ) {
+            String ret = cacheFor( mExpanded, res ).get( key );
+            if( ret != null ) {
+                return ret;
+            }
+        }
+
+        String ret = preprocess( res, resourcePath, readResource( res, resourcePath ), optVersionOverride, defines );
+        synchronized( this ) {
+            cacheFor( mExpanded, res ).put( key, ret );
+        }
+        return ret;
+    }
+
+    /**
+     * Reads the raw source of a shader resource. Sources are cached.
+     */
+    public String readResource( Resources res, String resourcePath ) {
+        if( res != null ) {
+            synchronized( this ) {
+                String source = cacheFor( mSources, res ).get( resourcePath );
+                if( source != null ) {
+                    return source;
+                }
+            }
+        }
 
-    public Shader loadResource( Resources res, int type, String resourcePath, String optVersionOverride ) {
         String source = null;
 
         if( res != null ) {
@@ -69,16 +233,220 @@ public class ShaderManager {
             throw new LinkageError( "Could not find shader: " + resourcePath );
         }
 
-        return loadSource( type, source, optVersionOverride );
+        synchronized( this ) {
+            cacheFor( mSources, res ).put( resourcePath, source );
+        }
+
+        return source;
     }
 
 
-    public Shader loadFile( int type, File file ) {
-        try {
-            String s = Streams.readString( file );
-            return loadSource( type, s );
-        } catch( IOException e ) {
-            throw new LinkageError( "Could not run shader: " + file.getPath() );
+    private String preprocess( Resources res, String optPath, String source, String optVersionOverride, String[] defines ) {
+        if( defines == null ) {
+            defines = NO_DEFINES;
+        }
+        StringBuilder out = new StringBuilder( source.length() + 256 );
+        Set<String> included = new HashSet<>();
+        if( optPath != null ) {
+            included.add( optPath );
+        }
+
+        // Find version directive, which must precede everything but comments.
+        String[] lines = source.split( "\n", -1 );
+        int versionLine = -1;
+        for( int i = 0; i < lines.length; i++ ) {
+            if( isDirective( lines[i], "version" ) ) {
+                versionLine = i;
+                break;
+            }
+        }
+
+        for( int i = 0; i <= versionLine; i++ ) {
+            if( i == versionLine && optVersionOverride != null ) {
+                out.append( "#version " ).append( optVersionOverride ).append( '\n' );
+            } else {
+                out.append( lines[i] ).append( '\n' );
+            }
+        }
+        for( String d: defines ) {
+            out.append( "#define " ).append( d ).append( '\n' );
+        }
+        if( defines.length > 0 && versionLine >= 0 ) {
+            out.append( "#line " ).append( versionLine + 2 ).append( '\n' );
+        }
+
+        List<String> files = new ArrayList<>();
+        files.add( optPath );
+        expandLines( res, optPath, lines, versionLine + 1, 0, files, included, out );
+
+        // Remove newline appended after last line.
+        if( out.length() > 0 ) {
+            out.setLength( out.length() - 1 );
+        }
+        return out.toString();
+    }
+
+
+    private void expandLines( Resources res,
+                              String optPath,
+                              String[] lines,
+                              int start,
+                              int fileIndex,
+                              List<String> files,
+                              Set<String> included,
+                              StringBuilder out )
+    {
+        for( int i = start; i < lines.length; i++ ) {
+            String line = lines[i];
+            if( fileIndex > 0 && isDirective( line, "version" ) ) {
+                out.append( '\n' );
+                continue;
+            }
+            if( !isDirective( line, "include" ) ) {
+                out.append( line ).append( '\n' );
+                continue;
+            }
+
+            String path = resolveInclude( optPath, includeTarget( line ) );
+            if( !included.add( path ) ) {
+                out.append( '\n' );
+                continue;
+            }
+            String[] inc = readResource( res, path ).split( "\n", -1 );
+            int index = files.size();
+            files.add( path );
+            out.append( "#line 1 " ).append( index ).append( '\n' );
+            expandLines( res, path, inc, 0, index, files, included, out );
+            out.append( "#line " ).append( i + 2 ).append( ' ' ).append( fileIndex ).append( '\n' );
+        }
+    }
+
+
+    private static boolean isDirective( String line, String name ) {
+        int p = 0;
+        final int len = line.length();
+        while( p < len && Character.isWhitespace( line.charAt( p ) ) ) {
+            p++;
+        }
+        if( p == len || line.charAt( p++ ) != '#' ) {
+            return false;
+        }
+        while( p < len && Character.isWhitespace( line.charAt( p ) ) ) {
+            p++;
+        }
+        if( !line.startsWith( name, p ) ) {
+            return false;
+        }
+        p += name.length();
+        return p == len || Character.isWhitespace( line.charAt( p ) ) || line.charAt( p ) == '"' || line.charAt( p ) == '<';
+    }
+
+
+    private static String includeTarget( String line ) {
+        int a = line.indexOf( '"' );
+        int b = a < 0 ? -1 : line.indexOf( '"', a + 1 );
+        if( b < 0 ) {
+            a = line.indexOf( '<' );
+            b = a < 0 ? -1 : line.indexOf( '>', a + 1 );
+        }
+        if( b < 0 ) {
+            throw new LinkageError( "Malformed include: " + line.trim() );
+        }
+        return line.substring( a + 1, b );
+    }
+
+
+    private static String resolveInclude( String optParent, String target ) {
+        String path;
+        if( target.startsWith( "/" ) ) {
+            path = target.substring( 1 );
+        } else if( optParent != null && optParent.lastIndexOf( '/' ) >= 0 ) {
+            path = optParent.substring( 0, optParent.lastIndexOf( '/' ) + 1 ) + target;
+        } else {
+            path = target;
+        }
+
+        // Normalize "." and ".." segments. AssetManager does not.
+        ArrayList<String> parts = new ArrayList<>();
+        for( String s: path.split( "/" ) ) {
+            if( s.isEmpty() || s.equals( "." ) ) {
+                continue;
+            }
+            if( s.equals( ".." ) ) {
+                if( !parts.isEmpty() ) {
+                    parts.remove( parts.size() - 1 );
+                }
+                continue;
+            }
+            parts.add( s );
+        }
+        StringBuilder sb = new StringBuilder( path.length() );
+        for( String s: parts ) {
+            if( sb.length() > 0 ) {
+                sb.append( '/' );
+            }
+            sb.append( s );
+        }
+        return sb.toString();
+    }
+
+
+    private static Map<String, String> cacheFor( Map<Resources, Map<String, String>> caches, Resources res ) {
+        Map<String, String> ret = caches.get( res );
+        if( ret == null ) {
+            ret = new HashMap<>();
+            caches.put( res, ret );
+        }
+        return ret;
+    }
+
+
+    private synchronized Shader intern( int type, String source ) {
+        ShaderKey key = new ShaderKey( type, source );
+        Shader shader = mShaders.get( key );
+        if( shader != null && shader.ref() ) {
+            return shader;
+        }
+        shader = new Shader( type, source );
+        shader.mOwner = this;
+        mShaders.put( key, shader );
+        return shader;
+    }
+
+    /**
+     * Called by Shader when its last reference is released.
+     */
+    synchronized void release( Shader shader ) {
+        ShaderKey key = new ShaderKey( shader.shaderType(), shader.source() );
+        if( mShaders.get( key ) == shader ) {
+            mShaders.remove( key );
+        }
+    }
+
+
+    private static final class ShaderKey {
+        final int    mType;
+        final String mSource;
+        final int    mHash;
+
+        ShaderKey( int type, String source ) {
+            mType   = type;
+            mSource = source;
+            mHash   = type * 31 + source.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals( Object obj ) {
+            if( !( obj instanceof ShaderKey ) ) {
+                return false;
+            }
+            ShaderKey k = (ShaderKey)obj;
+            return mHash == k.mHash && mType == k.mType && mSource.equals( k.mSource );
         }
     }
 
@@ -10,7 +10,11 @@ import android.opengl.GLES30;
 import android.opengl.GLException;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 import static android.opengl.GLES30.*;
@@ -178,6 +182,109 @@ public class Shaders {
     }
 
 
+    /**
+     * Queries all attributes, uniforms and uniform blocks of a linked program.
+     */
+    public static Reflection reflect( int program ) {
+        List<ProgramResource> attribs = listAttributes( program );
+        List<Uniform> uniforms = listUniforms( program );
+        List<UniformBlock> blocks = listUniformBlocks( program, uniforms );
+        return new Reflection( attribs, uniforms, blocks );
+    }
+
+    /**
+     * Removes program-specific values from a reflection, so that it may be shared by
+     * programs linked from the same sources. GL does not guarantee that separately
+     * linked programs assign the same locations or indices, so locations, uniform
+     * indices and block indices are set to -1. Names, types, sizes, offsets and
+     * strides are kept. Uniforms in a block keep the position of their block in
+     * {@code mBlocks} as their block index.
+     *
+     * @param ref Reflection from {@link #reflect}.
+     * @return reflection that must be completed with {@link #locate} before use.
+     */
+    public static Reflection layoutOf( Reflection ref ) {
+        List<ProgramResource> attribs = new ArrayList<>( ref.mAttribs.size() );
+        for( ProgramResource a: ref.mAttribs ) {
+            attribs.add( new ProgramResource( a.mInterface, a.mMemberType, a.mArrayLength, -1, -1, a.mName ) );
+        }
+        return rebuild( ref, attribs, null, null, null );
+    }
+
+    /**
+     * Queries locations and indices of a linked program for a reflection produced
+     * by {@link #layoutOf}. Only name lookups are issued, which is much cheaper than
+     * full introspection.
+     *
+     * @return reflection for {@code program}.
+     */
+    public static Reflection locate( Reflection layout, int program ) {
+        List<ProgramResource> attribs = new ArrayList<>( layout.mAttribs.size() );
+        for( ProgramResource a: layout.mAttribs ) {
+            int loc = GLES30.glGetAttribLocation( program, a.mName );
+            attribs.add( new ProgramResource( a.mInterface, a.mMemberType, a.mArrayLength, loc, loc, a.mName ) );
+        }
+
+        final int uniNum = layout.mUniforms.size();
+        String[] names  = new String[uniNum];
+        int[] indices   = new int[uniNum];
+        int[] locations = new int[uniNum];
+        for( int i = 0; i < uniNum; i++ ) {
+            names[i] = layout.mUniforms.get( i ).mName;
+        }
+        if( uniNum > 0 ) {
+            GLES30.glGetUniformIndices( program, names, indices, 0 );
+        }
+        for( int i = 0; i < uniNum; i++ ) {
+            Uniform u = layout.mUniforms.get( i );
+            locations[i] = u.mBlockIndex >= 0 ? -1 : GLES30.glGetUniformLocation( program, names[i] );
+        }
+
+        final int blockNum = layout.mBlocks.size();
+        int[] blockIndices  = new int[blockNum];
+        int[] blockBindings = new int[blockNum];
+        int[] val = { 0 };
+        for( int i = 0; i < blockNum; i++ ) {
+            blockIndices[i] = GLES30.glGetUniformBlockIndex( program, layout.mBlocks.get( i ).mName );
+            GLES30.glGetActiveUniformBlockiv( program, blockIndices[i], GL_UNIFORM_BLOCK_BINDING, val, 0 );
+            blockBindings[i] = val[0];
+        }
+
+        return rebuild( layout, attribs, new int[][]{ indices, locations }, blockIndices, blockBindings );
+    }
+
+    /**
+     * Computes a key that identifies a program by its shader sources.
+     *
+     * @param shaders Shaders of program, in order of attachment.
+     * @param extra   Additional strings to include in key, such as driver or version.
+     * @return hex SHA-1 of all inputs.
+     */
+    public static String sourceKey( List<Shader> shaders, String... extra ) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance( "SHA-1" );
+        } catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException( e );
+        }
+        for( String s: extra ) {
+            update( md, s != null ? s : "" );
+        }
+        for( Shader s: shaders ) {
+            update( md, Integer.toHexString( s.shaderType() ) );
+            update( md, s.source() );
+        }
+
+        byte[] bytes = md.digest();
+        StringBuilder ret = new StringBuilder( bytes.length * 2 );
+        for( byte b: bytes ) {
+            ret.append( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) );
+            ret.append( Character.forDigit( b & 0xF, 16 ) );
+        }
+        return ret.toString();
+    }
+
+
     /**
      * Not necessary because Android's glGetShaderInfoLog auto converts to String.
      */
@@ -186,4 +293,82 @@ public class Shaders {
         return GLES30.glGetShaderInfoLog( shader );
     }
 
+
+    private static void update( MessageDigest md, String s ) {
+        md.update( s.getBytes( UTF8 ) );
+        // Separator, so that ("ab", "c") and ("a", "bc") produce different keys.
+        md.update( (byte)0 );
+    }
+
+
+    /**
+     * @param uniformVals    Uniform indices and locations, or {@code null} for -1.
+     * @param blockIndices   Block indices, or {@code null} for -1.
+     * @param blockBindings  Block bindings, or {@code null} for -1.
+     */
+    private static Reflection rebuild( Reflection ref,
+                                       List<ProgramResource> attribs,
+                                       int[][] uniformVals,
+                                       int[] blockIndices,
+                                       int[] blockBindings )
+    {
+        // Block index of a uniform is given as position in block list, which equals the
+        // index for reflections created by reflect().
+        final int uniNum = ref.mUniforms.size();
+        List<Uniform> uniforms = new ArrayList<>( uniNum );
+        for( int i = 0; i < uniNum; i++ ) {
+            Uniform u = ref.mUniforms.get( i );
+            int block = u.mBlockIndex;
+            if( block >= 0 && blockIndices != null ) {
+                block = blockIndices[block];
+            }
+            uniforms.add( new Uniform( u.mMemberType,
+                                       u.mArrayLength,
+                                       uniformVals == null ? -1 : uniformVals[0][i],
+                                       uniformVals == null ? -1 : uniformVals[1][i],
+                                       u.mName,
+                                       u.mArrayStride,
+                                       u.mMatrixStride,
+                                       block,
+                                       u.mBlockOffset ) );
+        }
+
+        final int blockNum = ref.mBlocks.size();
+        List<UniformBlock> blocks = new ArrayList<>( blockNum );
+        for( int i = 0; i < blockNum; i++ ) {
+            UniformBlock b = ref.mBlocks.get( i );
+            List<Uniform> members = new ArrayList<>( b.mUniforms.size() );
+            for( Uniform m: b.mUniforms ) {
+                members.add( uniforms.get( ref.mUniforms.indexOf( m ) ) );
+            }
+            blocks.add( new UniformBlock( blockIndices  == null ? -1 : blockIndices[i],
+                                          blockBindings == null ? -1 : blockBindings[i],
+                                          b.mName,
+                                          b.mDataSize,
+                                          members ) );
+        }
+
+        return new Reflection( attribs, uniforms, blocks );
+    }
+
+
+    private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+
+    /**
+     * Results of program introspection. Lists are unmodifiable. Uniform objects
+     * hold per-program state and must be copied before being given to a program.
+     */
+    public static final class Reflection {
+        public final List<ProgramResource> mAttribs;
+        public final List<Uniform>         mUniforms;
+        public final List<UniformBlock>    mBlocks;
+
+        public Reflection( List<ProgramResource> attribs, List<Uniform> uniforms, List<UniformBlock> blocks ) {
+            mAttribs  = Collections.unmodifiableList( attribs );
+            mUniforms = Collections.unmodifiableList( uniforms );
+            mBlocks   = Collections.unmodifiableList( blocks );
+        }
+    }
+
 }
@@ -10,6 +10,8 @@ import android.graphics.Bitmap;
 import android.opengl.GLES30;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import static android.opengl.GLES30.*;
 
@@ -19,10 +21,20 @@ import static android.opengl.GLES30.*;
   */
 public final class Texture2 extends AbstractTexture {
 
+    // Pending regions beyond this number are collapsed into their bounds.
+    private static final int MAX_DIRTY_NUM = 8;
+
 
     private ByteBuffer mBuf = null;
     private int mStride = 0;
 
+    private PixelUploadRing mRing = null;
+
+    private ByteBuffer mUpdateBuf    = null;
+    private int        mUpdateStride = 0;
+
+    private final List<Rect> mDirty = new ArrayList<>( 4 );
+
 
     public Texture2() {
         super( GL_TEXTURE_2D );
@@ -34,10 +46,28 @@ public final class Texture2 extends AbstractTexture {
         if( image == null ) {
             buffer( null, 0, 0, 0, -1, -1, -1 );
         } else {
-            int[] format = new int[2];
+            int[] format = new int[3];
             ByteBuffer buf = DrawUtil.imageToBuffer( image, null, null, format );
             int w = image.getWidth();
-            buffer( buf, format[0], format[1], GL_UNSIGNED_BYTE, w, image.getHeight(), w );
+            buffer( buf, format[0], format[1], format[2], w, image.getHeight(), w );
+        }
+    }
+
+    /**
+     * Buffers image downconverted to 16 bits per pixel, for textures where memory and
+     * upload bandwidth matter more than color depth.
+     *
+     * @param dataType GL_UNSIGNED_SHORT_5_6_5, GL_UNSIGNED_SHORT_4_4_4_4 or GL_UNSIGNED_SHORT_5_5_5_1.
+     * @param dither   Dither to apply, or {@code null} for none.
+     */
+    public void buffer( Bitmap image, int dataType, ImageConverter.Dither dither ) {
+        if( image == null ) {
+            buffer( null, 0, 0, 0, -1, -1, -1 );
+        } else {
+            ByteBuffer buf = DrawUtil.imageConverter().toPacked( image, null, dataType, dither );
+            int format = ImageConverter.packedFormat( dataType );
+            int w = image.getWidth();
+            buffer( buf, format, format, dataType, w, image.getHeight(), w );
         }
     }
 
@@ -66,29 +96,175 @@ public final class Texture2 extends AbstractTexture {
             mStride = stride < 0 ? 0 : stride;
         }
 
+        // Full upload replaces any pending regions.
+        clearDirty();
         fireAlloc();
     }
 
+    /**
+     * Sets ring used for full uploads when the texture has mutable storage. If the ring
+     * is busy, or storage is immutable, data is uploaded from client memory.
+     *
+     * @param optRing Upload ring, or {@code null} to upload from client memory.
+     */
+    public synchronized void uploadRing( PixelUploadRing optRing ) {
+        mRing = optRing;
+    }
+
+
+    public synchronized PixelUploadRing uploadRing() {
+        return mRing;
+    }
+
+    /**
+     * Marks a region of the texture as changed. Regions accumulate until the next
+     * bind, when overlapping and adjacent regions are merged and each remaining region
+     * is uploaded with {@code glTexSubImage2D}. Storage is not reallocated, so format
+     * and size must already be set and must match {@code buf}.
+     *
+     * @param buf    Complete image, positioned at first pixel, in current format and data type.
+     *               Pending regions are all read from the most recent buffer, which is
+     *               referenced until uploaded.
+     * @param region Region to upload. Clamped to texture bounds.
+     */
+    public void update( ByteBuffer buf, Rect region ) {
+        update( buf, width(), region );
+    }
+
+    /**
+     * @param stride Pixels per row of {@code buf}.
+     * @see #update(ByteBuffer, Rect)
+     */
+    public synchronized void update( ByteBuffer buf, int stride, Rect region ) {
+        if( !hasSize() ) {
+            throw new IllegalStateException( "Texture size must be set before update." );
+        }
+        Rect r = new Rect( region );
+        if( !r.intersect( new Rect( 0, 0, width(), height() ) ) ) {
+            return;
+        }
+        mUpdateBuf    = buf.duplicate();
+        mUpdateStride = stride;
+        addDirty( r );
+    }
+
+    /**
+     * @return number of regions waiting for upload, after merging.
+     */
+    public synchronized int dirtyNum() {
+        return mDirty.size();
+    }
+
+    @Override
+    protected void onBound( DrawEnv g, int unit ) {
+        if( mUpdateBuf != null ) {
+            if( unit >= 0 ) {
+                g.mTexUnits.active( unit );
+            }
+            doUpdate( g );
+        }
+    }
+
     @Override
-    public void dispose( DrawEnv g ) {
+    public synchronized void dispose( DrawEnv g ) {
         super.dispose( g );
         mBuf = null;
+        clearDirty();
     }
 
     @Override
     protected synchronized void doAlloc( DrawEnv g ) {
         GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, mStride );
-        GLES30.glTexImage2D( GL_TEXTURE_2D,
-                             0, //level
-                             internalFormat(),
-                             width(),
-                             height(),
-                             0, // border
-                             format(),
-                             dataType(),
-                             mBuf );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        if( hasStorage() ) {
+            if( mBuf != null ) {
+                GLES30.glTexSubImage2D( GL_TEXTURE_2D, 0, 0, 0, width(), height(), format(), dataType(), mBuf );
+            }
+        } else if( mBuf == null || mRing == null ||
+                   !mRing.texImage2D( g,
+                                      GL_TEXTURE_2D,
+                                      0,
+                                      internalFormat(),
+                                      width(),
+                                      height(),
+                                      format(),
+                                      dataType(),
+                                      mStride,
+                                      mBuf ) )
+        {
+            GLES30.glTexImage2D( GL_TEXTURE_2D,
+                                 0, //level
+                                 internalFormat(),
+                                 width(),
+                                 height(),
+                                 0, // border
+                                 format(),
+                                 dataType(),
+                                 mBuf );
+        }
         GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
         mBuf = null;
     }
 
+
+    private synchronized void doUpdate( DrawEnv g ) {
+        ByteBuffer buf = mUpdateBuf;
+        if( buf == null ) {
+            return;
+        }
+        // Size may have changed since regions were added.
+        Rect bounds = new Rect( 0, 0, width(), height() );
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, mUpdateStride );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        for( Rect r: mDirty ) {
+            if( !r.intersect( bounds ) ) {
+                continue;
+            }
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_PIXELS, r.x0 );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_ROWS, r.y0 );
+            GLES30.glTexSubImage2D( GL_TEXTURE_2D, 0, r.x0, r.y0, r.width(), r.height(), format(), dataType(), buf );
+        }
+        GLES30.glPixelStorei( GL_UNPACK_SKIP_PIXELS, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_SKIP_ROWS, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+        clearDirty();
+        g.checkErr();
+    }
+
+
+    private void addDirty( Rect r ) {
+        // Absorb every region that overlaps or touches r. Growing r may reach
+        // regions that were skipped, so repeat until nothing changes.
+        boolean merged = true;
+        while( merged ) {
+            merged = false;
+            for( int i = mDirty.size() - 1; i >= 0; i-- ) {
+                Rect d = mDirty.get( i );
+                if( d.x0 <= r.x1 && r.x0 <= d.x1 && d.y0 <= r.y1 && r.y0 <= d.y1 ) {
+                    r.union( d );
+                    mDirty.remove( i );
+                    merged = true;
+                }
+            }
+        }
+        mDirty.add( r );
+
+        if( mDirty.size() > MAX_DIRTY_NUM ) {
+            Rect bounds = mDirty.get( 0 );
+            for( int i = 1; i < mDirty.size(); i++ ) {
+                bounds.union( mDirty.get( i ) );
+            }
+            mDirty.clear();
+            mDirty.add( bounds );
+        }
+    }
+
+
+    private void clearDirty() {
+        mDirty.clear();
+        mUpdateBuf = null;
+    }
+
 }
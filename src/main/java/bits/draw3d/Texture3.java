@@ -8,20 +8,47 @@ package bits.draw3d;
 
 import android.opengl.GLES30;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import static android.opengl.GLES30.*;
 
 
 /**
+ * 3D texture. Data may be buffered all at once, or streamed from a memory-mapped
+ * file in bricks with {@link #stream} and {@link #update}.
+ *
+ * <p>When streaming, full-resolution bricks are uploaded straight from the mapped
+ * file with {@code glTexSubImage3D} and unpack skip parameters, so the volume is never
+ * copied into direct memory. Optional placeholder levels are point-sampled from the
+ * file one brick at a time and uploaded first, coarsest first. Until the full volume
+ * arrives, the texture's base level is set to the finest complete level.
+ *
  * @author decamp
  */
 public final class Texture3 extends AbstractTexture {
 
+    /**
+     * Maps a file read-only. The mapping remains valid after the file is closed.
+     *
+     * @param offset Offset of voxel data within file.
+     */
+    public static ByteBuffer map( File file, long offset ) throws IOException {
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+            FileChannel ch = raf.getChannel();
+            return ch.map( FileChannel.MapMode.READ_ONLY, offset, ch.size() - offset );
+        }
+    }
+
 
     private ByteBuffer mBuf = null;
     private int mStride;
 
+    private Stream mStream = null;
+
 
     public Texture3() {
         super( GL_TEXTURE_3D );
@@ -37,6 +64,10 @@ public final class Texture3 extends AbstractTexture {
                                      int depth,
                                      int stride )
     {
+        if( mStream != null ) {
+            mStream = null;
+            showLevel( 0 );
+        }
         if( buf == null ) {
             if( mBuf == null ) {
                 return;
@@ -50,25 +81,379 @@ public final class Texture3 extends AbstractTexture {
             super.size( w, h );
             super.depth( depth );
             mBuf = buf.duplicate();
+            mStride = stride < 0 ? 0 : stride;
+        }
+
+        fireAlloc();
+    }
+
+    /**
+     * Sets texture to stream a volume from a buffer, typically one from {@link #map}.
+     * Storage is allocated on next bind, and data is uploaded by calls to {@link #update}.
+     *
+     * @param src            Voxels in x, y, z order with tightly packed rows, starting at {@code src.position()}.
+     * @param w              Width of volume.
+     * @param h              Height of volume.
+     * @param depth          Depth of volume.
+     * @param brickW         Width of each uploaded brick. Use {@code w} with {@code brickH == h}
+     *                       and {@code brickD == 1} to stream by z-slice.
+     * @param brickH         Height of each uploaded brick.
+     * @param brickD         Depth of each uploaded brick.
+     * @param placeholderNum Number of reduced resolution levels to upload before full resolution.
+     *                       Level 1 adds 1/8 of the volume size to the upload, level 2 adds 1/64, etc.
+     */
+    public synchronized void stream( ByteBuffer src,
+                                     int intFormat,
+                                     int format,
+                                     int dataType,
+                                     int w,
+                                     int h,
+                                     int depth,
+                                     int brickW,
+                                     int brickH,
+                                     int brickD,
+                                     int placeholderNum )
+    {
+        int levels = 1 + Math.max( 0, Math.min( placeholderNum, levelNumFor( w, h, depth ) - 1 ) );
+        int voxelBytes = voxelBytes( format, dataType );
+        if( (long)w * h * depth * voxelBytes > src.remaining() ) {
+            throw new IllegalArgumentException( "Buffer is smaller than volume." );
         }
 
+        mBuf = null;
+        mStride = 0;
+        super.format( intFormat, format, dataType );
+        super.size( w, h );
+        super.depth( depth );
+        mStream = new Stream( src.slice(), voxelBytes, levels, brickW, brickH, brickD );
+        showLevel( levels - 1 );
         fireAlloc();
     }
 
+    /**
+     * Uploads bricks of a streaming volume until {@code budgetBytes} have been uploaded.
+     * At least one brick is uploaded per call. Binds texture to active unit.
+     *
+     * @return true if volume is fully uploaded, or texture is not streaming.
+     */
+    public synchronized boolean update( DrawEnv d, long budgetBytes ) {
+        Stream s = mStream;
+        if( s == null || s.mDone ) {
+            return true;
+        }
+        bind( d );
+
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+        long bytes = 0;
+        while( !s.mDone && ( bytes == 0 || bytes < budgetBytes ) ) {
+            bytes += uploadBrick( s );
+            if( s.advance( width(), height(), depth() ) ) {
+                // Level complete. Show it until a finer level is done. Applied on next bind.
+                showLevel( s.mDone ? 0 : s.mLevel + 1 );
+            }
+        }
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_IMAGE_HEIGHT, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_SKIP_PIXELS, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_SKIP_ROWS, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_SKIP_IMAGES, 0 );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+        d.checkErr();
+
+        s.mUploadBytes += bytes;
+        return s.mDone;
+    }
+
+    /**
+     * @return fraction of streamed bytes uploaded, from 0 to 1. Returns 1 if texture is not streaming.
+     */
+    public synchronized double streamProgress() {
+        Stream s = mStream;
+        if( s == null ) {
+            return 1.0;
+        }
+        return s.mDone ? 1.0 : (double)s.mUploadBytes / s.mTotalBytes;
+    }
+
+    /**
+     * @return finest level fully uploaded, or -1 if none. 0 means volume is complete.
+     */
+    public synchronized int streamLevel() {
+        Stream s = mStream;
+        if( s == null ) {
+            return 0;
+        }
+        return s.mDone ? 0 : s.mLevel + 1 < s.mLevelNum ? s.mLevel + 1 : -1;
+    }
+
     @Override
-    protected void doAlloc( DrawEnv g ) {
-        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, mStride );
-        GLES30.glTexImage3D( GL_TEXTURE_3D,
-                             0, // Level
-                             internalFormat(),
-                             width(),
-                             height(),
-                             depth(),
-                             0,
-                             format(),
-                             dataType(),
-                             mBuf );
+    public synchronized void dispose( DrawEnv g ) {
+        super.dispose( g );
+        if( mStream != null ) {
+            // Contents are lost and must be streamed again.
+            mStream.restart();
+            showLevel( mStream.mLevelNum - 1 );
+        }
+    }
+
+    @Override
+    protected synchronized void doAlloc( DrawEnv g ) {
+        if( mStream != null ) {
+            if( !hasStorage() ) {
+                for( int level = 0; level < mStream.mLevelNum; level++ ) {
+                    GLES30.glTexImage3D( GL_TEXTURE_3D,
+                                         level,
+                                         internalFormat(),
+                                         levelSize( width(), level ),
+                                         levelSize( height(), level ),
+                                         levelSize( depth(), level ),
+                                         0,
+                                         format(),
+                                         dataType(),
+                                         null );
+                }
+            }
+            mStream.restart();
+            return;
+        }
+
         GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, mStride );
+        if( hasStorage() ) {
+            if( mBuf != null ) {
+                GLES30.glTexSubImage3D( GL_TEXTURE_3D, 0, 0, 0, 0, width(), height(), depth(), format(), dataType(), mBuf );
+            }
+        } else {
+            GLES30.glTexImage3D( GL_TEXTURE_3D,
+                                 0, // Level
+                                 internalFormat(),
+                                 width(),
+                                 height(),
+                                 depth(),
+                                 0,
+                                 format(),
+                                 dataType(),
+                                 mBuf );
+        }
+        GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
         mBuf = null;
     }
+
+    @Override
+    protected int storageLevelNum() {
+        return mStream != null ? mStream.mLevelNum : 1;
+    }
+
+
+    private void showLevel( int level ) {
+        param( GL_TEXTURE_BASE_LEVEL, level );
+        param( GL_TEXTURE_MAX_LEVEL, level );
+    }
+
+
+    private int uploadBrick( Stream s ) {
+        final int level = s.mLevel;
+        final int lw = levelSize( width(), level );
+        final int lh = levelSize( height(), level );
+        final int ld = levelSize( depth(), level );
+        final int x0 = s.mX;
+        final int y0 = s.mY;
+        final int z0 = s.mZ;
+        final int bw = Math.min( s.mBrickW, lw - x0 );
+        final int bh = Math.min( s.mBrickH, lh - y0 );
+        final int bd = Math.min( s.mBrickD, ld - z0 );
+
+        if( level == 0 ) {
+            // Read directly from mapped source.
+            GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, lw );
+            GLES30.glPixelStorei( GL_UNPACK_IMAGE_HEIGHT, lh );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_PIXELS, x0 );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_ROWS, y0 );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_IMAGES, z0 );
+            GLES30.glTexSubImage3D( GL_TEXTURE_3D, 0, x0, y0, z0, bw, bh, bd, format(), dataType(), s.mSrc );
+        } else {
+            ByteBuffer buf = s.sampleBrick( width(), height(), level, x0, y0, z0, bw, bh, bd );
+            GLES30.glPixelStorei( GL_UNPACK_ROW_LENGTH, 0 );
+            GLES30.glPixelStorei( GL_UNPACK_IMAGE_HEIGHT, 0 );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_PIXELS, 0 );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_ROWS, 0 );
+            GLES30.glPixelStorei( GL_UNPACK_SKIP_IMAGES, 0 );
+            GLES30.glTexSubImage3D( GL_TEXTURE_3D, level, x0, y0, z0, bw, bh, bd, format(), dataType(), buf );
+        }
+        return bw * bh * bd * s.mVoxelBytes;
+    }
+
+
+    private static int levelSize( int size, int level ) {
+        return Math.max( 1, size >> level );
+    }
+
+
+    private static int levelNumFor( int w, int h, int d ) {
+        int n = Math.max( w, Math.max( h, d ) );
+        return 32 - Integer.numberOfLeadingZeros( Math.max( 1, n ) );
+    }
+
+
+    static int voxelBytes( int format, int dataType ) {
+        switch( dataType ) {
+        case GL_UNSIGNED_SHORT_5_6_5:
+        case GL_UNSIGNED_SHORT_4_4_4_4:
+        case GL_UNSIGNED_SHORT_5_5_5_1:
+            return 2;
+        case GL_UNSIGNED_INT_2_10_10_10_REV:
+        case GL_UNSIGNED_INT_10F_11F_11F_REV:
+        case GL_UNSIGNED_INT_5_9_9_9_REV:
+        case GL_UNSIGNED_INT_24_8:
+            return 4;
+        }
+
+        int comps;
+        switch( format ) {
+        case GL_RG:
+        case GL_RG_INTEGER:
+        case GL_LUMINANCE_ALPHA:
+            comps = 2;
+            break;
+        case GL_RGB:
+        case GL_RGB_INTEGER:
+            comps = 3;
+            break;
+        case GL_RGBA:
+        case GL_RGBA_INTEGER:
+            comps = 4;
+            break;
+        default:
+            comps = 1;
+            break;
+        }
+
+        switch( dataType ) {
+        case GL_SHORT:
+        case GL_UNSIGNED_SHORT:
+        case GL_HALF_FLOAT:
+            return comps * 2;
+        case GL_INT:
+        case GL_UNSIGNED_INT:
+        case GL_FLOAT:
+            return comps * 4;
+        default:
+            return comps;
+        }
+    }
+
+
+    private static final class Stream {
+        final ByteBuffer mSrc;
+        final int mVoxelBytes;
+        final int mLevelNum;
+        final int mBrickW;
+        final int mBrickH;
+        final int mBrickD;
+        final long mTotalBytes;
+
+        // Cursor of next brick.
+        int mLevel;
+        int mX;
+        int mY;
+        int mZ;
+        boolean mDone;
+        long mUploadBytes;
+
+        // Staging for one reduced-resolution brick.
+        ByteBuffer mWork = null;
+        byte[] mRow = null;
+
+
+        Stream( ByteBuffer src, int voxelBytes, int levelNum, int brickW, int brickH, int brickD ) {
+            mSrc = src;
+            mVoxelBytes = voxelBytes;
+            mLevelNum = levelNum;
+            mBrickW = Math.max( 1, brickW );
+            mBrickH = Math.max( 1, brickH );
+            mBrickD = Math.max( 1, brickD );
+            long bytes = src.remaining();
+            long total = 0;
+            for( int i = 0; i < levelNum; i++ ) {
+                total += bytes >> ( 3 * i );
+            }
+            mTotalBytes = total;
+            restart();
+        }
+
+
+        void restart() {
+            mLevel = mLevelNum - 1;
+            mX = 0;
+            mY = 0;
+            mZ = 0;
+            mDone = false;
+            mUploadBytes = 0;
+        }
+
+        /**
+         * Moves cursor to next brick.
+         *
+         * @return true if a level was completed.
+         */
+        boolean advance( int w, int h, int d ) {
+            int lw = levelSize( w, mLevel );
+            int lh = levelSize( h, mLevel );
+            int ld = levelSize( d, mLevel );
+            mX += mBrickW;
+            if( mX < lw ) {
+                return false;
+            }
+            mX = 0;
+            mY += mBrickH;
+            if( mY < lh ) {
+                return false;
+            }
+            mY = 0;
+            mZ += mBrickD;
+            if( mZ < ld ) {
+                return false;
+            }
+            mZ = 0;
+            if( mLevel == 0 ) {
+                mDone = true;
+            } else {
+                mLevel--;
+            }
+            return true;
+        }
+
+        /**
+         * Point-samples a brick of a reduced level from level 0.
+         */
+        ByteBuffer sampleBrick( int w, int h, int level, int x0, int y0, int z0, int bw, int bh, int bd ) {
+            final int vb = mVoxelBytes;
+            final int len = bw * bh * bd * vb;
+            if( mWork == null || mWork.capacity() < len ) {
+                mWork = DrawUtil.alloc( len );
+            }
+            final int rowLen = w * vb;
+            if( mRow == null || mRow.length < rowLen ) {
+                mRow = new byte[rowLen];
+            }
+
+            final ByteBuffer src = mSrc.duplicate();
+            final ByteBuffer out = mWork;
+            out.clear();
+            final byte[] row = mRow;
+            for( int z = 0; z < bd; z++ ) {
+                long sz = (long)( z0 + z ) << level;
+                for( int y = 0; y < bh; y++ ) {
+                    long sy = (long)( y0 + y ) << level;
+                    src.position( (int)( ( sz * h + sy ) * rowLen ) );
+                    src.get( row, 0, rowLen );
+                    for( int x = 0; x < bw; x++ ) {
+                        out.put( row, ( ( x0 + x ) << level ) * vb, vb );
+                    }
+                }
+            }
+            out.flip();
+            return out;
+        }
+    }
+
 }
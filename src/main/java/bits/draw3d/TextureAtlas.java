@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Packs many small RGBA images into a few large Texture2 pages so that sprites
+ * drawn from the same page may share a texture binding.
+ *
+ * <p>Images are placed with a {@link RectPacker}. Each insertion returns a
+ * {@link Region} holding its page and normalized texture coordinates. Pixels are
+ * staged on insertion and uploaded to the page with {@code glTexSubImage2D} on the
+ * next call to {@link #update}, so images may be added at any time without
+ * reallocating existing pages. When an image does not fit in any page, a new
+ * page is added.
+ *
+ * <p>A border of {@code padding} pixels is reserved around each region and filled
+ * with copies of the image's edge pixels, so that linear filtering does not bleed
+ * between neighbors or sample undefined page contents. Insertion may occur on any
+ * thread, but {@link #update} and {@link #dispose} must be called on the GL thread.
+ *
+ * @author Philip DeCamp
+ */
+public class TextureAtlas implements DrawResource {
+
+    public static final int DEFAULT_PAGE_SIZE = 1024;
+
+
+    private final int mPageWidth;
+    private final int mPageHeight;
+    private final int mPadding;
+
+    private final List<Page> mPages = new ArrayList<>( 2 );
+
+    private final ThreadLocal<int[]> mWork = new ThreadLocal<>();
+
+
+    public TextureAtlas() {
+        this( DEFAULT_PAGE_SIZE, DEFAULT_PAGE_SIZE, 1 );
+    }
+
+    /**
+     * @param pageWidth  Width of each page texture.
+     * @param pageHeight Height of each page texture.
+     * @param padding    Pixels reserved on each side of every region.
+     */
+    public TextureAtlas( int pageWidth, int pageHeight, int padding ) {
+        mPageWidth  = pageWidth;
+        mPageHeight = pageHeight;
+        mPadding    = Math.max( 0, padding );
+    }
+
+
+    public int pageWidth() {
+        return mPageWidth;
+    }
+
+
+    public int pageHeight() {
+        return mPageHeight;
+    }
+
+
+    public synchronized int pageNum() {
+        return mPages.size();
+    }
+
+
+    public synchronized Texture2 page( int idx ) {
+        return mPages.get( idx ).mTex;
+    }
+
+    /**
+     * @return fraction of total page area occupied by regions, excluding padding.
+     */
+    public synchronized double occupancy() {
+        if( mPages.isEmpty() ) {
+            return 0.0;
+        }
+        long used = 0;
+        for( Page p: mPages ) {
+            used += p.mContentArea;
+        }
+        return (double)used / ( (long)mPageWidth * mPageHeight * mPages.size() );
+    }
+
+    /**
+     * Adds a bitmap to the atlas. The image is converted before the atlas is locked,
+     * so threads may convert images concurrently.
+     *
+     * @return region holding image, or {@code null} if image is larger than a page.
+     */
+    public Region add( Bitmap image ) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if( w + 2 * mPadding > mPageWidth || h + 2 * mPadding > mPageHeight ) {
+            return null;
+        }
+        ByteBuffer buf = DrawUtil.imageToRgbaBuffer( image, workRow( w ), DrawUtil.alloc( w * h * 4 ) );
+        return add( buf, w, h );
+    }
+
+    /**
+     * Adds RGBA pixels to the atlas.
+     *
+     * @param rgba Tightly packed RGBA pixels, {@code 4 * w * h} bytes. If padding is zero,
+     *             data is staged, not copied, and the caller must not modify the buffer until
+     *             the next {@link #update}. Otherwise, data is copied with its padding.
+     * @return region holding image, or {@code null} if image is larger than a page.
+     */
+    public synchronized Region add( ByteBuffer rgba, int w, int h ) {
+        final int pad = mPadding;
+        final int pw  = w + 2 * pad;
+        final int ph  = h + 2 * pad;
+        if( pw > mPageWidth || ph > mPageHeight ) {
+            return null;
+        }
+
+        Rect rect = new Rect();
+        Page page = null;
+        for( int i = 0; i < mPages.size(); i++ ) {
+            Page p = mPages.get( i );
+            if( p.mPacker.insert( pw, ph, rect ) ) {
+                page = p;
+                break;
+            }
+        }
+        if( page == null ) {
+            page = new Page( mPages.size() );
+            mPages.add( page );
+            page.mPacker.insert( pw, ph, rect );
+        }
+
+        // Uploads padding along with image.
+        page.mPending.add( new Upload( new Rect( rect ), pad == 0 ? rgba.duplicate() : extrude( rgba, w, h, pad ) ) );
+        rect.x0 += pad;
+        rect.y0 += pad;
+        rect.x1 -= pad;
+        rect.y1 -= pad;
+        page.mContentArea += (long)w * h;
+
+        return new Region( page.mIndex,
+                           page.mTex,
+                           rect,
+                           (float)rect.x0 / mPageWidth,
+                           (float)rect.y0 / mPageHeight,
+                           (float)rect.x1 / mPageWidth,
+                           (float)rect.y1 / mPageHeight );
+    }
+
+    /**
+     * Uploads pixels of regions added since last call. Must be called on the GL thread
+     * before drawing new regions.
+     *
+     * @return number of regions uploaded.
+     */
+    public synchronized int update( DrawEnv d ) {
+        int ret = 0;
+        for( Page p: mPages ) {
+            if( p.mPending.isEmpty() ) {
+                continue;
+            }
+            // Allocates storage on first bind.
+            p.mTex.bind( d );
+            for( Upload u: p.mPending ) {
+                GLES30.glTexSubImage2D( GL_TEXTURE_2D,
+                                        0,
+                                        u.mRect.x0,
+                                        u.mRect.y0,
+                                        u.mRect.width(),
+                                        u.mRect.height(),
+                                        GL_RGBA,
+                                        GL_UNSIGNED_BYTE,
+                                        u.mData );
+                ret++;
+            }
+            p.mPending.clear();
+            p.mTex.unbind( d );
+        }
+        d.checkErr();
+        return ret;
+    }
+
+    /**
+     * Removes all regions. Page textures are kept for reuse. Previously returned
+     * regions become invalid.
+     */
+    public synchronized void clear() {
+        for( Page p: mPages ) {
+            p.mPacker.clear();
+            p.mPending.clear();
+            p.mContentArea = 0;
+        }
+    }
+
+    @Override
+    public void init( DrawEnv d ) {
+        update( d );
+    }
+
+    @Override
+    public synchronized void dispose( DrawEnv d ) {
+        for( Page p: mPages ) {
+            p.mTex.dispose( d );
+        }
+        mPages.clear();
+    }
+
+
+    private int[] workRow( int w ) {
+        int[] ret = mWork.get();
+        if( ret == null || ret.length < w ) {
+            ret = new int[w];
+            mWork.set( ret );
+        }
+        return ret;
+    }
+
+
+    /**
+     * @return copy of RGBA image with {@code pad} pixels on each side, filled by repeating edge pixels.
+     */
+    static ByteBuffer extrude( ByteBuffer rgba, int w, int h, int pad ) {
+        final int pw = w + 2 * pad;
+        final int ph = h + 2 * pad;
+        final int p0 = rgba.position();
+        ByteBuffer ret = DrawUtil.alloc( pw * ph * 4 );
+        for( int y = 0; y < ph; y++ ) {
+            int sy = Math.min( h - 1, Math.max( 0, y - pad ) );
+            int row = p0 + sy * w * 4;
+            for( int x = 0; x < pw; x++ ) {
+                int sx = row + Math.min( w - 1, Math.max( 0, x - pad ) ) * 4;
+                ret.put( rgba.get( sx     ) );
+                ret.put( rgba.get( sx + 1 ) );
+                ret.put( rgba.get( sx + 2 ) );
+                ret.put( rgba.get( sx + 3 ) );
+            }
+        }
+        ret.flip();
+        return ret;
+    }
+
+
+
+    /**
+     * Location of an image within an atlas.
+     */
+    public static final class Region {
+        /** Index of page holding region. */
+        public final int      mPage;
+        /** Texture of page. */
+        public final Texture2 mTex;
+        /** Location of image within page, in pixels. */
+        public final Rect     mRect;
+
+        public final float mU0;
+        public final float mV0;
+        public final float mU1;
+        public final float mV1;
+
+        Region( int page, Texture2 tex, Rect rect, float u0, float v0, float u1, float v1 ) {
+            mPage = page;
+            mTex  = tex;
+            mRect = rect;
+            mU0   = u0;
+            mV0   = v0;
+            mU1   = u1;
+            mV1   = v1;
+        }
+    }
+
+
+    private final class Page {
+        final int          mIndex;
+        final Texture2     mTex         = new Texture2();
+        final RectPacker   mPacker      = new RectPacker( mPageWidth, mPageHeight );
+        final List<Upload> mPending     = new ArrayList<>();
+        long               mContentArea = 0;
+
+        Page( int index ) {
+            mIndex = index;
+            mTex.format( GL_RGBA, GL_RGBA, GL_UNSIGNED_BYTE );
+            mTex.size( mPageWidth, mPageHeight );
+        }
+    }
+
+
+    private static final class Upload {
+        final Rect       mRect;
+        final ByteBuffer mData;
+
+        Upload( Rect rect, ByteBuffer data ) {
+            mRect = rect;
+            mData = data;
+        }
+    }
+
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Keeps the estimated GPU memory used by a set of textures under a budget.
+ *
+ * <p>Registered textures report each {@code bind} to the cache, which records the
+ * current frame and keeps textures in least-recently-bound order. When the total
+ * estimated size of resident textures exceeds the budget, the least recently bound
+ * textures are disposed until the total fits. Textures bound during the current frame
+ * are never evicted, so the budget may be exceeded temporarily if a single frame
+ * uses more memory than allowed.
+ *
+ * <p>An evicted texture stays registered. When it is bound again, it is reloaded
+ * with its {@link Reloader}, counting as a miss. Textures that keep their source data,
+ * such as {@link CompressedTexture}, reload themselves and need no Reloader.
+ * Textures such as Texture2 discard their pixels after upload and must have one.
+ *
+ * <p>Sizes are estimated from internal format, dimensions, cube faces and mip
+ * levels. All methods must be called on the GL thread.
+ *
+ * @author Philip DeCamp
+ */
+public class TextureCache {
+
+    /**
+     * Restores the source data of an evicted texture, typically by calling {@code buffer(...)} again.
+     */
+    public interface Reloader {
+        void reload( DrawEnv d, Texture tex );
+    }
+
+
+    private final LinkedHashMap<AbstractTexture, Entry> mResident = new LinkedHashMap<>( 64, 0.75f, true );
+    private final Map<AbstractTexture, Entry>           mEvicted  = new HashMap<>();
+
+    private long mBudget;
+    private long mResidentBytes = 0;
+    private long mFrame         = 0;
+
+    private int mHitNum   = 0;
+    private int mMissNum  = 0;
+    private int mEvictNum = 0;
+
+
+    /**
+     * @param budgetBytes Maximum estimated bytes of resident textures.
+     */
+    public TextureCache( long budgetBytes ) {
+        mBudget = budgetBytes;
+    }
+
+
+    public long budget() {
+        return mBudget;
+    }
+
+
+    public void budget( long budgetBytes ) {
+        mBudget = budgetBytes;
+    }
+
+    /**
+     * Registers a texture with the cache.
+     *
+     * @param tex         Texture. Must be a texture from this package, such as Texture2, Mipmap2 or CompressedTexture.
+     * @param optReloader Restores the texture's data after eviction. May be {@code null} if the texture retains its data.
+     */
+    public void add( Texture tex, Reloader optReloader ) {
+        AbstractTexture t = cast( tex );
+        if( t.mCache != null && t.mCache != this ) {
+            throw new IllegalArgumentException( "Texture already registered with another cache." );
+        }
+        t.mCache = this;
+        if( mResident.containsKey( t ) || mEvicted.containsKey( t ) ) {
+            return;
+        }
+        Entry e = new Entry( optReloader );
+        // Not counted as resident until first bind.
+        mEvicted.put( t, e );
+        e.mFresh = true;
+    }
+
+    /**
+     * Unregisters a texture. The texture is not disposed.
+     */
+    public void remove( Texture tex ) {
+        AbstractTexture t = cast( tex );
+        if( t.mCache != this ) {
+            return;
+        }
+        t.mCache = null;
+        Entry e = mResident.remove( t );
+        if( e != null ) {
+            mResidentBytes -= e.mBytes;
+        } else {
+            mEvicted.remove( t );
+        }
+    }
+
+    /**
+     * Advances frame counter and evicts textures if over budget. Call once at the start of each frame.
+     */
+    public void beginFrame( DrawEnv d ) {
+        mFrame++;
+        trim( d );
+    }
+
+
+    public long frame() {
+        return mFrame;
+    }
+
+    /**
+     * Evicts least recently bound textures not used in the current frame until within budget.
+     */
+    public void trim( DrawEnv d ) {
+        if( mResidentBytes <= mBudget ) {
+            return;
+        }
+        Iterator<Map.Entry<AbstractTexture, Entry>> iter = mResident.entrySet().iterator();
+        while( iter.hasNext() && mResidentBytes > mBudget ) {
+            Map.Entry<AbstractTexture, Entry> me = iter.next();
+            Entry e = me.getValue();
+            if( e.mLastFrame == mFrame ) {
+                // Remaining entries were all bound more recently.
+                break;
+            }
+            iter.remove();
+            mResidentBytes -= e.mBytes;
+            e.mBytes = 0;
+            me.getKey().dispose( d );
+            mEvicted.put( me.getKey(), e );
+            mEvictNum++;
+        }
+    }
+
+    /**
+     * @return number of binds of resident textures.
+     */
+    public int hitCount() {
+        return mHitNum;
+    }
+
+    /**
+     * @return number of binds that required an evicted texture to be reloaded.
+     */
+    public int missCount() {
+        return mMissNum;
+    }
+
+
+    public int evictionCount() {
+        return mEvictNum;
+    }
+
+
+    public long residentBytes() {
+        return mResidentBytes;
+    }
+
+
+    public int residentNum() {
+        return mResident.size();
+    }
+
+
+    public void resetCounts() {
+        mHitNum   = 0;
+        mMissNum  = 0;
+        mEvictNum = 0;
+    }
+
+    /**
+     * Estimates GPU memory used by a texture, including all mip levels and cube faces.
+     *
+     * @return estimated bytes, or 0 if texture has no size.
+     */
+    public static long estimateBytes( Texture tex ) {
+        AbstractTexture t = cast( tex );
+        if( !t.hasSize() || t.width() <= 0 || t.height() <= 0 ) {
+            return 0;
+        }
+        final int intFormat = t.internalFormat();
+        final int faces = t.target() == GL_TEXTURE_CUBE_MAP ? 6 : 1;
+        final int depth = t.target() == GL_TEXTURE_3D ? Math.max( 1, t.depth() ) : 1;
+        final int levels = levelNum( t );
+
+        long ret = 0;
+        for( int level = 0; level < levels; level++ ) {
+            int w = Math.max( 1, t.width() >> level );
+            int h = Math.max( 1, t.height() >> level );
+            int d = Math.max( 1, depth >> level );
+            ret += levelBytes( intFormat, t.format(), t.dataType(), w, h ) * d;
+        }
+        return ret * faces;
+    }
+
+    /**
+     * Called by textures when bound.
+     */
+    void onBind( DrawEnv d, AbstractTexture tex ) {
+        Entry e = mResident.get( tex );
+        if( e != null ) {
+            e.mLastFrame = mFrame;
+            if( tex.id() != 0 ) {
+                mHitNum++;
+                return;
+            }
+            // Disposed outside of cache.
+            mResident.remove( tex );
+            mResidentBytes -= e.mBytes;
+            e.mBytes = 0;
+        } else {
+            e = mEvicted.remove( tex );
+            if( e == null ) {
+                return;
+            }
+        }
+
+        if( e.mFresh ) {
+            e.mFresh = false;
+        } else {
+            mMissNum++;
+            if( e.mReloader != null ) {
+                e.mReloader.reload( d, tex );
+            }
+        }
+
+        e.mLastFrame = mFrame;
+        e.mBytes = estimateBytes( tex );
+        mResident.put( tex, e );
+        mResidentBytes += e.mBytes;
+        trim( d );
+    }
+
+
+    private static int levelNum( AbstractTexture t ) {
+        Integer maxLevel = t.param( GL_TEXTURE_MAX_LEVEL );
+        Integer minFilter = t.param( GL_TEXTURE_MIN_FILTER );
+        boolean mips = t instanceof Mipmap2 ||
+                       minFilter != null && minFilter != GL_LINEAR && minFilter != GL_NEAREST;
+        if( !mips ) {
+            return 1;
+        }
+        int full = MipChain.levelNumFor( t.width(), t.height() );
+        return maxLevel != null ? Math.min( full, maxLevel + 1 ) : full;
+    }
+
+
+    private static long levelBytes( int intFormat, int format, int dataType, int w, int h ) {
+        // Compressed formats are sized by block.
+        if( intFormat >= Fake.GL_COMPRESSED_RGBA_ASTC_4x4 && intFormat < Fake.GL_COMPRESSED_RGBA_ASTC_4x4 + 14 ) {
+            return astcBytes( intFormat - Fake.GL_COMPRESSED_RGBA_ASTC_4x4, w, h );
+        }
+        if( intFormat >= Fake.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 && intFormat < Fake.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4 + 14 ) {
+            return astcBytes( intFormat - Fake.GL_COMPRESSED_SRGB8_ALPHA8_ASTC_4x4, w, h );
+        }
+        long blocks = (long)( ( w + 3 ) / 4 ) * ( ( h + 3 ) / 4 );
+        switch( intFormat ) {
+        case GL_COMPRESSED_RGB8_ETC2:
+        case GL_COMPRESSED_SRGB8_ETC2:
+        case GL_COMPRESSED_RGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+        case GL_COMPRESSED_SRGB8_PUNCHTHROUGH_ALPHA1_ETC2:
+        case GL_COMPRESSED_R11_EAC:
+        case GL_COMPRESSED_SIGNED_R11_EAC:
+            return blocks * 8;
+        case GL_COMPRESSED_RGBA8_ETC2_EAC:
+        case GL_COMPRESSED_SRGB8_ALPHA8_ETC2_EAC:
+        case GL_COMPRESSED_RG11_EAC:
+        case GL_COMPRESSED_SIGNED_RG11_EAC:
+            return blocks * 16;
+        }
+        return (long)w * h * bytesPerPixel( intFormat, format, dataType );
+    }
+
+
+    private static long astcBytes( int sizeIndex, int w, int h ) {
+        // Block dimensions in GL enum order.
+        final int[] bw = { 4, 5, 5, 6, 6, 8, 8, 8, 10, 10, 10, 10, 12, 12 };
+        final int[] bh = { 4, 4, 5, 5, 6, 5, 6, 8, 5, 6, 8, 10, 10, 12 };
+        long bx = ( w + bw[sizeIndex] - 1 ) / bw[sizeIndex];
+        long by = ( h + bh[sizeIndex] - 1 ) / bh[sizeIndex];
+        return bx * by * 16;
+    }
+
+
+    private static int bytesPerPixel( int intFormat, int format, int dataType ) {
+        switch( intFormat ) {
+        case GL_R8:
+        case GL_R8I:
+        case GL_R8UI:
+        case GL_R8_SNORM:
+        case GL_ALPHA:
+        case GL_LUMINANCE:
+        case GL_STENCIL_INDEX8:
+            return 1;
+        case GL_RG8:
+        case GL_RG8I:
+        case GL_RG8UI:
+        case GL_R16F:
+        case GL_R16I:
+        case GL_R16UI:
+        case GL_RGB565:
+        case GL_RGBA4:
+        case GL_RGB5_A1:
+        case GL_LUMINANCE_ALPHA:
+        case GL_DEPTH_COMPONENT16:
+            return 2;
+        case GL_RGB8:
+        case GL_SRGB8:
+        case GL_RGBA8:
+        case GL_SRGB8_ALPHA8:
+        case GL_RGB10_A2:
+        case GL_R11F_G11F_B10F:
+        case GL_RGB9_E5:
+        case GL_RG16F:
+        case GL_R32F:
+        case GL_R32I:
+        case GL_R32UI:
+        case GL_DEPTH_COMPONENT24:
+        case GL_DEPTH_COMPONENT32F:
+        case GL_DEPTH24_STENCIL8:
+            // Drivers generally pad 24-bit formats to 32 bits.
+            return 4;
+        case GL_RGB16F:
+        case GL_RGBA16F:
+        case GL_RG32F:
+        case GL_DEPTH32F_STENCIL8:
+            return 8;
+        case GL_RGB32F:
+        case GL_RGBA32F:
+            return 16;
+        case GL_RGB:
+        case GL_RGBA:
+            // Unsized formats take their size from the data type.
+            if( dataType == GL_UNSIGNED_SHORT_5_6_5 ||
+                dataType == GL_UNSIGNED_SHORT_4_4_4_4 ||
+                dataType == GL_UNSIGNED_SHORT_5_5_5_1 )
+            {
+                return 2;
+            }
+            return 4;
+        default:
+            return 4;
+        }
+    }
+
+
+    private static AbstractTexture cast( Texture tex ) {
+        if( !( tex instanceof AbstractTexture ) ) {
+            throw new IllegalArgumentException( "Unsupported texture type: " + tex.getClass().getName() );
+        }
+        return (AbstractTexture)tex;
+    }
+
+
+    private static final class Entry {
+        final Reloader mReloader;
+        long    mLastFrame = -1;
+        long    mBytes     = 0;
+        boolean mFresh     = false;
+
+        Entry( Reloader reloader ) {
+            mReloader = reloader;
+        }
+    }
+
+}
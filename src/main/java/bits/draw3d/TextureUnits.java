@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+
+import java.util.Arrays;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Tracks the active texture unit and the texture bound to each target of each unit,
+ * skipping redundant {@code glActiveTexture} and {@code glBindTexture} calls.
+ *
+ * <p>Units may also be assigned automatically. {@link #assign} reuses the unit where a
+ * texture is already bound, or otherwise takes the least recently used unit, then
+ * points the sampler uniform at that unit. {@link Uniform#set(int)} only uploads when
+ * the value changes, so a program drawn repeatedly with the same textures makes no
+ * GL calls at all. Units assigned since the last {@link #beginDraw} are never taken,
+ * so all textures of one draw stay bound together.
+ *
+ * <p>Tracking assumes that all texture binding goes through this object, which is the
+ * case for textures in this package. Code that calls {@code glActiveTexture} or
+ * {@code glBindTexture} directly must call {@link #invalidate} afterward.
+ *
+ * @author Philip DeCamp
+ */
+public class TextureUnits {
+
+    private static final int[] TARGETS = { GL_TEXTURE_2D, GL_TEXTURE_3D, GL_TEXTURE_CUBE_MAP, GL_TEXTURE_2D_ARRAY };
+
+    // Marks an unknown binding.
+    private static final int UNKNOWN = -1;
+
+
+    /**
+     * @return true if {@code memberType} is a GLSL sampler type.
+     */
+    public static boolean isSamplerType( int memberType ) {
+        return targetFor( memberType ) != 0;
+    }
+
+    /**
+     * @return texture target sampled by a GLSL sampler type, or 0 if not a sampler type.
+     */
+    public static int targetFor( int memberType ) {
+        switch( memberType ) {
+        case GL_SAMPLER_2D:
+        case GL_SAMPLER_2D_SHADOW:
+        case GL_INT_SAMPLER_2D:
+        case GL_UNSIGNED_INT_SAMPLER_2D:
+            return GL_TEXTURE_2D;
+        case GL_SAMPLER_3D:
+        case GL_INT_SAMPLER_3D:
+        case GL_UNSIGNED_INT_SAMPLER_3D:
+            return GL_TEXTURE_3D;
+        case GL_SAMPLER_CUBE:
+        case GL_SAMPLER_CUBE_SHADOW:
+        case GL_INT_SAMPLER_CUBE:
+        case GL_UNSIGNED_INT_SAMPLER_CUBE:
+            return GL_TEXTURE_CUBE_MAP;
+        case GL_SAMPLER_2D_ARRAY:
+        case GL_SAMPLER_2D_ARRAY_SHADOW:
+        case GL_INT_SAMPLER_2D_ARRAY:
+        case GL_UNSIGNED_INT_SAMPLER_2D_ARRAY:
+            return GL_TEXTURE_2D_ARRAY;
+        default:
+            return 0;
+        }
+    }
+
+
+    private int    mUnitNum = 0;
+    private int    mActive  = UNKNOWN;
+    private int[]  mBound   = new int[0];
+    private long[] mStamp   = new long[0];
+
+    private long mClock     = 0;
+    private long mDrawStart = 1;
+
+    private int mActiveNum = 0;
+    private int mBindNum   = 0;
+    private int mSkipNum   = 0;
+
+
+    public TextureUnits() {}
+
+    /**
+     * @return number of units available for assignment. Queried from GL on first use.
+     */
+    public int unitNum() {
+        if( mUnitNum == 0 ) {
+            int[] n = { 0 };
+            GLES30.glGetIntegerv( GL_MAX_COMBINED_TEXTURE_IMAGE_UNITS, n, 0 );
+            unitNum( n[0] > 0 ? n[0] : 16 );
+        }
+        return mUnitNum;
+    }
+
+    /**
+     * Limits units used for assignment, for example to leave high units for manual use.
+     */
+    public void unitNum( int num ) {
+        mUnitNum = num;
+        if( num * TARGETS.length > mBound.length ) {
+            mBound = new int[num * TARGETS.length];
+            mStamp = new long[num];
+        }
+        invalidate();
+    }
+
+    /**
+     * Makes unit active, unless it already is.
+     */
+    public void active( int unit ) {
+        if( unit == mActive ) {
+            return;
+        }
+        mActive = unit;
+        mActiveNum++;
+        GLES30.glActiveTexture( GL_TEXTURE0 + unit );
+    }
+
+    /**
+     * @return active unit, or -1 if unknown.
+     */
+    public int active() {
+        return mActive;
+    }
+
+    /**
+     * Binds texture to target of the active unit, unless already bound.
+     */
+    public void bindTexture( int target, int id ) {
+        int slot = slot( mActive, target );
+        if( slot >= 0 && mBound[slot] == id ) {
+            mSkipNum++;
+            return;
+        }
+        if( slot >= 0 ) {
+            mBound[slot] = id;
+        }
+        mBindNum++;
+        GLES30.glBindTexture( target, id );
+    }
+
+    /**
+     * Binds texture to target of unit, unless already bound. Makes unit active only if a bind is needed.
+     */
+    public void bindTexture( int unit, int target, int id ) {
+        int slot = slot( unit, target );
+        if( slot >= 0 && mBound[slot] == id ) {
+            mSkipNum++;
+            return;
+        }
+        active( unit );
+        bindTexture( target, id );
+    }
+
+    /**
+     * @return unit on which texture is bound, or -1 if not known to be bound.
+     */
+    public int unitOf( int target, int id ) {
+        int t = targetIndex( target );
+        if( t < 0 || id == 0 ) {
+            return -1;
+        }
+        for( int unit = 0; unit < mUnitNum; unit++ ) {
+            if( mBound[unit * TARGETS.length + t] == id ) {
+                return unit;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Starts a new group of assignments. Units assigned before this call may be reused.
+     * Call before assigning the textures of each draw.
+     */
+    public void beginDraw() {
+        mDrawStart = ++mClock;
+    }
+
+    /**
+     * Binds texture to a unit and points sampler at that unit. Uses the unit on which the
+     * texture is already bound, if any. Otherwise uses the least recently used unit not
+     * assigned since {@link #beginDraw}.
+     *
+     * @param tex        Texture to bind.
+     * @param optSampler [Optional] sampler uniform of the currently bound program.
+     * @return assigned unit.
+     * @throws IllegalStateException if all units are in use by the current draw.
+     */
+    public int assign( DrawEnv d, Texture tex, Uniform optSampler ) {
+        final int num = unitNum();
+        int unit = unitOf( tex.target(), tex.id() );
+        if( unit < 0 ) {
+            long oldest = Long.MAX_VALUE;
+            for( int i = 0; i < num; i++ ) {
+                if( mStamp[i] < oldest && mStamp[i] < mDrawStart ) {
+                    oldest = mStamp[i];
+                    unit = i;
+                }
+            }
+            if( unit < 0 ) {
+                throw new IllegalStateException( "All " + num + " texture units are in use." );
+            }
+        }
+
+        // Runs texture's own init and residency logic. Redundant GL calls are skipped.
+        tex.bind( d, unit );
+        if( !( tex instanceof AbstractTexture ) ) {
+            // Texture from outside this package that may have bound directly.
+            mActive = unit;
+            int slot = slot( unit, tex.target() );
+            if( slot >= 0 ) {
+                mBound[slot] = tex.id();
+            }
+        }
+
+        mStamp[unit] = ++mClock;
+        if( optSampler != null ) {
+            optSampler.set( unit );
+        }
+        return unit;
+    }
+
+    /**
+     * Records that a texture was deleted, which unbinds it from every unit.
+     */
+    public void onDelete( int id ) {
+        if( id == 0 ) {
+            return;
+        }
+        for( int i = 0; i < mBound.length; i++ ) {
+            if( mBound[i] == id ) {
+                mBound[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Forgets active unit and all bindings, so that the next calls are issued unconditionally.
+     * Must be called after binding textures directly or after context loss.
+     */
+    public void invalidate() {
+        mActive = UNKNOWN;
+        Arrays.fill( mBound, UNKNOWN );
+        Arrays.fill( mStamp, 0 );
+    }
+
+    /**
+     * @return number of {@code glActiveTexture} calls made.
+     */
+    public int activeCount() {
+        return mActiveNum;
+    }
+
+    /**
+     * @return number of {@code glBindTexture} calls made.
+     */
+    public int bindCount() {
+        return mBindNum;
+    }
+
+    /**
+     * @return number of binds skipped because texture was already bound.
+     */
+    public int skipCount() {
+        return mSkipNum;
+    }
+
+
+    public void resetCounts() {
+        mActiveNum = 0;
+        mBindNum   = 0;
+        mSkipNum   = 0;
+    }
+
+
+    private int slot( int unit, int target ) {
+        if( unit < 0 || unit >= unitNum() ) {
+            return -1;
+        }
+        int t = targetIndex( target );
+        return t < 0 ? -1 : unit * TARGETS.length + t;
+    }
+
+
+    private static int targetIndex( int target ) {
+        for( int i = 0; i < TARGETS.length; i++ ) {
+            if( TARGETS[i] == target ) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
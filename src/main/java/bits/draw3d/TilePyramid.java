@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Read-only pyramid of square image tiles, usually memory-mapped from disk, that
+ * serves as the source of a {@link VirtualTexture}.
+ *
+ * <p>Level 0 holds the full image. Each following level halves the resolution, and
+ * the last level is a single tile. A tile at level {@code L} covers
+ * {@code tileSize << L} pixels of level 0 in each dimension, and its four children
+ * at level {@code L - 1} are {@code (2x, 2y)} through {@code (2x + 1, 2y + 1)}.
+ *
+ * <p>Within a level, tiles are stored contiguously in row-major order. Each tile holds
+ * {@code slotSize() * slotSize()} tightly packed pixels: the tile content plus a
+ * border of {@code border} pixels on each side copied from neighboring tiles, which
+ * allows linear filtering within the atlas. Pixels beyond the image edge are unused.
+ * In a file, levels follow each other, starting with level 0.
+ *
+ * @author Philip DeCamp
+ */
+public class TilePyramid {
+
+    /**
+     * Maps a tile pyramid file. Each level is mapped separately, so files may exceed
+     * the 2 GB limit of a single mapping as long as no level does.
+     *
+     * @param file   File holding tiles.
+     * @param offset Position of first tile in file.
+     */
+    public static TilePyramid open( File file,
+                                    long offset,
+                                    int width,
+                                    int height,
+                                    int tileSize,
+                                    int border,
+                                    int intFormat,
+                                    int format,
+                                    int dataType )
+                                    throws IOException
+    {
+        int levelNum  = levelNum( width, height, tileSize );
+        int slotSize  = tileSize + 2 * border;
+        long tileBytes = (long)slotSize * slotSize * Texture3.voxelBytes( format, dataType );
+
+        ByteBuffer[] levels = new ByteBuffer[levelNum];
+        try( RandomAccessFile raf = new RandomAccessFile( file, "r" ) ) {
+            FileChannel ch = raf.getChannel();
+            long pos = offset;
+            for( int i = 0; i < levelNum; i++ ) {
+                long len = tileBytes * tilesX( width, tileSize, i ) * tilesY( height, tileSize, i );
+                if( pos + len > ch.size() ) {
+                    throw new IOException( "File too short for tile pyramid: " + file );
+                }
+                levels[i] = ch.map( FileChannel.MapMode.READ_ONLY, pos, len );
+                pos += len;
+            }
+        }
+
+        return new TilePyramid( levels, width, height, tileSize, border, intFormat, format, dataType );
+    }
+
+    /**
+     * @return number of levels in pyramid of given size, including the single tile level.
+     */
+    public static int levelNum( int width, int height, int tileSize ) {
+        int ret = 1;
+        while( tilesX( width, tileSize, ret - 1 ) > 1 || tilesY( height, tileSize, ret - 1 ) > 1 ) {
+            ret++;
+        }
+        return ret;
+    }
+
+
+    private static int tilesX( int width, int tileSize, int level ) {
+        long span = (long)tileSize << level;
+        return (int)( ( width + span - 1 ) / span );
+    }
+
+
+    private static int tilesY( int height, int tileSize, int level ) {
+        return tilesX( height, tileSize, level );
+    }
+
+
+    private final ByteBuffer[] mLevels;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileSize;
+    private final int mBorder;
+    private final int mIntFormat;
+    private final int mFormat;
+    private final int mDataType;
+    private final int mTileBytes;
+
+
+    /**
+     * @param levels    One buffer per level, each positioned at first tile. Length must
+     *                  equal {@link #levelNum(int, int, int)}.
+     * @param width     Width of level 0 in pixels.
+     * @param height    Height of level 0 in pixels.
+     * @param tileSize  Width and height of tile content in pixels.
+     * @param border    Border pixels stored on each side of each tile.
+     * @param intFormat Internal format of atlas texture.
+     * @param format    Format of stored pixels.
+     * @param dataType  Data type of stored pixels.
+     */
+    public TilePyramid( ByteBuffer[] levels,
+                        int width,
+                        int height,
+                        int tileSize,
+                        int border,
+                        int intFormat,
+                        int format,
+                        int dataType )
+    {
+        if( levels.length != levelNum( width, height, tileSize ) ) {
+            throw new IllegalArgumentException( "Expected " + levelNum( width, height, tileSize ) + " levels." );
+        }
+        mWidth     = width;
+        mHeight    = height;
+        mTileSize  = tileSize;
+        mBorder    = border;
+        mIntFormat = intFormat;
+        mFormat    = format;
+        mDataType  = dataType;
+
+        int slot = tileSize + 2 * border;
+        mTileBytes = slot * slot * Texture3.voxelBytes( format, dataType );
+
+        mLevels = new ByteBuffer[levels.length];
+        for( int i = 0; i < levels.length; i++ ) {
+            if( (long)tileNum( i ) * mTileBytes > levels[i].remaining() ) {
+                throw new IllegalArgumentException( "Buffer for level " + i + " is too small." );
+            }
+            mLevels[i] = levels[i].slice();
+        }
+    }
+
+
+    public int width() {
+        return mWidth;
+    }
+
+
+    public int height() {
+        return mHeight;
+    }
+
+
+    public int tileSize() {
+        return mTileSize;
+    }
+
+
+    public int border() {
+        return mBorder;
+    }
+
+    /**
+     * @return width and height of stored tiles, including border.
+     */
+    public int slotSize() {
+        return mTileSize + 2 * mBorder;
+    }
+
+
+    public int internalFormat() {
+        return mIntFormat;
+    }
+
+
+    public int format() {
+        return mFormat;
+    }
+
+
+    public int dataType() {
+        return mDataType;
+    }
+
+
+    public int levelNum() {
+        return mLevels.length;
+    }
+
+
+    public int tilesX( int level ) {
+        return tilesX( mWidth, mTileSize, level );
+    }
+
+
+    public int tilesY( int level ) {
+        return tilesY( mHeight, mTileSize, level );
+    }
+
+
+    public int tileNum( int level ) {
+        return tilesX( level ) * tilesY( level );
+    }
+
+    /**
+     * @return bytes per stored tile.
+     */
+    public int tileBytes() {
+        return mTileBytes;
+    }
+
+    /**
+     * @return view of a tile's pixels. Data is not copied.
+     */
+    public ByteBuffer tile( int level, int x, int y ) {
+        if( x < 0 || y < 0 || x >= tilesX( level ) || y >= tilesY( level ) ) {
+            throw new IndexOutOfBoundsException( "No tile " + x + ", " + y + " at level " + level );
+        }
+        ByteBuffer ret = mLevels[level].duplicate();
+        int pos = ( y * tilesX( level ) + x ) * mTileBytes;
+        ret.position( pos ).limit( pos + mTileBytes );
+        return ret;
+    }
+
+}
@@ -10,6 +10,7 @@ import android.opengl.GLES30;
 import bits.vec.*;
 
 import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -25,14 +26,17 @@ public class Ubo implements DrawUnit {
     private final int[] mId = { 0 };
 
     final   List<Member> mMembers     = new ArrayList<>();
+    private NameIndex    mMemberIndex = new NameIndex();
     private int          mMembersSize = 0;
     private int          mBindLoc     = -1;
 
     private boolean mDirty    = true; // Set true for any state change.
     private boolean mNeedInit = true; // Set true only if realloc is needed.
 
-    private ByteBuffer mBuf;
-    private int mInternalCap = -1;
+    ByteBuffer          mBuf;
+    private FloatBuffer mFloats;
+    private int         mInternalCap = -1;
+    private float[]     mWork        = new float[16];
 
 
     public Ubo() {
@@ -57,12 +61,16 @@ public class Ubo implements DrawUnit {
 
     public void configureForProgramBlock( UniformBlock block ) {
         mMembers.clear();
+        mMemberIndex.clear();
         mMembersSize = 0;
 
         for( Uniform uniform : block.mUniforms ) {
             Member member = new Member( uniform );
             member.mBufOff = uniform.mBlockOffset;
+            mMemberIndex.putIfAbsent( uniform.mName, mMembers.size() );
+            mMembers.add( member );
         }
+        mMembersSize = block.mDataSize;
 
         if( mBindLoc < 0 ) {
             mBindLoc = block.mLocation;
@@ -90,6 +98,7 @@ public class Ubo implements DrawUnit {
         member.mBufOff  = uniform.mBlockOffset;
         member.mBufSize = mLayout.arrayStride( type, arrayLen );
         mMembersSize += member.mBufSize;
+        mMemberIndex.putIfAbsent( uniform.mName, mMembers.size() );
         mMembers.add( member );
         mDirty = mNeedInit = true;
 
@@ -97,26 +106,40 @@ public class Ubo implements DrawUnit {
     }
 
 
+    /**
+     * @return size of member data in bytes, including padding.
+     */
+    public int dataSize() {
+        return mMembersSize;
+    }
+
+
     public int memberNum() {
         return mMembers.size();
     }
 
 
+    /**
+     * @param idx Index of member, as returned by {@link #memberIndex}.
+     */
     public UboMember member( int idx ) {
         return mMembers.get( idx );
     }
 
+    /**
+     * Resolves a member name to an index that remains valid until the members of this Ubo
+     * are reconfigured. Hot paths should resolve names once and then use {@link #member(int)}.
+     *
+     * @return index of member with given name, or -1 if none.
+     */
+    public int memberIndex( String name ) {
+        return mMemberIndex.get( name );
+    }
+
 
     public UboMember member( String name ) {
-        if( name == null ) {
-            return null;
-        }
-        for( Member m: mMembers ) {
-            if( name.equals( m.target().mName ) ) {
-                return m;
-            }
-        }
-        return null;
+        int idx = mMemberIndex.get( name );
+        return idx < 0 ? null : mMembers.get( idx );
     }
 
     /**
@@ -128,6 +151,7 @@ public class Ubo implements DrawUnit {
             return;
         }
         mBuf = DrawUtil.alloc( mMembersSize );
+        mFloats = mBuf.asFloatBuffer();
         mDirty = true;
     }
 
@@ -148,6 +172,7 @@ public class Ubo implements DrawUnit {
         }
         mMembersSize = 0;
         mMembers.clear();
+        mMemberIndex.clear();
         mNeedInit = true;
         mDirty = true;
     }
@@ -218,6 +243,8 @@ public class Ubo implements DrawUnit {
     private class Member implements UboMember {
 
         private final Uniform mTarget;
+        private final int     mRows;
+        private final int     mCols;
 
         private int mBufOff  = -1;
         private int mBufSize = -1;
@@ -225,6 +252,9 @@ public class Ubo implements DrawUnit {
 
         Member( Uniform target ) {
             mTarget = target;
+            MemberType type = MemberType.fromGl( target.mMemberType );
+            mRows = type != null ? type.rows() : 1;
+            mCols = type != null ? type.cols() : 1;
         }
 
 
@@ -393,17 +423,17 @@ public class Ubo implements DrawUnit {
                 mat.m10 = mBuf.getFloat( p + 4 );
                 mat.m20 = mBuf.getFloat( p + 8 );
                 mat.m30 = mBuf.getFloat( p + 12 );
-                off += mTarget.mMatrixStride;
+                p += mTarget.mMatrixStride;
                 mat.m01 = mBuf.getFloat( p + 0 );
                 mat.m11 = mBuf.getFloat( p + 4 );
                 mat.m21 = mBuf.getFloat( p + 8 );
                 mat.m31 = mBuf.getFloat( p + 12 );
-                off += mTarget.mMatrixStride;
+                p += mTarget.mMatrixStride;
                 mat.m02 = mBuf.getFloat( p + 0 );
                 mat.m12 = mBuf.getFloat( p + 4 );
                 mat.m22 = mBuf.getFloat( p + 8 );
                 mat.m32 = mBuf.getFloat( p + 12 );
-                off += mTarget.mMatrixStride;
+                p += mTarget.mMatrixStride;
                 mat.m03 = mBuf.getFloat( p + 0 );
                 mat.m13 = mBuf.getFloat( p + 4 );
                 mat.m23 = mBuf.getFloat( p + 8 );
@@ -472,28 +502,9 @@ public class Ubo implements DrawUnit {
         }
 
         public void set( Mat4 mat ) {
-            int toff = mBufOff;
-            final int matStride = mTarget.mMatrixStride;
-            mBuf.putFloat( toff + 0, mat.m00 );
-            mBuf.putFloat( toff + 4, mat.m10 );
-            mBuf.putFloat( toff + 8, mat.m20 );
-            mBuf.putFloat( toff + 12, mat.m30 );
-            toff += matStride;
-            mBuf.putFloat( toff + 0, mat.m01 );
-            mBuf.putFloat( toff + 4, mat.m11 );
-            mBuf.putFloat( toff + 8, mat.m21 );
-            mBuf.putFloat( toff + 12, mat.m31 );
-            toff += matStride;
-            mBuf.putFloat( toff + 0, mat.m02 );
-            mBuf.putFloat( toff + 4, mat.m12 );
-            mBuf.putFloat( toff + 8, mat.m22 );
-            mBuf.putFloat( toff + 12, mat.m32 );
-            toff += matStride;
-            mBuf.putFloat( toff + 0, mat.m03 );
-            mBuf.putFloat( toff + 4, mat.m13 );
-            mBuf.putFloat( toff + 8, mat.m23 );
-            mBuf.putFloat( toff + 12, mat.m33 );
-            mDirty = true;
+            float[] work = mWork;
+            pack( mat, work, 0 );
+            setData( 0, work, 0, 1 );
         }
 
         public void set( int firstElem, int[] vals, int off, int len ) {
@@ -585,45 +596,151 @@ public class Ubo implements DrawUnit {
         }
 
         public void set( int firstElem, Mat4[] vals, int off, int len ) {
-            final int end = off + len;
-            final int arrStride = mTarget.mArrayStride;
-            int pos = mBufOff + arrStride * firstElem;
-            for( int i = off; i < end; i++ ) {
-                int p = pos;
-                Mat4 mat = vals[i];
-                mBuf.putFloat( p + 0, mat.m00 );
-                mBuf.putFloat( p + 4, mat.m10 );
-                mBuf.putFloat( p + 8, mat.m20 );
-                mBuf.putFloat( p + 12, mat.m30 );
-                off += mTarget.mMatrixStride;
-                mBuf.putFloat( p + 0, mat.m01 );
-                mBuf.putFloat( p + 4, mat.m11 );
-                mBuf.putFloat( p + 8, mat.m21 );
-                mBuf.putFloat( p + 12, mat.m31 );
-                off += mTarget.mMatrixStride;
-                mBuf.putFloat( p + 0, mat.m02 );
-                mBuf.putFloat( p + 4, mat.m12 );
-                mBuf.putFloat( p + 8, mat.m22 );
-                mBuf.putFloat( p + 12, mat.m32 );
-                off += mTarget.mMatrixStride;
-                mBuf.putFloat( p + 0, mat.m03 );
-                mBuf.putFloat( p + 4, mat.m13 );
-                mBuf.putFloat( p + 8, mat.m23 );
-                mBuf.putFloat( p + 12, mat.m33 );
+            float[] work = work( len * 16 );
+            for( int i = 0; i < len; i++ ) {
+                pack( vals[off + i], work, i * 16 );
+            }
+            setData( firstElem, work, 0, len );
+        }
 
-                pos += arrStride;
+        public void setData( int firstElem, float[] vals, int off, int elemNum ) {
+            final int rows   = mRows;
+            final int cols   = mCols;
+            final int packed = rows * cols;
+            final int as     = arrayStride();
+            final int ms     = matrixStride();
+            final FloatBuffer fb = mFloats;
+
+            int pos = mBufOff + firstElem * as;
+            if( as == packed * 4 && ( cols == 1 || ms == rows * 4 ) ) {
+                // Layout matches tight packing. Single copy.
+                fb.position( pos >> 2 );
+                fb.put( vals, off, elemNum * packed );
+            } else {
+                // Copy each column separately.
+                for( int i = 0; i < elemNum; i++ ) {
+                    int p = pos;
+                    for( int c = 0; c < cols; c++ ) {
+                        fb.position( p >> 2 );
+                        fb.put( vals, off, rows );
+                        off += rows;
+                        p += ms;
+                    }
+                    pos += as;
+                }
             }
             mDirty = true;
         }
 
+        public void setData( int firstElem, FloatBuffer vals, int elemNum ) {
+            final int rows   = mRows;
+            final int cols   = mCols;
+            final int packed = rows * cols;
+            final int as     = arrayStride();
+            final int ms     = matrixStride();
+            final FloatBuffer fb = mFloats;
+
+            final int lim = vals.limit();
+            int pos = mBufOff + firstElem * as;
+            try {
+                if( as == packed * 4 && ( cols == 1 || ms == rows * 4 ) ) {
+                    vals.limit( vals.position() + elemNum * packed );
+                    fb.position( pos >> 2 );
+                    fb.put( vals );
+                } else {
+                    for( int i = 0; i < elemNum; i++ ) {
+                        int p = pos;
+                        for( int c = 0; c < cols; c++ ) {
+                            vals.limit( vals.position() + rows );
+                            fb.position( p >> 2 );
+                            fb.put( vals );
+                            p += ms;
+                        }
+                        pos += as;
+                    }
+                }
+            } finally {
+                vals.limit( lim );
+            }
+            mDirty = true;
+        }
+
+        public void getData( int firstElem, float[] out, int off, int elemNum ) {
+            final int rows   = mRows;
+            final int cols   = mCols;
+            final int packed = rows * cols;
+            final int as     = arrayStride();
+            final int ms     = matrixStride();
+            final FloatBuffer fb = mFloats;
+
+            int pos = mBufOff + firstElem * as;
+            if( as == packed * 4 && ( cols == 1 || ms == rows * 4 ) ) {
+                fb.position( pos >> 2 );
+                fb.get( out, off, elemNum * packed );
+            } else {
+                for( int i = 0; i < elemNum; i++ ) {
+                    int p = pos;
+                    for( int c = 0; c < cols; c++ ) {
+                        fb.position( p >> 2 );
+                        fb.get( out, off, rows );
+                        off += rows;
+                        p += ms;
+                    }
+                    pos += as;
+                }
+            }
+        }
+
         public void setComponent( int elem, int row, int col, int val ) {
             mBuf.putInt( mBufOff + elem * mTarget.mArrayStride + col * mTarget.mMatrixStride + 4 * row, val );
+            mDirty = true;
         }
 
         public void setComponent( int elem, int row, int col, float val ) {
             mBuf.putFloat( mBufOff + elem * mTarget.mArrayStride + col * mTarget.mMatrixStride + 4 * row, val );
+            mDirty = true;
         }
 
+
+        private int arrayStride() {
+            int as = mTarget.mArrayStride;
+            return as > 0 ? as : mCols * matrixStride();
+        }
+
+
+        private int matrixStride() {
+            int ms = mTarget.mMatrixStride;
+            return ms > 0 ? ms : mRows * 4;
+        }
+
+
+        private float[] work( int len ) {
+            if( mWork.length < len ) {
+                mWork = new float[len];
+            }
+            return mWork;
+        }
+
+    }
+
+
+    private static void pack( Mat4 mat, float[] out, int off ) {
+        out[off     ] = mat.m00;
+        out[off +  1] = mat.m10;
+        out[off +  2] = mat.m20;
+        out[off +  3] = mat.m30;
+        out[off +  4] = mat.m01;
+        out[off +  5] = mat.m11;
+        out[off +  6] = mat.m21;
+        out[off +  7] = mat.m31;
+        out[off +  8] = mat.m02;
+        out[off +  9] = mat.m12;
+        out[off + 10] = mat.m22;
+        out[off + 11] = mat.m32;
+        out[off + 12] = mat.m03;
+        out[off + 13] = mat.m13;
+        out[off + 14] = mat.m23;
+        out[off + 15] = mat.m33;
     }
 
 }
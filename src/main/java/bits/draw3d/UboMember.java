@@ -8,6 +8,8 @@ package bits.draw3d;
 
 import bits.vec.*;
 
+import java.nio.FloatBuffer;
+
 
 /**
  * Provides access to one member of a block of UBO data.
@@ -27,6 +29,7 @@ public interface UboMember {
     float getComponentFloat( int elem, int row, int col );
     void  get( Vec2 vec );
     void  get( Vec3 vec );
+    void  get( Vec4 vec );
     void  get( Mat3 mat );
     void  get( Mat4 mat );
     void  get( int firstElem, int[] out, int off, int len );
@@ -55,4 +58,29 @@ public interface UboMember {
     void  setComponent( int elem, int row, int col, int val );
     void  setComponent( int elem, int row, int col, float val );
 
+    /**
+     * Writes tightly packed, column-major element data. When the member layout matches
+     * the packing (eg, vec4 and mat4 arrays in std140), the data is written with a single
+     * bulk copy. Otherwise, each column is copied separately.
+     *
+     * @param firstElem First array element to write.
+     * @param vals      Packed data, {@code rows * cols} floats per element.
+     * @param off       Offset into {@code vals}.
+     * @param elemNum   Number of array elements to write.
+     */
+    void  setData( int firstElem, float[] vals, int off, int elemNum );
+
+    /**
+     * Same as {@link #setData(int, float[], int, int)}, but reads from a FloatBuffer.
+     * Data is read from the current position of {@code vals}, and the position is
+     * advanced by the number of floats read.
+     */
+    void  setData( int firstElem, FloatBuffer vals, int elemNum );
+
+    /**
+     * Reads element data into a tightly packed, column-major array.
+     * @see #setData(int, float[], int, int)
+     */
+    void  getData( int firstElem, float[] out, int off, int elemNum );
+
 }
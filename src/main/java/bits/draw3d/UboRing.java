@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Packs the member data of many logical uniform blocks into a single buffer object.
+ *
+ * <p>Intended for per-object blocks that are rewritten every frame. Rather than
+ * giving each object its own {@link Ubo}, configure a single Ubo with the block layout,
+ * set the values for each object, and {@link #add} a snapshot of the Ubo to the ring.
+ * Each snapshot is placed at an offset aligned to {@code GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT}.
+ * The entire frame is uploaded at once on the first call to {@link #bind}, or on an explicit call
+ * to {@link #upload}, and each snapshot is then bound with {@code glBindBufferRange}.
+ *
+ * <p>Typical use: <pre>{@code
+ * ring.clear();
+ * for( Obj obj: objs ) {
+ *     modelMember.set( obj.mModelMat );
+ *     obj.mSlice = ring.add( ubo );
+ * }
+ * ...
+ * for( Obj obj: objs ) {
+ *     ring.bind( d, obj.mSlice, bindLoc );
+ *     draw( obj );
+ * }
+ * }</pre>
+ *
+ * <p>The GL buffer is orphaned on each upload, so slices from a previous frame
+ * must not be bound after {@link #clear}.
+ *
+ * @author Philip DeCamp
+ */
+public class UboRing implements DrawResource {
+
+    private static final int DEFAULT_CAPACITY = 64 * 1024;
+
+    private final int[] mId = { 0 };
+
+    private ByteBuffer mBuf;
+    private int mInternalCap = -1;
+    private int mAlign       = 256; // Conservative default until queried.
+    private int mPos         = 0;
+
+    private int[] mOffsets = new int[32];
+    private int[] mSizes   = new int[32];
+    private int   mSliceNum = 0;
+
+    private boolean mDirty = false;
+
+
+    public UboRing() {
+        this( DEFAULT_CAPACITY );
+    }
+
+    /**
+     * @param initialCapacity Initial size of buffer in bytes. The buffer will grow as needed.
+     */
+    public UboRing( int initialCapacity ) {
+        mBuf = DrawUtil.alloc( Math.max( 256, initialCapacity ) );
+    }
+
+    /**
+     * @return offset alignment required between slices. Not valid until initialized.
+     */
+    public int alignment() {
+        return mAlign;
+    }
+
+    /**
+     * @return current capacity of the ring in bytes.
+     */
+    public int capacity() {
+        return mBuf.capacity();
+    }
+
+    /**
+     * @return number of bytes currently used by slices, including alignment padding.
+     */
+    public int bytesUsed() {
+        return mPos;
+    }
+
+    /**
+     * @return number of slices added since last {@link #clear}.
+     */
+    public int sliceNum() {
+        return mSliceNum;
+    }
+
+
+    public int offset( int slice ) {
+        return mOffsets[slice];
+    }
+
+
+    public int size( int slice ) {
+        return mSizes[slice];
+    }
+
+    /**
+     * Removes all slices. Should be called once at the start of each frame.
+     */
+    public void clear() {
+        mPos      = 0;
+        mSliceNum = 0;
+        mDirty    = false;
+    }
+
+    /**
+     * Copies the current member data of {@code ubo} into the ring.
+     *
+     * @param ubo Ubo holding block data. Its members buffer will be allocated if needed.
+     * @return slice handle that may be passed to {@link #bind}.
+     */
+    public int add( Ubo ubo ) {
+        ubo.allocMembersBuffer();
+        ByteBuffer src = ubo.mBuf.duplicate();
+        src.clear();
+        return add( src );
+    }
+
+    /**
+     * Copies block data into the ring.
+     *
+     * @param data Block data. All remaining bytes are copied. Position is not modified.
+     * @return slice handle that may be passed to {@link #bind}.
+     */
+    public int add( ByteBuffer data ) {
+        final int len = data.remaining();
+        final int off = ByteAlignment.align( mPos, mAlign );
+        ensureCapacity( off + len );
+
+        ByteBuffer dst = mBuf;
+        dst.clear();
+        dst.position( off );
+        dst.put( data.duplicate() );
+
+        if( mSliceNum == mOffsets.length ) {
+            int cap   = mSliceNum * 2;
+            mOffsets  = Arrays.copyOf( mOffsets, cap );
+            mSizes    = Arrays.copyOf( mSizes, cap );
+        }
+
+        mOffsets[mSliceNum] = off;
+        mSizes[mSliceNum]   = len;
+        mPos   = off + len;
+        mDirty = true;
+        return mSliceNum++;
+    }
+
+    /**
+     * Uploads all slices with a single transfer. Called automatically by
+     * {@link #bind} if slices have been added since the last upload.
+     */
+    public void upload( DrawEnv d ) {
+        if( mId[0] == 0 ) {
+            init( d );
+        }
+        mDirty = false;
+        final int cap = mBuf.capacity();
+        GLES30.glBindBuffer( GL_UNIFORM_BUFFER, mId[0] );
+        // Orphan previous storage so that we don't stall on draws still using the last frame.
+        GLES30.glBufferData( GL_UNIFORM_BUFFER, cap, null, GL_STREAM_DRAW );
+        mInternalCap = cap;
+        if( mPos > 0 ) {
+            mBuf.clear();
+            mBuf.limit( mPos );
+            GLES30.glBufferSubData( GL_UNIFORM_BUFFER, 0, mPos, mBuf );
+        }
+        d.checkErr();
+    }
+
+    /**
+     * Binds a slice to a uniform block binding location with {@code glBindBufferRange}.
+     *
+     * @param slice    Handle returned by {@link #add}.
+     * @param location Uniform block binding location.
+     */
+    public void bind( DrawEnv d, int slice, int location ) {
+        if( mDirty || mInternalCap < 0 ) {
+            upload( d );
+        }
+        GLES30.glBindBufferRange( GL_UNIFORM_BUFFER, location, mId[0], mOffsets[slice], mSizes[slice] );
+    }
+
+    /**
+     * Binds a slice using the binding location of {@code ubo}.
+     */
+    public void bind( DrawEnv d, int slice, Ubo ubo ) {
+        bind( d, slice, ubo.bindLocation() );
+    }
+
+    @Override
+    public void init( DrawEnv d ) {
+        if( mId[0] != 0 ) {
+            return;
+        }
+        GLES30.glGenBuffers( 1, mId, 0 );
+        int[] align = { 0 };
+        GLES30.glGetIntegerv( GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT, align, 0 );
+        if( align[0] > 0 ) {
+            mAlign = align[0];
+        }
+        mInternalCap = -1;
+        d.checkErr();
+    }
+
+    @Override
+    public void dispose( DrawEnv d ) {
+        if( mId[0] != 0 ) {
+            GLES30.glDeleteBuffers( 1, mId, 0 );
+            mId[0] = 0;
+        }
+        mInternalCap = -1;
+        clear();
+    }
+
+
+    private void ensureCapacity( int minCap ) {
+        if( minCap <= mBuf.capacity() ) {
+            return;
+        }
+        int cap = mBuf.capacity() * 2;
+        while( cap < minCap ) {
+            cap *= 2;
+        }
+        ByteBuffer buf = DrawUtil.alloc( cap );
+        mBuf.clear();
+        mBuf.limit( mPos );
+        buf.put( mBuf );
+        mBuf = buf;
+    }
+
+}
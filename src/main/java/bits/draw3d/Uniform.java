@@ -6,7 +6,18 @@
 
 package bits.draw3d;
 
+import android.opengl.GLES30;
+
+import static android.opengl.GLES30.*;
+
+
 /**
+ * Describes an active uniform of a program. For uniforms in the default block,
+ * also keeps a shadow copy of the last value uploaded through it. Because uniform
+ * values persist in the program object, the {@code set} methods skip
+ * the {@code glUniform*} call when the new value matches the shadow.
+ * The program must be bound when calling {@code set}.
+ *
  * @author Philip DeCamp
  */
 public class Uniform extends ProgramResource {
@@ -35,6 +46,13 @@ public class Uniform extends ProgramResource {
      */
     public final int mBlockOffset;
 
+    private float[] mFloats    = null;
+    private int[]   mInts      = null;
+    private boolean mValid     = false;
+    private long    mVersion   = Long.MIN_VALUE;
+    private int     mUploadNum = 0;
+    private int     mSkipNum   = 0;
+
 
     public Uniform(
             int memberType,
@@ -54,4 +72,221 @@ public class Uniform extends ProgramResource {
         mBlockOffset  = blockOffset;
     }
 
+    /**
+     * Copies description of a uniform. The copy starts with no shadowed value.
+     */
+    public Uniform( Uniform copy ) {
+        this( copy.mMemberType,
+              copy.mArrayLength,
+              copy.mIndex,
+              copy.mLocation,
+              copy.mName,
+              copy.mArrayStride,
+              copy.mMatrixStride,
+              copy.mBlockIndex,
+              copy.mBlockOffset );
+    }
+
+    /**
+     * Creates a standalone uniform for a known location in the default block.
+     */
+    public static Uniform forLocation( int memberType, int location, String name ) {
+        return new Uniform( memberType, 1, -1, location, name, -1, -1, -1, -1 );
+    }
+
+    /**
+     * Sets float value(s), uploading only if they differ from the last uploaded value.
+     * Matrices are column-major.
+     *
+     * @param vals Array holding values.
+     * @param off  Offset into vals.
+     * @param len  Number of floats to set. Must be a multiple of the number of components in the uniform type.
+     * @return true if uploaded, false if skipped.
+     */
+    public boolean set( float[] vals, int off, int len ) {
+        float[] shadow = mFloats;
+        if( shadow == null || shadow.length < len ) {
+            shadow = mFloats = new float[len];
+        } else if( mValid && rangeEquals( vals, off, shadow, len ) ) {
+            mSkipNum++;
+            return false;
+        }
+        System.arraycopy( vals, off, shadow, 0, len );
+        mValid   = true;
+        mVersion = Long.MIN_VALUE;
+        mUploadNum++;
+        uploadFloats( shadow, len );
+        return true;
+    }
+
+
+    public boolean set( float val ) {
+        float[] shadow = mFloats;
+        if( shadow == null ) {
+            shadow = mFloats = new float[1];
+        } else if( mValid && shadow[0] == val ) {
+            mSkipNum++;
+            return false;
+        }
+        shadow[0] = val;
+        mValid   = true;
+        mVersion = Long.MIN_VALUE;
+        mUploadNum++;
+        uploadFloats( shadow, 1 );
+        return true;
+    }
+
+
+    public boolean set( float x, float y, float z, float w ) {
+        float[] shadow = mFloats;
+        if( shadow == null || shadow.length < 4 ) {
+            shadow = mFloats = new float[4];
+        } else if( mValid && shadow[0] == x && shadow[1] == y && shadow[2] == z && shadow[3] == w ) {
+            mSkipNum++;
+            return false;
+        }
+        shadow[0] = x;
+        shadow[1] = y;
+        shadow[2] = z;
+        shadow[3] = w;
+        mValid   = true;
+        mVersion = Long.MIN_VALUE;
+        mUploadNum++;
+        uploadFloats( shadow, 4 );
+        return true;
+    }
+
+    /**
+     * Sets value of int, bool or sampler uniform, uploading only if it has changed.
+     * @return true if uploaded, false if skipped.
+     */
+    public boolean set( int val ) {
+        int[] shadow = mInts;
+        if( shadow == null ) {
+            shadow = mInts = new int[1];
+        } else if( mValid && shadow[0] == val ) {
+            mSkipNum++;
+            return false;
+        }
+        shadow[0] = val;
+        mValid   = true;
+        mVersion = Long.MIN_VALUE;
+        mUploadNum++;
+        GLES30.glUniform1i( mLocation, val );
+        return true;
+    }
+
+    /**
+     * Tests if the current value was computed from a given version of its source data.
+     * Lets a loader skip computing a value whose source hasn't changed.
+     *
+     * @param version Version of source data.
+     * @return true if the shadowed value is valid and was tagged with {@code version},
+     *         in which case the skipped upload is counted.
+     * @see #version(long)
+     */
+    public boolean hasVersion( long version ) {
+        if( mValid && version == mVersion ) {
+            mSkipNum++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tags current value with the version of the source data it was computed from.
+     * Must be called after {@code set}, which clears the tag.
+     */
+    public void version( long version ) {
+        mVersion = version;
+    }
+
+    /**
+     * Discards the shadowed value so the next {@code set} uploads unconditionally.
+     * Should be called if the uniform is written without going through this object.
+     */
+    public void invalidate() {
+        mValid   = false;
+        mVersion = Long.MIN_VALUE;
+    }
+
+    /**
+     * @return number of uploads performed through this uniform since the counts were last reset.
+     */
+    public int uploadCount() {
+        return mUploadNum;
+    }
+
+    /**
+     * @return number of uploads skipped because the value was unchanged since the counts were last reset.
+     */
+    public int skipCount() {
+        return mSkipNum;
+    }
+
+
+    public void resetCounts() {
+        mUploadNum = 0;
+        mSkipNum   = 0;
+    }
+
+
+    private void uploadFloats( float[] v, int len ) {
+        final int loc = mLocation;
+        switch( mMemberType ) {
+        case GL_FLOAT:
+            GLES30.glUniform1fv( loc, len, v, 0 );
+            break;
+        case GL_FLOAT_VEC2:
+            GLES30.glUniform2fv( loc, len / 2, v, 0 );
+            break;
+        case GL_FLOAT_VEC3:
+            GLES30.glUniform3fv( loc, len / 3, v, 0 );
+            break;
+        case GL_FLOAT_VEC4:
+            GLES30.glUniform4fv( loc, len / 4, v, 0 );
+            break;
+        case GL_FLOAT_MAT2:
+            GLES30.glUniformMatrix2fv( loc, len / 4, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT3:
+            GLES30.glUniformMatrix3fv( loc, len / 9, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT4:
+            GLES30.glUniformMatrix4fv( loc, len / 16, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT2x3:
+            GLES30.glUniformMatrix2x3fv( loc, len / 6, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT2x4:
+            GLES30.glUniformMatrix2x4fv( loc, len / 8, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT3x2:
+            GLES30.glUniformMatrix3x2fv( loc, len / 6, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT3x4:
+            GLES30.glUniformMatrix3x4fv( loc, len / 12, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT4x2:
+            GLES30.glUniformMatrix4x2fv( loc, len / 8, false, v, 0 );
+            break;
+        case GL_FLOAT_MAT4x3:
+            GLES30.glUniformMatrix4x3fv( loc, len / 12, false, v, 0 );
+            break;
+        default:
+            mValid = false;
+            throw new IllegalArgumentException( "Uniform " + mName + " does not hold floats." );
+        }
+    }
+
+
+    private static boolean rangeEquals( float[] a, int off, float[] b, int len ) {
+        for( int i = 0; i < len; i++ ) {
+            if( a[off + i] != b[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
 }
@@ -8,11 +8,13 @@ package bits.draw3d;
 
 import android.opengl.GLES30;
 import bits.vec.Mat;
+import bits.vec.Mat3;
 import bits.vec.Mat4;
 
-import java.nio.FloatBuffer;
 import java.util.*;
 
+import static android.opengl.GLES30.*;
+
 
 /**
  * @author Philip DeCamp
@@ -49,6 +51,7 @@ public class Uniforms {
     private static final Map<String, Integer> DEFAULT_BLOCK_BINDINGS = new HashMap<>();
 
     static {
+        DEFAULT_BLOCK_BINDINGS.put( "CAMERA", 4 );
         DEFAULT_BLOCK_BINDINGS.put( "FOG", 5 );
         DEFAULT_BLOCK_BINDINGS.put( "MATERIALS", 6 );
         DEFAULT_BLOCK_BINDINGS.put( "LIGHTS", 7 );
@@ -57,39 +60,50 @@ public class Uniforms {
 
 
     public static DrawTask loaderFor( ProgramResource res ) {
+        Uniform u = res instanceof Uniform ? (Uniform)res : Uniform.forLocation( res.mMemberType, res.mLocation, res.mName );
         switch( res.mName ) {
         case PROJ_MAT:
-            return new ProjMat( res.mLocation );
+            return new ProjMat( u );
         case INV_PROJ_MAT:
-            return new InvProjMat( res.mLocation );
+            return new InvProjMat( u );
         case VIEW_MAT:
-            return new ViewMat( res.mLocation );
+            return new ViewMat( u );
         case INV_VIEW_MAT:
-            return new InvViewMat( res.mLocation );
+            return new InvViewMat( u );
         case PROJ_VIEW_MAT:
-            return new ProjViewMat( res.mLocation );
+            return new ProjViewMat( u );
         case INV_PROJ_VIEW_MAT:
-            return new InvProjViewMat( res.mLocation );
+            return new InvProjViewMat( u );
         case NORM_MAT:
-            return new NormMat( res.mLocation );
+            return new NormMat( u );
         case INV_NORM_MAT:
-            return new InvNormMat( res.mLocation );
+            return new InvNormMat( u );
         case VIEWPORT:
-            return new Viewport( res.mLocation );
+            return new Viewport( u );
         case VIEWPORT_MAT:
-            return new ViewportMat( res.mLocation );
+            return new ViewportMat( u );
         case INV_VIEWPORT_MAT:
-            return new InvViewportMat( res.mLocation );
+            return new InvViewportMat( u );
         case COLOR_MAT:
-            return new ColorMat( res.mLocation );
+            return new ColorMat( u );
         case INV_COLOR_MAT:
-            return new InvColorMat( res.mLocation );
+            return new InvColorMat( u );
         case TEX_MAT:
-            return new TexMat( res.mLocation );
+            return new TexMat( u );
         case INV_TEX_MAT:
-            return new InvTexMat( res.mLocation );
+            return new InvTexMat( u );
         case LINE_WIDTH:
-            return new LineWidth( res.mLocation );
+            return new LineWidth( u );
+        default:
+            return null;
+        }
+    }
+
+
+    public static DrawTask loaderFor( UniformBlock block ) {
+        switch( block.mName ) {
+        case "CAMERA":
+            return new CameraBlock();
         default:
             return null;
         }
@@ -103,6 +117,12 @@ public class Uniforms {
                 prog.addBindTask( task );
             }
         }
+        for( UniformBlock block: prog.uniformBlocksRef() ) {
+            DrawTask task = loaderFor( block );
+            if( task != null ) {
+                prog.addBindTask( task );
+            }
+        }
     }
 
 
@@ -112,20 +132,48 @@ public class Uniforms {
     }
 
     /**
-     * Sets all sampler uniforms of the form "texUnitXXX" to value "XXX".
+     * Gives each sampler uniform of the BOUND program a distinct default texture unit.
+     * Samplers named "TEX_UNITn" receive unit n, for compatibility. Remaining samplers
+     * receive the lowest free units in declaration order, consecutive for arrays.
+     * Units may later be reassigned at draw time with {@link TextureUnits#assign}.
+     *
      * @param uniforms List of program uniforms for BOUND program.
      */
     public static void setDefaultTexUnits( DrawEnv d, Collection<? extends ProgramResource> uniforms ) {
+        BitSet used = new BitSet();
+        List<ProgramResource> rest = null;
+
         for( ProgramResource res: uniforms ) {
-            String name = res.mName;
-            if( !name.startsWith( "TEX_UNIT" ) ) {
+            if( !TextureUnits.isSamplerType( res.mMemberType ) ) {
                 continue;
             }
-            try {
-                int n = Integer.parseInt( name.substring( 8 ) );
-                GLES30.glUniform1i( res.mLocation, n );
-                d.checkErr();
-            } catch( NumberFormatException ignored ) {}
+            int n = -1;
+            if( res.mName.startsWith( "TEX_UNIT" ) ) {
+                try {
+                    n = Integer.parseInt( res.mName.substring( 8 ) );
+                } catch( NumberFormatException ignored ) {}
+            }
+            if( n < 0 ) {
+                if( rest == null ) {
+                    rest = new ArrayList<>();
+                }
+                rest.add( res );
+                continue;
+            }
+            used.set( n );
+            setTexUnit( res, n, 1 );
+        }
+
+        if( rest != null ) {
+            for( ProgramResource res: rest ) {
+                int len = Math.max( 1, res.mArrayLength );
+                int n = 0;
+                while( used.nextSetBit( n ) >= 0 && used.nextSetBit( n ) < n + len ) {
+                    n = used.nextClearBit( used.nextSetBit( n ) );
+                }
+                used.set( n, n + len );
+                setTexUnit( res, n, len );
+            }
         }
         d.checkErr();
     }
@@ -142,287 +190,390 @@ public class Uniforms {
     }
 
 
+    private static void setTexUnit( ProgramResource res, int unit, int len ) {
+        if( len == 1 && res instanceof Uniform ) {
+            ( (Uniform)res ).set( unit );
+            return;
+        }
+        int[] units = new int[len];
+        for( int i = 0; i < len; i++ ) {
+            units[i] = unit + i;
+        }
+        GLES30.glUniform1iv( res.mLocation, len, units, 0 );
+        if( res instanceof Uniform ) {
+            ( (Uniform)res ).invalidate();
+        }
+    }
+
+
+    /**
+     * Makes sure the shared CAMERA block is current. Uploads nothing unless the
+     * camera matrices have changed since the block was last filled.
+     */
+    public static final class CameraBlock implements DrawTask {
+        public void run( DrawEnv g ) {
+            g.mCamera.update();
+        }
+    }
+
+
     public static final class ProjMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public ProjMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public ProjMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
-            FloatBuffer buf = g.mWorkFloats;
-            buf.clear();
-            Mat.put( g.mProj.get(), buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            long version = g.mMatCache.projVersion();
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            setMat4( mUniform, g.mProj.get(), g.mWorkArr );
+            mUniform.version( version );
         }
     }
 
 
     public static final class InvProjMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvProjMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
         }
 
-        public void run( DrawEnv g ) {
-            Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
+        public InvProjMat( Uniform uniform ) {
+            mUniform = uniform;
+        }
 
-            Mat.invert( g.mProj.get(), mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+        public void run( DrawEnv g ) {
+            long version = g.mMatCache.projVersion();
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            setMat4( mUniform, g.mMatCache.invProj(), g.mWorkArr );
+            mUniform.version( version );
         }
     }
 
 
     public static final class ViewMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public ViewMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public ViewMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
-            FloatBuffer buf = g.mWorkFloats;
-            buf.clear();
-            Mat.put( g.mView.get(), buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            long version = g.mMatCache.viewVersion();
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            setMat4( mUniform, g.mView.get(), g.mWorkArr );
+            mUniform.version( version );
         }
     }
 
 
     public static final class InvViewMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvViewMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
         }
 
-        public void run( DrawEnv g ) {
-            Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
+        public InvViewMat( Uniform uniform ) {
+            mUniform = uniform;
+        }
 
-            Mat.invert( g.mView.get(), mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+        public void run( DrawEnv g ) {
+            long version = g.mMatCache.viewVersion();
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            setMat4( mUniform, g.mMatCache.invView(), g.mWorkArr );
+            mUniform.version( version );
         }
     }
 
 
     public static final class ProjViewMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public ProjViewMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public ProjViewMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
-            Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
-            Mat.mult( g.mProj.get(), g.mView.get(), mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            long version = versions( g.mMatCache.projVersion(), g.mMatCache.viewVersion() );
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            setMat4( mUniform, g.mMatCache.projView(), g.mWorkArr );
+            mUniform.version( version );
         }
     }
 
 
     public static final class InvProjViewMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvProjViewMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
         }
 
-        public void run( DrawEnv g ) {
-            Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
+        public InvProjViewMat( Uniform uniform ) {
+            mUniform = uniform;
+        }
 
-            Mat.mult( g.mProj.get(), g.mView.get(), mat );
-            Mat.invert( mat, mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+        public void run( DrawEnv g ) {
+            long version = versions( g.mMatCache.projVersion(), g.mMatCache.viewVersion() );
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            setMat4( mUniform, g.mMatCache.invProjView(), g.mWorkArr );
+            mUniform.version( version );
         }
     }
 
 
     public static final class NormMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public NormMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT3, location, null ) );
+        }
+
+        public NormMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
+            long version = g.mMatCache.viewVersion();
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
             // normMat = transpose( inverse( modelView ) )
-            Mat4 mat = g.mWorkMat4;
-            Mat.invert( g.mView.get(), mat );
-            FloatBuffer buf = g.mWorkFloats;
-            buf.clear();
-            // Only load transpose of top 3x3.
-            buf.put( mat.m00 ).put( mat.m01 ).put( mat.m02 );
-            buf.put( mat.m10 ).put( mat.m11 ).put( mat.m12 );
-            buf.put( mat.m20 ).put( mat.m21 ).put( mat.m22 );
-            buf.flip();
-            GLES30.glUniformMatrix3fv( mLocation, 1, false, buf );
+            Mat3 mat = g.mMatCache.normMat();
+            float[] arr = g.mWorkArr;
+            arr[0] = mat.m00; arr[1] = mat.m10; arr[2] = mat.m20;
+            arr[3] = mat.m01; arr[4] = mat.m11; arr[5] = mat.m21;
+            arr[6] = mat.m02; arr[7] = mat.m12; arr[8] = mat.m22;
+            mUniform.set( arr, 0, 9 );
+            mUniform.version( version );
         }
     }
 
 
     public static final class InvNormMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvNormMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT3, location, null ) );
+        }
+
+        public InvNormMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
-            Mat4 mat = g.mWorkMat4;
-            Mat.invert( g.mView.get(), mat );
-            FloatBuffer buf = g.mWorkFloats;
-            buf.clear();
+            long version = g.mMatCache.viewVersion();
+            if( mUniform.hasVersion( version ) ) {
+                return;
+            }
+            // invNormMat = transpose( modelView ), so no inversion is needed.
+            Mat4 mat = g.mView.get();
+            float[] arr = g.mWorkArr;
             // Only load transpose of top 3x3.
-            buf.put( mat.m00 ).put( mat.m01 ).put( mat.m02 );
-            buf.put( mat.m10 ).put( mat.m11 ).put( mat.m12 );
-            buf.put( mat.m20 ).put( mat.m21 ).put( mat.m22 );
-            buf.flip();
-            GLES30.glUniformMatrix3fv( mLocation, 1, false, buf );
+            arr[0] = mat.m00; arr[1] = mat.m01; arr[2] = mat.m02;
+            arr[3] = mat.m10; arr[4] = mat.m11; arr[5] = mat.m12;
+            arr[6] = mat.m20; arr[7] = mat.m21; arr[8] = mat.m22;
+            mUniform.set( arr, 0, 9 );
+            mUniform.version( version );
         }
     }
 
 
     public static final class Viewport implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public Viewport( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_VEC4, location, null ) );
+        }
+
+        public Viewport( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
-            GLES30.glUniform4f( mLocation, g.mViewport.mX, g.mViewport.mY, g.mViewport.mW, g.mViewport.mH );
+            mUniform.set( g.mViewport.mX, g.mViewport.mY, g.mViewport.mW, g.mViewport.mH );
         }
     }
 
 
     public static final class ViewportMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public ViewportMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public ViewportMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
             Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
             Mat.viewport( g.mViewport.mX, g.mViewport.mY, g.mViewport.mW, g.mViewport.mH, mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            setMat4( mUniform, mat, g.mWorkArr );
         }
     }
 
 
     public static final class InvViewportMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvViewportMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public InvViewportMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
             Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
             Mat.viewport( g.mViewport.mX, g.mViewport.mY, g.mViewport.mW, g.mViewport.mH, mat );
             Mat.invert( mat, mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            setMat4( mUniform, mat, g.mWorkArr );
         }
     }
 
 
     public static final class ColorMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public ColorMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
         }
 
-        public void run( DrawEnv g ) {
-            FloatBuffer buf = g.mWorkFloats;
+        public ColorMat( Uniform uniform ) {
+            mUniform = uniform;
+        }
 
-            buf.clear();
-            Mat.put( g.mColorMat.get(), buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+        public void run( DrawEnv g ) {
+            setMat4( mUniform, g.mColorMat.get(), g.mWorkArr );
         }
     }
 
 
     public static final class InvColorMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvColorMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public InvColorMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
             Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
-
             Mat.invert( g.mColorMat.get(), mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            setMat4( mUniform, mat, g.mWorkArr );
         }
     }
 
 
     public static final class TexMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public TexMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
         }
 
-        public void run( DrawEnv g ) {
-            FloatBuffer buf = g.mWorkFloats;
+        public TexMat( Uniform uniform ) {
+            mUniform = uniform;
+        }
 
-            buf.clear();
-            Mat.put( g.mTexMat.get(), buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+        public void run( DrawEnv g ) {
+            setMat4( mUniform, g.mTexMat.get(), g.mWorkArr );
         }
     }
 
 
     public static final class InvTexMat implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public InvTexMat( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT_MAT4, location, null ) );
+        }
+
+        public InvTexMat( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
             Mat4 mat = g.mWorkMat4;
-            FloatBuffer buf = g.mWorkFloats;
-
             Mat.invert( g.mTexMat.get(), mat );
-            buf.clear();
-            Mat.put( mat, buf );
-            buf.flip();
-            GLES30.glUniformMatrix4fv( mLocation, 1, false, buf );
+            setMat4( mUniform, mat, g.mWorkArr );
         }
     }
 
 
     public static final class LineWidth implements DrawTask {
-        private final int mLocation;
+        private final Uniform mUniform;
+
         public LineWidth( int location ) {
-            mLocation = location;
+            this( Uniform.forLocation( GL_FLOAT, location, null ) );
+        }
+
+        public LineWidth( Uniform uniform ) {
+            mUniform = uniform;
         }
 
         public void run( DrawEnv g ) {
-            GLES30.glUniform1f( mLocation, g.mLineWidth.mValue );
+            mUniform.set( g.mLineWidth.mValue );
         }
     }
 
+
+    private static long versions( int a, int b ) {
+        return ( (long)a << 32 ) | ( b & 0xFFFFFFFFL );
+    }
+
+
+    private static void setMat4( Uniform u, Mat4 mat, float[] work ) {
+        work[ 0] = mat.m00;
+        work[ 1] = mat.m10;
+        work[ 2] = mat.m20;
+        work[ 3] = mat.m30;
+        work[ 4] = mat.m01;
+        work[ 5] = mat.m11;
+        work[ 6] = mat.m21;
+        work[ 7] = mat.m31;
+        work[ 8] = mat.m02;
+        work[ 9] = mat.m12;
+        work[10] = mat.m22;
+        work[11] = mat.m32;
+        work[12] = mat.m03;
+        work[13] = mat.m13;
+        work[14] = mat.m23;
+        work[15] = mat.m33;
+        u.set( work, 0, 16 );
+    }
+
 }
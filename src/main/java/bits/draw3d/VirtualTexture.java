@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d;
+
+import android.opengl.GLES30;
+import bits.draw3d.camera.CameraNode;
+import bits.vec.Mat4;
+import bits.vec.Vec;
+import bits.vec.Vec3;
+import bits.vec.Vec4;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Sparse virtual texture for images too large to fit in a single texture, such as
+ * large orthophoto layers. Tiles are paged in from a {@link TilePyramid} on demand.
+ *
+ * <p>Resident tiles are kept in a fixed-size atlas texture with one slot per tile.
+ * A page table texture holds one texel per tile of level 0. Each texel points to the
+ * finest resident tile covering that area: red and green hold the slot column and
+ * row, blue holds the tile level, and alpha is nonzero when the texel is mapped.
+ * Shaders resolve virtual coordinates with {@code sampleVirtual} from
+ * {@code SampleVirtual.glsl}, using the values from {@link #layout}. The single tile
+ * of the coarsest level is loaded first and never evicted, so every texel is mapped
+ * and missing areas show at lower resolution until finer tiles arrive.
+ *
+ * <p>Tiles are chosen on the CPU. The image is placed on a world-space parallelogram
+ * with {@link #placement}. Each frame, {@link #request} walks the pyramid from the
+ * coarsest level, culling tiles outside the camera frustum and descending while the
+ * projected screen size of a tile exceeds {@link #density} pixels per texel. Requests
+ * are made coarse to fine and limited to the number of atlas slots, so a view never
+ * needs more tiles than fit. {@link #update} then uploads missing tiles straight from
+ * the tile buffers, up to a byte budget per call. When the atlas is full, the least
+ * recently requested tile is evicted. Tiles requested in the current frame are not
+ * evicted.
+ *
+ * <p>All methods must be called on the GL thread.
+ *
+ * @author Philip DeCamp
+ */
+public class VirtualTexture implements DrawResource {
+
+    private final TilePyramid mSrc;
+    private final int mSlotsX;
+    private final int mSlotsY;
+    private final int mSlotSize;
+    private final int mCellsX;
+    private final int mCellsY;
+
+    private final Texture2   mAtlas = new Texture2();
+    private final Texture2   mTable = new Texture2();
+    private final ByteBuffer mTableBuf;
+
+    private final Map<Long, Tile> mResident = new HashMap<>();
+    private final int[]           mFree;
+    private       int             mFreeNum;
+    private       Tile            mRoot     = null;
+
+    private final List<Long> mVisit  = new ArrayList<>();
+    private final List<Long> mWanted = new ArrayList<>();
+
+    private final Vec3 mOrigin = new Vec3( 0, 0, 0 );
+    private final Vec3 mAxisU  = new Vec3( 1, 0, 0 );
+    private final Vec3 mAxisV  = new Vec3( 0, 1, 0 );
+    private float mDensity = 1f;
+
+    private final float[] mScreen = new float[8];
+    private long mFrame = 0;
+
+    private int  mUploadNum   = 0;
+    private int  mEvictNum    = 0;
+    private long mUploadBytes = 0;
+
+
+    /**
+     * @param src    Source of tiles.
+     * @param slotsX Columns of tile slots in atlas. At most 256.
+     * @param slotsY Rows of tile slots in atlas. At most 256.
+     */
+    public VirtualTexture( TilePyramid src, int slotsX, int slotsY ) {
+        if( slotsX < 1 || slotsY < 1 || slotsX > 256 || slotsY > 256 ) {
+            throw new IllegalArgumentException( "Slot columns and rows must be between 1 and 256." );
+        }
+        if( src.levelNum() > 256 ) {
+            throw new IllegalArgumentException( "Too many levels." );
+        }
+        mSrc      = src;
+        mSlotsX   = slotsX;
+        mSlotsY   = slotsY;
+        mSlotSize = src.slotSize();
+        mCellsX   = src.tilesX( 0 );
+        mCellsY   = src.tilesY( 0 );
+
+        mAtlas.format( src.internalFormat(), src.format(), src.dataType() );
+        mAtlas.size( slotsX * mSlotSize, slotsY * mSlotSize );
+        mAtlas.param( GL_TEXTURE_MIN_FILTER, GL_LINEAR );
+        mAtlas.param( GL_TEXTURE_MAG_FILTER, GL_LINEAR );
+        mAtlas.param( GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE );
+        mAtlas.param( GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE );
+
+        mTableBuf = DrawUtil.alloc( mCellsX * mCellsY * 4 );
+        mTable.param( GL_TEXTURE_MIN_FILTER, GL_NEAREST );
+        mTable.param( GL_TEXTURE_MAG_FILTER, GL_NEAREST );
+        mTable.param( GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE );
+        mTable.param( GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE );
+
+        mFree = new int[slotsX * slotsY];
+        clearTiles();
+    }
+
+
+    public TilePyramid source() {
+        return mSrc;
+    }
+
+    /**
+     * @return texture holding resident tiles.
+     */
+    public Texture2 atlas() {
+        return mAtlas;
+    }
+
+    /**
+     * @return page table texture, with one texel per tile of level 0.
+     */
+    public Texture2 pageTable() {
+        return mTable;
+    }
+
+    /**
+     * @return number of tiles the atlas holds.
+     */
+    public int slotNum() {
+        return mSlotsX * mSlotsY;
+    }
+
+    /**
+     * @param out Receives virtual width, virtual height, tile size and tile border, in pixels,
+     *            for the {@code dims} argument of {@code sampleVirtual}.
+     * @return out
+     */
+    public Vec4 layout( Vec4 out ) {
+        out.x = mSrc.width();
+        out.y = mSrc.height();
+        out.z = mSrc.tileSize();
+        out.w = mSrc.border();
+        return out;
+    }
+
+    /**
+     * Places image in world space. Texture coordinate {@code (u, v)} maps to
+     * {@code origin + u * axisU + v * axisV}. By default, the image covers the unit
+     * square of the XY plane.
+     */
+    public void placement( Vec3 origin, Vec3 axisU, Vec3 axisV ) {
+        Vec.put( origin, mOrigin );
+        Vec.put( axisU, mAxisU );
+        Vec.put( axisV, mAxisV );
+    }
+
+
+    public float density() {
+        return mDensity;
+    }
+
+    /**
+     * @param pixelsPerTexel Screen pixels per texel above which finer tiles are requested.
+     *                       Higher values request fewer tiles and show a blurrier image.
+     */
+    public void density( float pixelsPerTexel ) {
+        mDensity = pixelsPerTexel;
+    }
+
+    /**
+     * Computes tiles needed for the current view of a camera.
+     *
+     * @return number of needed tiles that are not resident.
+     * @see #request(Mat4, Rect)
+     */
+    public int request( CameraNode cam ) {
+        return request( cam.mProjViewMat, cam.viewportRef() );
+    }
+
+    /**
+     * Computes tiles needed to draw the image with the given transform. Marks needed
+     * resident tiles as used and replaces any previous requests.
+     *
+     * @param projView Projection-view matrix.
+     * @param viewport Viewport in pixels.
+     * @return number of needed tiles that are not resident.
+     */
+    public int request( Mat4 projView, Rect viewport ) {
+        mFrame++;
+        mVisit.clear();
+        mWanted.clear();
+
+        final int top = mSrc.levelNum() - 1;
+        if( screenDensity( projView, viewport, top, 0, 0 ) < 0f ) {
+            return 0;
+        }
+        mVisit.add( key( top, 0, 0 ) );
+
+        final int capacity = slotNum();
+        for( int i = 0; i < mVisit.size(); i++ ) {
+            long key = mVisit.get( i );
+            Tile t = mResident.get( key );
+            if( t != null ) {
+                t.mFrame = mFrame;
+            } else {
+                mWanted.add( key );
+            }
+
+            int level = level( key );
+            int x     = tileX( key );
+            int y     = tileY( key );
+            if( level == 0 || screenDensity( projView, viewport, level, x, y ) <= mDensity ) {
+                continue;
+            }
+
+            // Adds all visible children or none, so that refined areas stay consistent.
+            int n  = mVisit.size();
+            int cl = level - 1;
+            int cx = Math.min( 2 * x + 2, mSrc.tilesX( cl ) );
+            int cy = Math.min( 2 * y + 2, mSrc.tilesY( cl ) );
+            if( n + ( cx - 2 * x ) * ( cy - 2 * y ) > capacity ) {
+                continue;
+            }
+            for( int yy = 2 * y; yy < cy; yy++ ) {
+                for( int xx = 2 * x; xx < cx; xx++ ) {
+                    if( screenDensity( projView, viewport, cl, xx, yy ) >= 0f ) {
+                        mVisit.add( key( cl, xx, yy ) );
+                    }
+                }
+            }
+        }
+
+        return mWanted.size();
+    }
+
+    /**
+     * Uploads requested tiles, coarsest first, until {@code budgetBytes} have been
+     * uploaded. The coarsest tile is uploaded on the first call regardless of budget.
+     * Otherwise at least one tile is uploaded if any are needed. Binds atlas to
+     * active unit.
+     *
+     * @return number of tiles uploaded.
+     */
+    public int update( DrawEnv d, long budgetBytes ) {
+        if( mRoot != null && mWanted.isEmpty() ) {
+            return 0;
+        }
+
+        // Allocates storage on first bind.
+        mAtlas.bind( d );
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 1 );
+
+        long bytes = 0;
+        int  num   = 0;
+        if( mRoot == null ) {
+            mRoot = load( key( mSrc.levelNum() - 1, 0, 0 ) );
+            bytes += mSrc.tileBytes();
+            num++;
+        }
+
+        int i = 0;
+        for( ; i < mWanted.size() && ( bytes == 0 || bytes < budgetBytes ); i++ ) {
+            long key = mWanted.get( i );
+            if( mResident.containsKey( key ) ) {
+                continue;
+            }
+            if( mFreeNum == 0 && !evict() ) {
+                break;
+            }
+            load( key );
+            bytes += mSrc.tileBytes();
+            num++;
+        }
+        mWanted.subList( 0, i ).clear();
+
+        GLES30.glPixelStorei( GL_UNPACK_ALIGNMENT, 4 );
+        mAtlas.unbind( d );
+        d.checkErr();
+
+        mUploadNum   += num;
+        mUploadBytes += bytes;
+        return num;
+    }
+
+    /**
+     * @return number of resident tiles.
+     */
+    public int residentNum() {
+        return mResident.size();
+    }
+
+    /**
+     * @return number of requested tiles not yet uploaded.
+     */
+    public int wantedNum() {
+        return mWanted.size();
+    }
+
+    /**
+     * @return number of tiles uploaded.
+     */
+    public int uploadCount() {
+        return mUploadNum;
+    }
+
+    /**
+     * @return number of tiles evicted to make room for others.
+     */
+    public int evictCount() {
+        return mEvictNum;
+    }
+
+    /**
+     * @return number of tile bytes uploaded.
+     */
+    public long uploadBytes() {
+        return mUploadBytes;
+    }
+
+
+    public void resetCounts() {
+        mUploadNum   = 0;
+        mEvictNum    = 0;
+        mUploadBytes = 0;
+    }
+
+    /**
+     * Loads the coarsest tile.
+     */
+    @Override
+    public void init( DrawEnv d ) {
+        update( d, 0 );
+    }
+
+    /**
+     * Deletes textures and forgets all resident tiles. Tiles are paged in again on next update.
+     */
+    @Override
+    public void dispose( DrawEnv d ) {
+        mAtlas.dispose( d );
+        mTable.dispose( d );
+        clearTiles();
+    }
+
+
+
+    private Tile load( long key ) {
+        int level = level( key );
+        int x     = tileX( key );
+        int y     = tileY( key );
+        Tile t = new Tile( key, mFree[--mFreeNum] );
+        t.mFrame = mFrame;
+        mResident.put( key, t );
+
+        GLES30.glTexSubImage2D( GL_TEXTURE_2D,
+                                0,
+                                ( t.mSlot % mSlotsX ) * mSlotSize,
+                                ( t.mSlot / mSlotsX ) * mSlotSize,
+                                mSlotSize,
+                                mSlotSize,
+                                mSrc.format(),
+                                mSrc.dataType(),
+                                mSrc.tile( level, x, y ) );
+
+        // Points cells at this tile where it is finer than their current tile.
+        Rect r = footprint( key );
+        for( int cy = r.y0; cy < r.y1; cy++ ) {
+            for( int cx = r.x0; cx < r.x1; cx++ ) {
+                int pos = ( cy * mCellsX + cx ) * 4;
+                if( mTableBuf.get( pos + 3 ) == 0 || ( mTableBuf.get( pos + 2 ) & 0xFF ) > level ) {
+                    putEntry( pos, t );
+                }
+            }
+        }
+        mTable.update( mTableBuf, r );
+        return t;
+    }
+
+    /**
+     * Evicts least recently used tile that is not needed by current frame.
+     *
+     * @return true if a slot was freed.
+     */
+    private boolean evict() {
+        Tile victim = null;
+        for( Tile t: mResident.values() ) {
+            if( t != mRoot && t.mFrame < mFrame && ( victim == null || t.mFrame < victim.mFrame ) ) {
+                victim = t;
+            }
+        }
+        if( victim == null ) {
+            return false;
+        }
+
+        // Remaps cells that pointed to victim to its finest resident ancestor.
+        // The root is always resident, so an ancestor exists.
+        final long key   = victim.mKey;
+        final int  level = level( key );
+        Tile parent = null;
+        for( int p = level + 1; parent == null; p++ ) {
+            parent = mResident.get( key( p, tileX( key ) >> ( p - level ), tileY( key ) >> ( p - level ) ) );
+        }
+
+        Rect r = footprint( key );
+        for( int cy = r.y0; cy < r.y1; cy++ ) {
+            for( int cx = r.x0; cx < r.x1; cx++ ) {
+                int pos = ( cy * mCellsX + cx ) * 4;
+                if( ( mTableBuf.get( pos + 2 ) & 0xFF ) == level &&
+                    ( mTableBuf.get( pos     ) & 0xFF ) == victim.mSlot % mSlotsX &&
+                    ( mTableBuf.get( pos + 1 ) & 0xFF ) == victim.mSlot / mSlotsX )
+                {
+                    putEntry( pos, parent );
+                }
+            }
+        }
+        mTable.update( mTableBuf, r );
+
+        mResident.remove( key );
+        mFree[mFreeNum++] = victim.mSlot;
+        mEvictNum++;
+        return true;
+    }
+
+    /**
+     * @return max screen pixels per texel along tile edges, infinity if tile crosses
+     *         the near plane, or -1 if tile is outside the frustum.
+     */
+    private float screenDensity( Mat4 m, Rect viewport, int level, int x, int y ) {
+        final float span = (float)mSrc.tileSize() * ( 1 << level );
+        final float w    = mSrc.width();
+        final float h    = mSrc.height();
+        final float u0   = x * span / w;
+        final float v0   = y * span / h;
+        final float u1   = Math.min( 1f, ( x + 1 ) * span / w );
+        final float v1   = Math.min( 1f, ( y + 1 ) * span / h );
+
+        int  outside = 0x3F;
+        boolean near = false;
+        for( int i = 0; i < 4; i++ ) {
+            float u = ( i == 1 || i == 2 ) ? u1 : u0;
+            float v = ( i >= 2 ) ? v1 : v0;
+            float px = mOrigin.x + u * mAxisU.x + v * mAxisV.x;
+            float py = mOrigin.y + u * mAxisU.y + v * mAxisV.y;
+            float pz = mOrigin.z + u * mAxisU.z + v * mAxisV.z;
+            float cx = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03;
+            float cy = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13;
+            float cz = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23;
+            float cw = m.m30 * px + m.m31 * py + m.m32 * pz + m.m33;
+
+            int code = 0;
+            if( cx < -cw ) code |= 0x01;
+            if( cx >  cw ) code |= 0x02;
+            if( cy < -cw ) code |= 0x04;
+            if( cy >  cw ) code |= 0x08;
+            if( cz < -cw ) code |= 0x10;
+            if( cz >  cw ) code |= 0x20;
+            outside &= code;
+
+            if( cw <= 0f ) {
+                near = true;
+            } else {
+                mScreen[i * 2    ] = ( cx / cw * 0.5f + 0.5f ) * viewport.width();
+                mScreen[i * 2 + 1] = ( cy / cw * 0.5f + 0.5f ) * viewport.height();
+            }
+        }
+
+        if( outside != 0 ) {
+            return -1f;
+        }
+        if( near ) {
+            return Float.POSITIVE_INFINITY;
+        }
+
+        // Corners run u0v0, u1v0, u1v1, u0v1, so even edges run along u and odd edges along v.
+        float texelsU = ( u1 - u0 ) * w / ( 1 << level );
+        float texelsV = ( v1 - v0 ) * h / ( 1 << level );
+        float ret = 0f;
+        for( int i = 0; i < 4; i++ ) {
+            int j = ( i + 1 ) % 4;
+            float dx = mScreen[j * 2    ] - mScreen[i * 2    ];
+            float dy = mScreen[j * 2 + 1] - mScreen[i * 2 + 1];
+            float len = (float)Math.sqrt( dx * dx + dy * dy );
+            ret = Math.max( ret, len / ( ( i % 2 == 0 ) ? texelsU : texelsV ) );
+        }
+        return ret;
+    }
+
+    /**
+     * @return cells of page table covered by tile.
+     */
+    private Rect footprint( long key ) {
+        int level = level( key );
+        int x     = tileX( key );
+        int y     = tileY( key );
+        return new Rect( x << level,
+                         y << level,
+                         Math.min( ( x + 1 ) << level, mCellsX ),
+                         Math.min( ( y + 1 ) << level, mCellsY ) );
+    }
+
+
+    private void putEntry( int pos, Tile t ) {
+        mTableBuf.put( pos,     (byte)( t.mSlot % mSlotsX ) );
+        mTableBuf.put( pos + 1, (byte)( t.mSlot / mSlotsX ) );
+        mTableBuf.put( pos + 2, (byte)level( t.mKey ) );
+        mTableBuf.put( pos + 3, (byte)0xFF );
+    }
+
+
+    private void clearTiles() {
+        mResident.clear();
+        mWanted.clear();
+        mRoot = null;
+        mFreeNum = mFree.length;
+        for( int i = 0; i < mFreeNum; i++ ) {
+            // Popped from end, so slot 0 is used first.
+            mFree[i] = mFreeNum - 1 - i;
+        }
+        for( int i = 0; i < mTableBuf.capacity(); i++ ) {
+            mTableBuf.put( i, (byte)0 );
+        }
+        mTable.buffer( mTableBuf, GL_RGBA8, GL_RGBA, GL_UNSIGNED_BYTE, mCellsX, mCellsY, mCellsX );
+    }
+
+
+    private static long key( int level, int x, int y ) {
+        return (long)level << 48 | (long)y << 24 | x;
+    }
+
+
+    private static int level( long key ) {
+        return (int)( key >>> 48 );
+    }
+
+
+    private static int tileX( long key ) {
+        return (int)( key & 0xFFFFFF );
+    }
+
+
+    private static int tileY( long key ) {
+        return (int)( key >>> 24 & 0xFFFFFF );
+    }
+
+
+    private static final class Tile {
+        final long mKey;
+        final int  mSlot;
+        long mFrame;
+
+        Tile( long key, int slot ) {
+            mKey  = key;
+            mSlot = slot;
+        }
+    }
+
+}
@@ -282,12 +282,14 @@ public class CameraNode implements DrawNode, ReshapeListener {
         e.mProj.set( mProjMat );
         e.mView.push();
         e.mView.set( mViewMat );
+        e.mCamera.apply();
     }
 
 
     public void popDraw( DrawEnv e ) {
         e.mView.pop();
         e.mProj.pop();
+        e.mCamera.apply();
     }
 
 
@@ -74,6 +74,27 @@ public class BasicShaders {
     }
 
 
+    /**
+     * Creates program from shaders that have already been loaded.
+     *
+     * @param config  Config produced by {@link BasicShaderConfig#chooseAvailable}.
+     * @param shaders Vertex, optional geometry, and fragment shaders, as named by config.
+     *                Ownership of the references passes to the program.
+     */
+    public static BoProgram<DrawVert,Void> createProgram( BasicShaderConfig config, Shader... shaders ) {
+        BoProgram<DrawVert,Void> ret = new BoProgram<>();
+        AutoloadProgram prog = new AutoloadProgram();
+        for( Shader s: shaders ) {
+            if( s != null ) {
+                prog.addShader( s );
+            }
+        }
+        ret.mProgram = prog;
+        ret.mVertWriter = createVertWriter( config );
+        return ret;
+    }
+
+
     public static BoWriter<DrawVert> createVertWriter( BasicShaderConfig config ) {
         if( config.texComponentNum() == 0 ) {
             if( config.color() || !config.normals() ) {
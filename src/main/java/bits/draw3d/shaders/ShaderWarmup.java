@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2014. Massachusetts Institute of Technology
+ * Released under the BSD 2-Clause License
+ * http://opensource.org/licenses/BSD-2-Clause
+ */
+
+package bits.draw3d.shaders;
+
+import bits.draw3d.*;
+import bits.draw3d.model.DrawVert;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static android.opengl.GLES30.*;
+
+
+/**
+ * Precompiles BasicShaders programs so that the first {@code DrawStream.begin*()}
+ * of a configuration does not stall on compilation.
+ *
+ * <p>Shader sources are loaded and preprocessed by the ShaderManager on background
+ * threads. Compilation and linking must occur on the GL thread, so {@link #update}
+ * should be called once per frame with a time budget. Each call compiles programs
+ * until the budget is spent, always compiling at least one if any are ready. Compiled
+ * programs are installed into the DrawStream of the DrawEnv. Shaders shared between
+ * variants are compiled only once.
+ *
+ * <p>Typical use: <pre>{@code
+ * warmup = new ShaderWarmup( d );
+ * warmup.addAllVariants();
+ * warmup.start( null );
+ * ...
+ * // Each frame, on GL thread:
+ * if( !warmup.isDone() ) {
+ *     warmup.update( 4000000L );
+ * }
+ * }</pre>
+ *
+ * @author Philip DeCamp
+ */
+public class ShaderWarmup {
+
+    private final DrawEnv       mDraw;
+    private final ShaderManager mShaderMan;
+
+    private final Map<BasicShaderConfig, Entry> mEntries = new LinkedHashMap<>();
+    private final BlockingQueue<Entry>          mReady   = new LinkedBlockingQueue<>();
+
+    private final AtomicInteger   mPending   = new AtomicInteger( 0 );
+    private       ExecutorService mOwnedExec = null;
+    private       boolean         mStarted   = false;
+
+    private volatile boolean mCancelled = false;
+
+    private int  mDoneNum           = 0;
+    private long mTotalCompileNanos = 0;
+
+
+    public ShaderWarmup( DrawEnv d ) {
+        mDraw      = d;
+        mShaderMan = d.mShaderMan;
+    }
+
+    /**
+     * Adds configuration to warm up. Must be called before {@link #start}.
+     *
+     * @param config Desired configuration. Will be canonicalized with {@link BasicShaderConfig#chooseAvailable}.
+     * @return true if config added, false if an equivalent config was already added.
+     */
+    public boolean add( BasicShaderConfig config ) {
+        if( mStarted ) {
+            throw new IllegalStateException( "ShaderWarmup already started." );
+        }
+        BasicShaderConfig chosen = new BasicShaderConfig();
+        config.chooseAvailable( chosen );
+        if( mEntries.containsKey( chosen ) ) {
+            return false;
+        }
+        mEntries.put( chosen, new Entry( chosen ) );
+        return true;
+    }
+
+    /**
+     * Adds every configuration that DrawStream can reach through {@link BasicShaderConfig#chooseAvailable}:
+     * all draw modes, with and without thick lines, color, normals, fog, and textures.
+     * Textured variants use 4 texture components, as DrawStream does.
+     */
+    public void addAllVariants() {
+        final int[] modes = { GL_POINTS, GL_LINES, GL_TRIANGLES };
+        final float[] widths = { 1f, 2f };
+        BasicShaderConfig c = new BasicShaderConfig();
+        for( int mode: modes ) {
+            for( float width: widths ) {
+                for( int tex = 0; tex <= 4; tex += 4 ) {
+                    for( int flags = 0; flags < 8; flags++ ) {
+                        c.geomMode( mode );
+                        c.lineWidth( width );
+                        c.texComponentNum( tex );
+                        c.color( ( flags & 1 ) != 0 );
+                        c.normals( ( flags & 2 ) != 0 );
+                        c.fog( ( flags & 4 ) != 0 );
+                        add( c );
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Begins loading shader sources in the background.
+     *
+     * @param optExec Executor on which to load sources. If {@code null}, a small private pool is used.
+     */
+    public void start( Executor optExec ) {
+        if( mStarted ) {
+            return;
+        }
+        mStarted = true;
+
+        Executor exec = optExec;
+        if( exec == null ) {
+            int threads = Math.max( 1, Math.min( 3, Runtime.getRuntime().availableProcessors() - 1 ) );
+            mOwnedExec = Executors.newFixedThreadPool( threads, new ThreadFactory() {
+                @Override
+                public Thread newThread( Runnable r ) {
+                    Thread t = new Thread( r, "ShaderWarmup" );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+            exec = mOwnedExec;
+        }
+
+        mPending.set( mEntries.size() );
+        for( final Entry e: mEntries.values() ) {
+            exec.execute( new Runnable() {
+                @Override
+                public void run() {
+                    e.load();
+                    mReady.add( e );
+                    if( mPending.decrementAndGet() == 0 && mOwnedExec != null ) {
+                        mOwnedExec.shutdown();
+                    }
+                }
+            } );
+        }
+    }
+
+    /**
+     * Compiles loaded programs and installs them into the DrawStream. Must be called
+     * on the GL thread after the DrawEnv has been initialized.
+     *
+     * @param budgetNanos Time budget. Compilation of a program is not started once the budget has been spent.
+     * @return true iff all programs have been processed.
+     */
+    public boolean update( long budgetNanos ) {
+        final long start = System.nanoTime();
+        final DrawStream stream = mDraw.drawStream();
+        boolean first = true;
+
+        while( first || System.nanoTime() - start < budgetNanos ) {
+            Entry e = mReady.poll();
+            if( e == null ) {
+                break;
+            }
+            first = false;
+            mDoneNum++;
+
+            if( mCancelled || e.mError != null ) {
+                e.release();
+                continue;
+            }
+            if( stream.hasBasicConfig( e.mConfig ) ) {
+                // Already compiled on demand.
+                e.release();
+                continue;
+            }
+
+            long t0 = System.nanoTime();
+            BoProgram<DrawVert,Void> prog = BasicShaders.createProgram( e.mConfig, e.mShaders );
+            e.mShaders = null;
+            try {
+                prog.mProgram.init( mDraw );
+                if( !stream.addBasicConfig( e.mConfig, prog ) ) {
+                    prog.mProgram.release( mDraw );
+                }
+            } catch( RuntimeException ex ) {
+                e.mError = ex;
+                prog.mProgram.release( mDraw );
+            }
+            e.mCompileNanos = System.nanoTime() - t0;
+            mTotalCompileNanos += e.mCompileNanos;
+        }
+
+        return isDone();
+    }
+
+    /**
+     * Stops warm-up. Sources not yet loaded are skipped, and programs not yet compiled
+     * are discarded on subsequent calls to {@link #update}, which should continue
+     * to be called until {@link #isDone} so that loaded shaders are released.
+     */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+
+    public boolean isDone() {
+        return mStarted && mDoneNum == mEntries.size();
+    }
+
+    /**
+     * @return fraction of programs that have been processed, in [0,1].
+     */
+    public float progress() {
+        int total = mEntries.size();
+        return total == 0 ? 1f : (float)mDoneNum / total;
+    }
+
+
+    public int totalNum() {
+        return mEntries.size();
+    }
+
+
+    public int doneNum() {
+        return mDoneNum;
+    }
+
+    /**
+     * @return total time spent compiling and linking on the GL thread.
+     */
+    public long totalCompileNanos() {
+        return mTotalCompileNanos;
+    }
+
+    /**
+     * @return status of each configuration, in order added.
+     */
+    public List<Entry> entries() {
+        return new ArrayList<>( mEntries.values() );
+    }
+
+
+
+    /**
+     * Warm-up status for one configuration.
+     */
+    public final class Entry {
+        private final BasicShaderConfig mConfig;
+
+        private volatile Shader[]  mShaders      = null;
+        private volatile Throwable mError        = null;
+        private volatile long      mLoadNanos    = -1;
+        private          long      mCompileNanos = -1;
+
+
+        Entry( BasicShaderConfig config ) {
+            mConfig = config;
+        }
+
+        /**
+         * @return canonical configuration.
+         */
+        public BasicShaderConfig config() {
+            return mConfig;
+        }
+
+        /**
+         * @return time spent loading sources in background, or -1 if not loaded.
+         */
+        public long loadNanos() {
+            return mLoadNanos;
+        }
+
+        /**
+         * @return time spent compiling and linking on GL thread, or -1 if not compiled.
+         *         Shaders shared with earlier programs are not recompiled, so later programs may take less time.
+         */
+        public long compileNanos() {
+            return mCompileNanos;
+        }
+
+        /**
+         * @return error that occurred while loading or compiling, or {@code null}.
+         */
+        public Throwable error() {
+            return mError;
+        }
+
+
+        void load() {
+            if( mCancelled ) {
+                return;
+            }
+            long t0 = System.nanoTime();
+            Shader[] shaders = new Shader[3];
+            try {
+                shaders[0] = mShaderMan.loadResource( GL_VERTEX_SHADER, mConfig.vertShader() );
+                if( mConfig.geomShader() != null ) {
+                    shaders[1] = mShaderMan.loadResource( Fake.GL_GEOMETRY_SHADER, mConfig.geomShader() );
+                }
+                shaders[2] = mShaderMan.loadResource( GL_FRAGMENT_SHADER, mConfig.fragShader() );
+            } catch( Throwable t ) {
+                // Released by update(), as deleting shaders requires the GL thread.
+                mError = t;
+                mShaders = shaders;
+                return;
+            }
+            mLoadNanos = System.nanoTime() - t0;
+            mShaders = shaders;
+        }
+
+
+        void release() {
+            Shader[] shaders = mShaders;
+            mShaders = null;
+            if( shaders == null ) {
+                return;
+            }
+            for( Shader s: shaders ) {
+                if( s != null ) {
+                    s.deref();
+                }
+            }
+        }
+    }
+
+}
@@ -8,11 +8,8 @@ package bits.draw3d.text;
 
 import android.graphics.Paint;
 import android.graphics.Typeface;
-import android.opengl.GLES30;
 import bits.draw3d.*;
 
-import static android.opengl.GLES30.GL_TEXTURE0;
-
 
 /**
  * Manages resources for a single font and prints text to screen. This class
@@ -101,8 +98,10 @@ public class FontTexture implements DrawUnit {
 
 
     public void bind( DrawEnv d, int unit ) {
-        GLES30.glActiveTexture( GL_TEXTURE0 + unit );
-        bind( d );
+        if( mTexture == null ) {
+            init( d );
+        }
+        mTexture.bind( d, unit );
     }
 
     /**
@@ -117,8 +116,10 @@ public class FontTexture implements DrawUnit {
 
 
     public void unbind( DrawEnv g, int unit ) {
-        GLES30.glActiveTexture( GL_TEXTURE0 + unit );
-        unbind( g );
+        if( mTexture == null ) {
+            return;
+        }
+        mTexture.unbind( g, unit );
     }
 
     /**